@@ -25,6 +25,7 @@ suite = {
             "subDir" : "projects",
             "sourceDirs" : ["src"],
             "dependencies" : [
+                "at.pointhi.irbuilder.irwriter",
                 "sulong:SULONG",
             ],
             "checkstyle" : "at.pointhi.irbuilder.irwriter",
@@ -0,0 +1,264 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VoidType;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * Builder for a polymorphic inline cache around an indirect call.
+ *
+ * The target pointer is compared against a small number of known callees. On a hit, the callee is
+ * called directly, which allows it to be inlined later on. If none of them matches, the
+ * {@link MegamorphicPolicy} decides what happens:
+ *
+ * <pre>
+ *          %hit0 = icmp eq i32 (i32, i32)* %target, @foo_0
+ *          br i1 %hit0, label %call0, label %check1
+ * call0:   %res0 = call i32 @foo_0(i32 %a, i32 %b)
+ *          br label %join
+ * check1:  ...
+ * miss:    %res2 = call i32 %target(i32 %a, i32 %b)
+ *          br label %join
+ * join:    %res = phi i32 [ %res0, %call0 ], ... [ %res2, %miss ]
+ * </pre>
+ *
+ * The blocks are inserted after the current block. After the cache was built, the builder points
+ * to the join block, which is not terminated yet.
+ */
+public final class InlineCacheBuilder {
+
+    public enum MegamorphicPolicy {
+        /** Call the target indirectly if it is not cached. */
+        INDIRECT_CALL,
+        /** Pass the target to a miss handler, and call it indirectly afterwards. */
+        MISS_HANDLER,
+        /** The cached callees are the only possible targets. */
+        UNREACHABLE
+    }
+
+    private static final class Entry {
+        private final Symbol function;
+        private final int weight;
+
+        Entry(Symbol function, int weight) {
+            this.function = function;
+            this.weight = weight;
+        }
+    }
+
+    private final SimpleInstrunctionBuilder instr;
+    private final FunctionType functionType;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int maxEntries = 4;
+    private boolean hasWeights = false;
+    private int missWeight = 0;
+
+    private MegamorphicPolicy policy = MegamorphicPolicy.INDIRECT_CALL;
+    private Symbol missHandler;
+
+    public InlineCacheBuilder(SimpleInstrunctionBuilder instr, FunctionType functionType) {
+        this.instr = instr;
+        this.functionType = functionType;
+    }
+
+    public InlineCacheBuilder addTarget(Symbol function) {
+        if (!functionType.equals(function.getType())) {
+            throw new AssertionError("callee does not match the call site: " + function.getType() + " != " + functionType);
+        }
+        for (Entry e : entries) {
+            if (e.function == function) {
+                throw new AssertionError("callee is already part of the cache");
+            }
+        }
+        entries.add(new Entry(function, 0));
+        return this;
+    }
+
+    /**
+     * Add a callee with a weight, which tells how often it is expected to be the target. If there
+     * are more callees than cache entries, only the heaviest ones are cached.
+     */
+    public InlineCacheBuilder addTarget(Symbol function, int weight) {
+        if (weight < 0) {
+            throw new AssertionError("branch weights cannot be negative: " + weight);
+        }
+        addTarget(function);
+        hasWeights = true;
+        entries.set(entries.size() - 1, new Entry(function, weight));
+        return this;
+    }
+
+    public InlineCacheBuilder setMaxEntries(int value) {
+        if (value < 1) {
+            throw new AssertionError("an inline cache needs at least one entry: " + value);
+        }
+        this.maxEntries = value;
+        return this;
+    }
+
+    /**
+     * Set how often the target is expected to be none of the added callees.
+     */
+    public InlineCacheBuilder setMissWeight(int weight) {
+        if (weight < 0) {
+            throw new AssertionError("branch weights cannot be negative: " + weight);
+        }
+        this.hasWeights = true;
+        this.missWeight = weight;
+        return this;
+    }
+
+    public InlineCacheBuilder setMegamorphicPolicy(MegamorphicPolicy value) {
+        this.policy = value;
+        return this;
+    }
+
+    /**
+     * Call the handler with the target pointer as only argument whenever the cache misses, for
+     * example to record the callees of a megamorphic call site.
+     */
+    public InlineCacheBuilder setMissHandler(Symbol handler) {
+        final FunctionType handlerType = (FunctionType) handler.getType();
+        if (handlerType.getArgumentTypes().length != 1) {
+            throw new AssertionError("miss handler has to take the target as only argument");
+        }
+        this.missHandler = handler;
+        this.policy = MegamorphicPolicy.MISS_HANDLER;
+        return this;
+    }
+
+    private List<Entry> getCachedEntries() {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        // the sort is stable, so callees with equal weight are checked in the order they were added
+        sorted.sort(Comparator.comparingInt((Entry e) -> e.weight).reversed());
+        return sorted.subList(0, Math.min(maxEntries, sorted.size()));
+    }
+
+    /**
+     * Emit the inline cache, and return the result of the call or <code>null</code> if the function
+     * returns void.
+     */
+    public Symbol build(Symbol target, Symbol... arguments) {
+        final Type targetType = target.getType();
+        if (!(targetType instanceof PointerType) || !functionType.equals(((PointerType) targetType).getPointeeType())) {
+            throw new AssertionError("target has to be a pointer to " + functionType + ": " + targetType);
+        }
+        if (policy == MegamorphicPolicy.MISS_HANDLER && missHandler == null) {
+            throw new AssertionError("megamorphic policy requires a miss handler");
+        }
+
+        final List<Entry> cached = getCachedEntries();
+        if (cached.isEmpty()) {
+            if (policy == MegamorphicPolicy.UNREACHABLE) {
+                throw new AssertionError("inline cache without callees cannot be unreachable on a miss");
+            }
+            return emitMiss(target, arguments);
+        }
+
+        final int count = cached.size();
+        final int blockIdx = instr.getCurrentBlock().getBlockIndex();
+        instr.insertBlocks(2 * count + 1);
+        final InstructionBlock missBlock = instr.getBlock(blockIdx + 2 * count);
+        final InstructionBlock joinBlock = instr.getBlock(blockIdx + 2 * count + 1);
+
+        long remainingWeight = missWeight;
+        for (Entry e : entries) {
+            remainingWeight += e.weight;
+        }
+
+        final boolean isVoid = VoidType.INSTANCE.equals(functionType.getReturnType());
+        final int incoming = policy == MegamorphicPolicy.UNREACHABLE ? count : count + 1;
+        final Symbol[] values = new Symbol[incoming];
+        final InstructionBlock[] blocks = new InstructionBlock[incoming];
+
+        for (int i = 0; i < count; i++) {
+            final Entry entry = cached.get(i);
+            final InstructionBlock hitBlock = instr.getBlock(blockIdx + 2 * i + 1);
+            final InstructionBlock nextBlock = instr.getBlock(blockIdx + 2 * i + 2);
+
+            // the function symbol is emitted as pointer, so both operands have the same type
+            final Instruction isHit = instr.getInstructionBuilder().createCompare(CompareOperator.INT_EQUAL, target, entry.function);
+            if (hasWeights) {
+                remainingWeight -= entry.weight;
+                instr.branch(isHit, hitBlock, nextBlock, clampWeight(entry.weight), clampWeight(remainingWeight));
+            } else {
+                instr.branch(isHit, hitBlock, nextBlock);
+            }
+
+            instr.nextBlock();
+            values[i] = instr.call(entry.function, arguments);
+            blocks[i] = hitBlock;
+            instr.jump(joinBlock);
+            instr.nextBlock();
+        }
+
+        assert instr.getCurrentBlock() == missBlock;
+        if (policy == MegamorphicPolicy.UNREACHABLE) {
+            instr.unreachable();
+        } else {
+            values[count] = emitMiss(target, arguments);
+            blocks[count] = missBlock;
+            instr.jump(joinBlock);
+        }
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == joinBlock;
+        if (isVoid) {
+            return null;
+        }
+        return instr.phi(functionType.getReturnType(), values, blocks);
+    }
+
+    private Symbol emitMiss(Symbol target, Symbol[] arguments) {
+        if (policy == MegamorphicPolicy.MISS_HANDLER) {
+            instr.call(missHandler, target);
+        }
+        final Instruction result = instr.call(target, arguments);
+        return VoidType.INSTANCE.equals(functionType.getReturnType()) ? null : result;
+    }
+
+    private static int clampWeight(long weight) {
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+}
@@ -34,27 +34,37 @@ package at.pointhi.irbuilder.irbuilder;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.oracle.truffle.llvm.parser.model.attributes.AttributesCodeEntry;
 import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.AtomicOrdering;
 import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
 import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
 import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.enums.ReadModifyWriteOperator;
+import com.oracle.truffle.llvm.parser.model.enums.SynchronizationScope;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
 import com.oracle.truffle.llvm.parser.model.symbols.Symbols;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.InlineAsmConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.UndefinedConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.aggregate.AggregateConstant;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.AllocateInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.BinaryOperationInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.BranchInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.CallInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.CastInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CompareExchangeInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.CompareInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.ConditionalBranchInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractElementInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractValueInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.FenceInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.GetElementPointerInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.IndirectBranchInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertElementInstruction;
@@ -62,6 +72,7 @@ import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertValueInst
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.LoadInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.PhiInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ReadModifyWriteInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.ReturnInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.SelectInstruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.ShuffleVectorInstruction;
@@ -89,7 +100,12 @@ import com.oracle.truffle.llvm.runtime.types.symbols.LLVMIdentifier;
 import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
 import com.oracle.truffle.llvm.runtime.types.visitors.TypeVisitor;
 
+import at.pointhi.irbuilder.irbuilder.util.CallMarkers;
 import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+import at.pointhi.irbuilder.irbuilder.util.IntArrayBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+import at.pointhi.irbuilder.irbuilder.util.ModelIndex;
+import at.pointhi.irbuilder.irbuilder.util.OperationFlags;
 
 // TODO: https://github.com/pointhi/sulong/blob/1cc13ee850034242fd3406e29cd003b06f065c15/projects/com.oracle.truffle.llvm.writer/src/com/oracle/truffle/llvm/writer/facades/InstructionGeneratorFacade.java
 public class InstructionBuilder {
@@ -97,14 +113,36 @@ public class InstructionBuilder {
     public static final DataSpecConverter targetDataLayout = DataLayoutConverter.getConverter(x86TargetDataLayout);
 
     private final FunctionDefinition function;
+    private final ModelIndex index;
+    private final CallMarkers callMarkers;
 
     private InstructionBlock curBlock;
 
     private int counter = 1;
     private int argCounter = 1;
 
+    // reused for every instruction with a variable number of operands, to not allocate a new list
+    private final IntArrayBuilder operandBuffer = new IntArrayBuilder();
+
+    // phi instructions which still have incoming values which are not defined yet
+    private final Map<Instruction, PendingPhi> pendingPhis = new IdentityHashMap<>();
+
+    // musttail calls, which have to be verified when the function is finished
+    private final Map<Instruction, InstructionBlock> mustTailCalls = new IdentityHashMap<>();
+
     public InstructionBuilder(FunctionDefinition function) {
+        this(function, null, null);
+    }
+
+    /**
+     * @param index index of the module, where every created call is registered (can be null)
+     * @param callMarkers calling conventions and tail call markers of the module (can be null, in
+     *            which case only plain calls can be created)
+     */
+    public InstructionBuilder(FunctionDefinition function, ModelIndex index, CallMarkers callMarkers) {
         this.function = function;
+        this.index = index;
+        this.callMarkers = callMarkers;
         this.curBlock = function.generateBlock();
     }
 
@@ -127,7 +165,7 @@ public class InstructionBuilder {
         ensureBlockExists(nextBlockIdx);
 
         curBlock = function.generateBlock();
-        curBlock.setName("label_" + Integer.toString(nextBlockIdx));
+        curBlock.setName(ModelEditor.GENERATED_BLOCK_PREFIX + Integer.toString(nextBlockIdx));
         return curBlock;
     }
 
@@ -246,9 +284,34 @@ public class InstructionBuilder {
      * This function has to be called at the end of the definition, to adjust some internals.
      */
     public void exitFunction() {
+        if (!pendingPhis.isEmpty()) {
+            throw new AssertionError("function contains " + pendingPhis.size() + " phi instructions with undefined incoming values");
+        }
+        for (Map.Entry<Instruction, InstructionBlock> entry : mustTailCalls.entrySet()) {
+            verifyMustTailCall(entry.getKey(), entry.getValue());
+        }
         function.exitFunction();
     }
 
+    /**
+     * A musttail call has to be followed by a return of its value, and needs to use the same
+     * calling convention as the caller.
+     */
+    private void verifyMustTailCall(Instruction call, InstructionBlock block) {
+        if (callMarkers.getCallingConvention(call) != callMarkers.getCallingConvention(function)) {
+            throw new AssertionError("musttail call needs the calling convention of the caller");
+        }
+        final List<Instruction> instructions = ModelEditor.getInstructions(block);
+        final int idx = instructions.indexOf(call);
+        if (idx + 1 >= instructions.size() || !(instructions.get(idx + 1) instanceof ReturnInstruction)) {
+            throw new AssertionError("musttail call is not followed by a return");
+        }
+        final Symbol retValue = ((ReturnInstruction) instructions.get(idx + 1)).getValue();
+        if (retValue != null && retValue != call) {
+            throw new AssertionError("musttail call is followed by a return of another value");
+        }
+    }
+
     public FunctionDefinition getFunctionDefinition() {
         return function;
     }
@@ -298,6 +361,26 @@ public class InstructionBuilder {
         return align == 0 ? 0 : Integer.numberOfTrailingZeros(align) + 1;
     }
 
+    /**
+     * Create a constant vector or array, like <code>&lt;2 x i32&gt; &lt;i32 1, i32 2&gt;</code>.
+     * Elements which are null are undefined.
+     */
+    public Constant createAggregateConstant(AggregateType type, Constant[] elements) {
+        if (elements.length != type.getNumberOfElements()) {
+            throw new AssertionError("expected " + type.getNumberOfElements() + " elements for " + type + ", got " + elements.length);
+        }
+        int[] elementsIdx = new int[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            final Type elementType = type.getElementType(i);
+            final Constant element = elements[i] != null ? elements[i] : new UndefinedConstant(elementType);
+            if (!element.getType().equals(elementType)) {
+                throw new AssertionError("Cannot use an element with the type " + element.getType() + " at index " + i + " of " + type);
+            }
+            elementsIdx[i] = addSymbol(element);
+        }
+        return AggregateConstant.fromSymbols(getSymbols(), type, elementsIdx);
+    }
+
     public Instruction createAllocate(Type type) {
         Type pointerType = new PointerType(type);
         int count = addSymbol(ConstantUtil.getI32Const(1));
@@ -307,7 +390,7 @@ public class InstructionBuilder {
         return appendAndReturnInstruction(instr);
     }
 
-    public Instruction createAtomicLoad(Type type, Instruction source, int align, boolean isVolatile, long atomicOrdering, long synchronizationScope) {
+    public Instruction createAtomicLoad(Type type, Symbol source, int align, boolean isVolatile, long atomicOrdering, long synchronizationScope) {
         int sourceIdx = addSymbol(source);
 
         Instruction instr = LoadInstruction.fromSymbols(getSymbols(), type, sourceIdx, calculateAlign(align), isVolatile, atomicOrdering, synchronizationScope);
@@ -322,9 +405,69 @@ public class InstructionBuilder {
         return appendAndReturnInstruction(instr);
     }
 
+    /**
+     * Create an atomicrmw instruction, which returns the value stored at the pointer before the
+     * operation.
+     */
+    public Instruction createReadModifyWrite(ReadModifyWriteOperator op, Symbol ptr, Symbol value, boolean isVolatile, AtomicOrdering ordering, SynchronizationScope scope) {
+        if (ordering == AtomicOrdering.NOT_ATOMIC || ordering == AtomicOrdering.UNORDERED) {
+            throw new AssertionError("invalid ordering for atomicrmw: " + ordering);
+        }
+        int ptrIdx = addSymbol(ptr);
+        int valueIdx = addSymbol(value);
+
+        Instruction instr = ReadModifyWriteInstruction.fromSymbols(getSymbols(), value.getType(), ptrIdx, valueIdx, op.ordinal(), isVolatile, ordering.ordinal(), scope.ordinal());
+        return appendAndReturnInstruction(instr);
+    }
+
+    /**
+     * Create a cmpxchg instruction, which returns a <code>{ ty, i1 }</code> structure containing
+     * the loaded value and a flag if the exchange succeeded.
+     *
+     * A weak cmpxchg is allowed to fail spuriously, which allows a cheaper implementation inside
+     * of a retry loop.
+     */
+    public Instruction createCompareExchange(Symbol ptr, Symbol cmp, Symbol replace, boolean isWeak, boolean isVolatile, AtomicOrdering successOrdering, AtomicOrdering failureOrdering,
+                    SynchronizationScope scope) {
+        if (successOrdering.ordinal() < AtomicOrdering.MONOTONIC.ordinal() || failureOrdering.ordinal() < AtomicOrdering.MONOTONIC.ordinal()) {
+            throw new AssertionError("cmpxchg orderings need to be at least monotonic");
+        }
+        if (failureOrdering == AtomicOrdering.RELEASE || failureOrdering == AtomicOrdering.ACQUIRE_RELEASE) {
+            throw new AssertionError("invalid failure ordering for cmpxchg: " + failureOrdering);
+        }
+        if (failureOrdering.ordinal() > successOrdering.ordinal() && !(successOrdering == AtomicOrdering.RELEASE && failureOrdering == AtomicOrdering.MONOTONIC)) {
+            throw new AssertionError("failure ordering " + failureOrdering + " is stronger than success ordering " + successOrdering);
+        }
+        StructureType type = new StructureType(false, new Type[]{cmp.getType(), PrimitiveType.I1});
+        int ptrIdx = addSymbol(ptr);
+        int cmpIdx = addSymbol(cmp);
+        int replaceIdx = addSymbol(replace);
+
+        Instruction instr = CompareExchangeInstruction.fromSymbols(getSymbols(), type, ptrIdx, cmpIdx, replaceIdx, isVolatile, successOrdering.ordinal(), scope.ordinal(),
+                        failureOrdering.ordinal(), isWeak);
+        return appendAndReturnInstruction(instr);
+    }
+
+    public Instruction createFence(AtomicOrdering ordering, SynchronizationScope scope) {
+        if (ordering.ordinal() < AtomicOrdering.ACQUIRE.ordinal()) {
+            throw new AssertionError("invalid ordering for fence: " + ordering);
+        }
+        Instruction instr = FenceInstruction.generate(ordering.ordinal(), scope.ordinal());
+        return appendAndReturnInstruction(instr);
+    }
+
     public Instruction createBinaryOperation(Symbol lhs, Symbol rhs, BinaryOperator op) {
+        return createBinaryOperation(lhs, rhs, op, OperationFlags.NONE);
+    }
+
+    /**
+     * Create a binary operation with flags like nsw or fast.
+     *
+     * @param flagbits combination of {@link OperationFlags}
+     */
+    public Instruction createBinaryOperation(Symbol lhs, Symbol rhs, BinaryOperator op, int flagbits) {
+        OperationFlags.checkFlags(op, flagbits);
         Type type = lhs.getType();
-        int flagbits = 0; // TODO: flags are not supported yet
         int lhsIdx = addSymbol(lhs);
         int rhsIdx = addSymbol(rhs);
 
@@ -345,6 +488,25 @@ public class InstructionBuilder {
     }
 
     public Instruction createCall(Symbol target, Symbol[] arguments) {
+        return createCall(target, arguments, AttributesCodeEntry.EMPTY);
+    }
+
+    /**
+     * Create a call which is marked as tail, musttail or notail call.
+     */
+    public Instruction createCall(Symbol target, Symbol[] arguments, AttributesCodeEntry attributes, CallMarkers.TailCall tailCall) {
+        if (callMarkers == null) {
+            throw new AssertionError("tail call markers are only supported with the call markers of the module");
+        }
+        final Instruction instr = createCall(target, arguments, attributes);
+        callMarkers.setTailCall(instr, tailCall);
+        if (tailCall == CallMarkers.TailCall.MUSTTAIL) {
+            mustTailCalls.put(instr, curBlock);
+        }
+        return instr;
+    }
+
+    public Instruction createCall(Symbol target, Symbol[] arguments, AttributesCodeEntry attributes) {
         final FunctionType functionType;
         if (target.getType() instanceof FunctionType) {
             functionType = ((FunctionType) target.getType());
@@ -354,6 +516,9 @@ public class InstructionBuilder {
                 pointeeType = ((LoadInstruction) target).getSource().getType();
             } else if (target instanceof InlineAsmConstant) {
                 pointeeType = ((InlineAsmConstant) target).getType();
+            } else if (target.getType() instanceof PointerType) {
+                // function pointer which is passed as parameter or merged by a phi
+                pointeeType = target.getType();
             } else {
                 throw new RuntimeException("cannot handle target type: " + target.getClass().getName());
             }
@@ -378,9 +543,16 @@ public class InstructionBuilder {
 
         Instruction instr;
         if (VoidType.INSTANCE.equals(returnType)) {
-            instr = VoidCallInstruction.fromSymbols(getSymbols(), targetIdx, argumentsIdx, AttributesCodeEntry.EMPTY);
+            instr = VoidCallInstruction.fromSymbols(getSymbols(), targetIdx, argumentsIdx, attributes);
         } else {
-            instr = CallInstruction.fromSymbols(getSymbols(), returnType, targetIdx, argumentsIdx, AttributesCodeEntry.EMPTY);
+            instr = CallInstruction.fromSymbols(getSymbols(), returnType, targetIdx, argumentsIdx, attributes);
+        }
+        if (callMarkers != null) {
+            // calling a function with another calling convention is undefined behaviour
+            callMarkers.setCallingConvention(instr, callMarkers.getCallingConvention(target));
+        }
+        if (index != null) {
+            index.addCallSite(function, instr);
         }
         return appendAndReturnInstruction(instr);
     }
@@ -401,16 +573,15 @@ public class InstructionBuilder {
         return appendAndReturnInstruction(instr);
     }
 
-    public Instruction createExtractValue(@SuppressWarnings("unused") Instruction struct, Symbol vector, int index) {
-        Type type = ((AggregateType) vector.getType()).getElementType(index); // TODO: correct?
-        int vectorIdx = addSymbol(vector);
-        int indexIdx = addSymbol(ConstantUtil.getI32Const(index));
+    public Instruction createExtractValue(Symbol aggregate, int index) {
+        Type type = ((AggregateType) aggregate.getType()).getElementType(index);
+        int aggregateIdx = addSymbol(aggregate);
 
-        Instruction instr = ExtractElementInstruction.fromSymbols(getSymbols(), type, vectorIdx, indexIdx);
+        Instruction instr = ExtractValueInstruction.fromSymbols(getSymbols(), type, aggregateIdx, index);
         return appendAndReturnInstruction(instr);
     }
 
-    public Instruction createExtractElement(Instruction vector, int index) {
+    public Instruction createExtractElement(Symbol vector, int index) {
         Type type = ((AggregateType) vector.getType()).getElementType(index);
         int vectorIdx = addSymbol(vector);
         int indexIdx = addSymbol(ConstantUtil.getI32Const(index));
@@ -421,17 +592,18 @@ public class InstructionBuilder {
 
     public Instruction createGetElementPointer(Symbol base, Symbol[] indices, boolean isInbounds) {
         int pointerIdx = addSymbol(base);
-        List<Integer> indicesIdx = new ArrayList<>(indices.length);
+        operandBuffer.clear();
         Type instrType = base.getType();
         for (int i = 0; i < indices.length; i++) {
-            indicesIdx.add(addSymbol(indices[i]));
+            operandBuffer.add(addSymbol(indices[i]));
 
             GetElementPointerTypeVisitor localTypeVisitor = new GetElementPointerTypeVisitor(instrType, indices[i]);
             instrType.accept(localTypeVisitor);
             instrType = localTypeVisitor.getNewType();
         }
 
-        Instruction instr = GetElementPointerInstruction.fromSymbols(getSymbols(), new PointerType(instrType), pointerIdx, indicesIdx, isInbounds);
+        // the indexes are resolved to symbols immediately, so the reused buffer can be passed as view
+        Instruction instr = GetElementPointerInstruction.fromSymbols(getSymbols(), new PointerType(instrType), pointerIdx, operandBuffer.asList(), isInbounds);
         return appendAndReturnInstruction(instr);
     }
 
@@ -486,14 +658,17 @@ public class InstructionBuilder {
     }
 
     public Instruction createIndirectBranch(Symbol address, InstructionBlock[] successors) {
-        int[] successorsIdx = Arrays.stream(successors).mapToInt(f -> f.getBlockIndex()).toArray();
+        int[] successorsIdx = new int[successors.length];
+        for (int i = 0; i < successors.length; i++) {
+            successorsIdx[i] = successors[i].getBlockIndex();
+        }
         int addressIdx = addSymbol(address);
 
         Instruction instr = IndirectBranchInstruction.generate(function, addressIdx, successorsIdx);
         return appendAndReturnInstruction(instr);
     }
 
-    public Instruction createInsertElement(Instruction vector, Constant value, int index) {
+    public Instruction createInsertElement(Symbol vector, Symbol value, int index) {
         Type type = vector.getType();
         int vectorIdx = addSymbol(vector);
         int valueIdx = addSymbol(value);
@@ -523,15 +698,101 @@ public class InstructionBuilder {
         return appendAndReturnInstruction(instr);
     }
 
+    /**
+     * Create a new phi instruction. Incoming values which are not defined yet can be passed as
+     * null, and have to be set using {@link #setPhiValue} before the block is sealed.
+     */
     public Instruction createPhi(Type type, Symbol[] values, InstructionBlock[] blocks) {
         assert values.length == blocks.length;
 
         int[] valuesIdx = new int[values.length];
+        Symbol[] placeholders = null;
+        for (int i = 0; i < values.length; i++) {
+            Symbol value = values[i];
+            if (value == null) {
+                if (placeholders == null) {
+                    placeholders = new Symbol[values.length];
+                }
+                // every forward reference needs its own placeholder, so we can replace them one by one
+                value = new UndefinedConstant(type);
+                placeholders[i] = value;
+            }
+            valuesIdx[i] = addSymbol(value);
+        }
 
         Instruction instr = PhiInstruction.generate(function, type, valuesIdx, blocks);
+        if (placeholders != null) {
+            pendingPhis.put(instr, new PendingPhi(curBlock, placeholders));
+        }
         return appendAndReturnInstruction(instr);
     }
 
+    /**
+     * Set an incoming value of a phi instruction which was not known when the phi was created.
+     */
+    public void setPhiValue(Instruction phi, InstructionBlock block, Symbol value) {
+        final PendingPhi pending = pendingPhis.get(phi);
+        if (pending == null) {
+            throw new AssertionError("phi has no undefined incoming values: " + phi);
+        }
+
+        final PhiInstruction phiInstr = (PhiInstruction) phi;
+        for (int i = 0; i < phiInstr.getSize(); i++) {
+            final Symbol placeholder = pending.placeholders[i];
+            if (placeholder != null && phiInstr.getBlock(i) == block) {
+                if (!value.getType().equals(phiInstr.getType())) {
+                    throw new AssertionError("type of incoming value does not match the phi: " + value.getType() + " vs " + phiInstr.getType());
+                }
+                phiInstr.replace(placeholder, value);
+                pending.placeholders[i] = null;
+                if (pending.isComplete()) {
+                    pendingPhis.remove(phi);
+                }
+                return;
+            }
+        }
+        throw new AssertionError("phi has no undefined incoming value for block " + block.getName());
+    }
+
+    /**
+     * Declare that all incoming values of the phi instructions inside a block are known.
+     *
+     * @throws AssertionError if there is still a phi instruction with an undefined incoming value
+     */
+    public void sealBlock(InstructionBlock block) {
+        for (PendingPhi pending : pendingPhis.values()) {
+            if (pending.block == block) {
+                throw new AssertionError("block " + block.getName() + " still has a phi with undefined incoming values");
+            }
+        }
+    }
+
+    /**
+     * Get all phi instructions which still wait for some of their incoming values.
+     */
+    public List<Instruction> getIncompletePhis() {
+        return new ArrayList<>(pendingPhis.keySet());
+    }
+
+    private static final class PendingPhi {
+        private final InstructionBlock block;
+        private final Symbol[] placeholders;
+
+        private PendingPhi(InstructionBlock block, Symbol[] placeholders) {
+            this.block = block;
+            this.placeholders = placeholders;
+        }
+
+        private boolean isComplete() {
+            for (Symbol placeholder : placeholders) {
+                if (placeholder != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     public Instruction createReturn() {
         Instruction instr = ReturnInstruction.generate();
         return appendAndReturnInstruction(instr);
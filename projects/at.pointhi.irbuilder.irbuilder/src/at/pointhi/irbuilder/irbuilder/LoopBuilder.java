@@ -0,0 +1,517 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.oracle.truffle.llvm.parser.metadata.MDBaseNode;
+import com.oracle.truffle.llvm.parser.metadata.MDNode;
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+import at.pointhi.irbuilder.irbuilder.util.MetadataBuilder;
+import at.pointhi.irbuilder.irbuilder.util.OperationFlags;
+
+/**
+ * Builder for counted loops, in the canonical form which is expected by the loop optimizations of
+ * LLVM:
+ *
+ * <pre>
+ * guard:     %enter = icmp slt %start, %end     ; omitted if the loop is always entered
+ *            br i1 %enter, label %preheader, label %exit
+ * preheader: br label %header
+ * header:    %iv = phi [ %start, %preheader ], [ %iv.next, %latch ]
+ *            ...                                 ; loop body
+ *            br label %latch
+ * latch:     %iv.next = add %iv, step
+ *            %cond = icmp slt %iv.next, %end
+ *            br i1 %cond, label %header, label %exit, !llvm.loop !0
+ * exit:
+ * </pre>
+ *
+ * The blocks of the loop are inserted after the current block. Like every other constructed node,
+ * a loop body which requires additional blocks has to insert them using
+ * {@link SimpleInstrunctionBuilder#insertBlocks} before using them. After the loop was built, the
+ * builder points to the exit block.
+ */
+public final class LoopBuilder {
+
+    /**
+     * Callback to emit the body of the loop.
+     */
+    @FunctionalInterface
+    public interface LoopBody {
+        void build(SimpleInstrunctionBuilder instr, Instruction inductionVariable);
+    }
+
+    /**
+     * Callback to emit a loop body which handles multiple consecutive iterations at once.
+     *
+     * The body is built twice: once with the vector width for the main loop, and once with a width
+     * of 1 for the scalar epilogue. {@link LoopBuilder#widen} returns the type of a value for a
+     * given width.
+     */
+    @FunctionalInterface
+    public interface WideLoopBody {
+        void build(SimpleInstrunctionBuilder instr, Instruction firstIndex, int width);
+    }
+
+    private static final String VECTORIZE_HINT_PREFIX = "llvm.loop.vectorize.";
+    private static final String INTERLEAVE_HINT_PREFIX = "llvm.loop.interleave.";
+
+    private final SimpleInstrunctionBuilder instr;
+    private final Type indexType;
+
+    private Symbol start;
+    private Symbol end;
+    private Long tripCount;
+    private long step = 1;
+    private boolean unsigned = false;
+
+    private final List<String> hintNames = new ArrayList<>();
+    private final List<Symbol> hintValues = new ArrayList<>();
+
+    public LoopBuilder(SimpleInstrunctionBuilder instr, Type indexType) {
+        if (!Type.isIntegerType(indexType)) {
+            throw new AssertionError("induction variable needs to be an integer: " + indexType);
+        }
+        this.instr = instr;
+        this.indexType = indexType;
+        this.start = ConstantUtil.getConst(indexType, 0);
+    }
+
+    public LoopBuilder setStart(Symbol value) {
+        checkIndexType(value);
+        this.start = value;
+        return this;
+    }
+
+    public LoopBuilder setStart(long value) {
+        return setStart(ConstantUtil.getConst(indexType, value));
+    }
+
+    /**
+     * Set the exclusive bound of the induction variable.
+     */
+    public LoopBuilder setEnd(Symbol value) {
+        checkIndexType(value);
+        this.end = value;
+        this.tripCount = null;
+        return this;
+    }
+
+    public LoopBuilder setEnd(long value) {
+        return setEnd(ConstantUtil.getConst(indexType, value));
+    }
+
+    /**
+     * Set the number of iterations, which defines the end as <code>start + tripCount * step</code>.
+     */
+    public LoopBuilder setTripCount(long value) {
+        if (value < 0) {
+            throw new AssertionError("trip count cannot be negative: " + value);
+        }
+        this.tripCount = value;
+        this.end = null;
+        return this;
+    }
+
+    public LoopBuilder setStep(long value) {
+        if (value == 0) {
+            throw new AssertionError("step of a loop cannot be zero");
+        }
+        this.step = value;
+        return this;
+    }
+
+    /**
+     * Compare the induction variable unsigned instead of signed against the end.
+     */
+    public LoopBuilder setUnsigned(boolean value) {
+        this.unsigned = value;
+        return this;
+    }
+
+    /**
+     * Add a loop hint like <code>!{!"llvm.loop.unroll.disable"}</code>.
+     */
+    public LoopBuilder addHint(String name) {
+        hintNames.add(name);
+        hintValues.add(null);
+        return this;
+    }
+
+    /**
+     * Add a loop hint like <code>!{!"llvm.loop.vectorize.enable", i1 true}</code>.
+     */
+    public LoopBuilder addHint(String name, boolean value) {
+        hintNames.add(name);
+        hintValues.add(ConstantUtil.getI1Const(value));
+        return this;
+    }
+
+    /**
+     * Add a loop hint like <code>!{!"llvm.loop.vectorize.width", i32 4}</code>.
+     */
+    public LoopBuilder addHint(String name, int value) {
+        hintNames.add(name);
+        hintValues.add(ConstantUtil.getI32Const(value));
+        return this;
+    }
+
+    public LoopBuilder setVectorizeWidth(int width) {
+        return addHint("llvm.loop.vectorize.width", width);
+    }
+
+    public LoopBuilder setInterleaveCount(int count) {
+        return addHint("llvm.loop.interleave.count", count);
+    }
+
+    public LoopBuilder setUnrollCount(int count) {
+        return addHint("llvm.loop.unroll.count", count);
+    }
+
+    public LoopBuilder disableUnroll() {
+        return addHint("llvm.loop.unroll.disable");
+    }
+
+    public LoopBuilder setDistribute(boolean value) {
+        return addHint("llvm.loop.distribute.enable", value);
+    }
+
+    private void checkIndexType(Symbol value) {
+        if (!value.getType().equals(indexType)) {
+            throw new AssertionError("value does not match the type of the induction variable: " + value.getType() + " != " + indexType);
+        }
+    }
+
+    private CompareOperator getCompareOperator() {
+        if (step > 0) {
+            return unsigned ? CompareOperator.INT_UNSIGNED_LESS_THAN : CompareOperator.INT_SIGNED_LESS_THAN;
+        } else {
+            return unsigned ? CompareOperator.INT_UNSIGNED_GREATER_THAN : CompareOperator.INT_SIGNED_GREATER_THAN;
+        }
+    }
+
+    /**
+     * Get the flags of the increment of the induction variable. The latch is only reached with a
+     * value which is strictly before the end, so a step of 1 towards the end cannot wrap. This does
+     * not hold for larger steps, which could overshoot the limit of the type, or for a negative step
+     * of an unsigned loop, which is an addition of a large unsigned value. A constant end at the
+     * limit of the type is not flagged either, to stay on the safe side.
+     */
+    private int getWrapFlags(Symbol endValue) {
+        if (step != 1 && step != -1) {
+            return 0;
+        } else if (unsigned) {
+            return step == 1 && !isConstant(endValue, getUnsignedMax()) ? OperationFlags.NO_UNSIGNED_WRAP : 0;
+        } else {
+            return !isConstant(endValue, step == 1 ? getSignedMax() : getSignedMin()) ? OperationFlags.NO_SIGNED_WRAP : 0;
+        }
+    }
+
+    private long getSignedMax() {
+        return getUnsignedMax() >>> 1;
+    }
+
+    private long getSignedMin() {
+        return ~getSignedMax();
+    }
+
+    private long getUnsignedMax() {
+        final int bits = indexType.getBitSize();
+        return bits >= Long.SIZE ? -1L : (1L << bits) - 1;
+    }
+
+    private boolean isConstant(Symbol value, long expected) {
+        if (!(value instanceof IntegerConstant)) {
+            return false;
+        }
+        final int bits = indexType.getBitSize();
+        final long mask = bits >= Long.SIZE ? -1L : (1L << bits) - 1;
+        return (((IntegerConstant) value).getValue() & mask) == (expected & mask);
+    }
+
+    private static boolean isTrue(Symbol value) {
+        return value instanceof IntegerConstant && ((IntegerConstant) value).getValue() != 0;
+    }
+
+    private static boolean isFalse(Symbol value) {
+        return value instanceof IntegerConstant && ((IntegerConstant) value).getValue() == 0;
+    }
+
+    /**
+     * Get the type which holds a value for the given number of iterations.
+     */
+    public static Type widen(Type type, int width) {
+        return width == 1 ? type : new VectorType(type, width);
+    }
+
+    private Symbol getEndValue() {
+        if (tripCount != null) {
+            return instr.binaryOperatorFolded(BinaryOperator.INT_ADD, start, ConstantUtil.getConst(indexType, tripCount * step));
+        } else if (end != null) {
+            return end;
+        } else {
+            throw new AssertionError("neither the end nor the trip count of the loop is set");
+        }
+    }
+
+    public Loop build(LoopBody body) {
+        final Symbol endValue = getEndValue();
+        final CompareOperator compareOp = getCompareOperator();
+
+        final Symbol enter = instr.compareFolded(compareOp, start, endValue);
+        final boolean needsGuard = !isTrue(enter);
+
+        // all blocks are allocated upfront, so we can reference them before they are built
+        instr.insertBlocks(needsGuard ? 4 : 3);
+        final int firstIdx = instr.getCurrentBlock().getBlockIndex() + 1;
+        final InstructionBlock preheader = needsGuard ? instr.getBlock(firstIdx) : instr.getCurrentBlock();
+        final InstructionBlock header = instr.getBlock(needsGuard ? firstIdx + 1 : firstIdx);
+        final InstructionBlock latch = instr.getBlock(header.getBlockIndex() + 1);
+        final InstructionBlock exit = instr.getBlock(header.getBlockIndex() + 2);
+
+        if (needsGuard) {
+            instr.branch(enter, preheader, exit);
+            instr.nextBlock();
+            assert instr.getCurrentBlock() == preheader;
+        }
+        instr.jump(header);
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == header;
+
+        final Instruction inductionVariable = instr.phi(indexType, new Symbol[]{start, null}, new InstructionBlock[]{preheader, latch});
+
+        body.build(instr, inductionVariable);
+
+        instr.jump(latch);
+        instr.nextBlock();
+        if (instr.getCurrentBlock() != latch) {
+            throw new AssertionError("the loop body has to insert the blocks it uses");
+        }
+
+        final int wrapFlags = getWrapFlags(endValue);
+        final Instruction next = instr.binaryOperator(BinaryOperator.INT_ADD, wrapFlags, inductionVariable, ConstantUtil.getConst(indexType, step));
+        instr.setPhiValue(inductionVariable, latch, next);
+        instr.sealBlock(header);
+        final Instruction cond = instr.compare(compareOp, next, endValue);
+        final Instruction backedge = instr.branch(cond, header, exit);
+        final MDNode loopId = attachLoopId(backedge);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == exit;
+
+        return new Loop(preheader, header, latch, exit, inductionVariable, next, loopId);
+    }
+
+    /**
+     * Build the loop with a body which is unrolled by the given factor, followed by a remainder
+     * loop which executes the iterations that are left.
+     */
+    public SplitLoop buildUnrolled(int factor, LoopBody body) {
+        return buildSplit(factor, (b, iv) -> {
+            body.build(b, iv);
+            for (int i = 1; i < factor; i++) {
+                body.build(b, b.binaryOperator(BinaryOperator.INT_ADD, iv, ConstantUtil.getConst(indexType, i * step)));
+            }
+        }, body);
+    }
+
+    /**
+     * Build the loop with a body which handles <code>width</code> iterations at once using vector
+     * operations, followed by a scalar epilogue which executes the iterations that are left.
+     */
+    public SplitLoop buildVectorized(int width, WideLoopBody body) {
+        return buildSplit(width, (b, iv) -> body.build(b, iv, width), (b, iv) -> body.build(b, iv, 1));
+    }
+
+    private SplitLoop buildSplit(int factor, LoopBody mainBody, LoopBody remainderBody) {
+        if (factor < 1) {
+            throw new AssertionError("invalid factor: " + factor);
+        }
+        if (step < 0) {
+            throw new AssertionError("only loops with a positive step can be split");
+        }
+
+        final Symbol endValue = getEndValue();
+        final CompareOperator compareOp = getCompareOperator();
+        final Symbol chunk = ConstantUtil.getConst(indexType, step * factor);
+
+        // the main loop executes a multiple of the factor, which is folded for constant bounds
+        final BinaryOperator remainderOp = unsigned ? BinaryOperator.INT_UNSIGNED_REMAINDER : BinaryOperator.INT_SIGNED_REMAINDER;
+        Symbol span = instr.binaryOperatorFolded(BinaryOperator.INT_SUBTRACT, endValue, start);
+        if (unsigned) {
+            // an empty loop would wrap around, and result in a huge span
+            final Symbol entered = instr.compareFolded(compareOp, start, endValue);
+            if (isFalse(entered)) {
+                span = ConstantUtil.getConst(indexType, 0);
+            } else if (!isTrue(entered)) {
+                span = instr.select(indexType, entered, span, ConstantUtil.getConst(indexType, 0));
+            }
+        }
+        final Symbol rest = instr.binaryOperatorFolded(remainderOp, span, chunk);
+        final Symbol mainEnd = instr.binaryOperatorFolded(BinaryOperator.INT_SUBTRACT, endValue, rest);
+
+        Loop mainLoop = null;
+        if (!isFalse(instr.compareFolded(compareOp, start, mainEnd))) {
+            mainLoop = createSubLoop(start, mainEnd, step * factor, false).build(mainBody);
+        }
+
+        Loop remainderLoop = null;
+        if (!isFalse(instr.compareFolded(compareOp, mainEnd, endValue))) {
+            remainderLoop = createSubLoop(mainEnd, endValue, step, true).build(remainderBody);
+        }
+
+        return new SplitLoop(mainLoop, remainderLoop);
+    }
+
+    /**
+     * Create a loop which executes a part of the iterations. The remainder loop executes less
+     * iterations than the factor, so it must not be vectorized again, and does not get the
+     * vectorization hints of the main loop.
+     */
+    private LoopBuilder createSubLoop(Symbol subStart, Symbol subEnd, long subStep, boolean isRemainder) {
+        final LoopBuilder loop = new LoopBuilder(instr, indexType).setStart(subStart).setEnd(subEnd).setStep(subStep).setUnsigned(unsigned);
+        for (int i = 0; i < hintNames.size(); i++) {
+            final String name = hintNames.get(i);
+            if (!isRemainder || !(name.startsWith(VECTORIZE_HINT_PREFIX) || name.startsWith(INTERLEAVE_HINT_PREFIX))) {
+                loop.hintNames.add(name);
+                loop.hintValues.add(hintValues.get(i));
+            }
+        }
+        if (isRemainder) {
+            loop.addHint(VECTORIZE_HINT_PREFIX + "enable", false);
+        }
+        return loop;
+    }
+
+    private MDNode attachLoopId(Instruction backedge) {
+        final MetadataBuilder metadata = instr.getModelBuilder().getMetadataBuilder();
+
+        final MDBaseNode[] hints = new MDBaseNode[hintNames.size()];
+        for (int i = 0; i < hints.length; i++) {
+            final MDBaseNode name = metadata.getString(hintNames.get(i));
+            final Symbol value = hintValues.get(i);
+            hints[i] = value == null ? metadata.createNode(name) : metadata.createNode(name, metadata.createValue(value));
+        }
+
+        final MDNode loopId = metadata.createSelfReferencingNode(hints);
+        metadata.attach(backedge, "llvm.loop", loopId);
+        return loopId;
+    }
+
+    /**
+     * Blocks and values of a built loop.
+     */
+    public static final class Loop {
+        private final InstructionBlock preheader;
+        private final InstructionBlock header;
+        private final InstructionBlock latch;
+        private final InstructionBlock exit;
+        private final Instruction inductionVariable;
+        private final Instruction nextInductionVariable;
+        private final MDNode loopId;
+
+        private Loop(InstructionBlock preheader, InstructionBlock header, InstructionBlock latch, InstructionBlock exit, Instruction inductionVariable, Instruction nextInductionVariable,
+                        MDNode loopId) {
+            this.preheader = preheader;
+            this.header = header;
+            this.latch = latch;
+            this.exit = exit;
+            this.inductionVariable = inductionVariable;
+            this.nextInductionVariable = nextInductionVariable;
+            this.loopId = loopId;
+        }
+
+        public InstructionBlock getPreheader() {
+            return preheader;
+        }
+
+        public InstructionBlock getHeader() {
+            return header;
+        }
+
+        public InstructionBlock getLatch() {
+            return latch;
+        }
+
+        public InstructionBlock getExit() {
+            return exit;
+        }
+
+        public Instruction getInductionVariable() {
+            return inductionVariable;
+        }
+
+        /**
+         * Value of the induction variable after the increment in the latch.
+         */
+        public Instruction getNextInductionVariable() {
+            return nextInductionVariable;
+        }
+
+        public MDNode getLoopId() {
+            return loopId;
+        }
+    }
+
+    /**
+     * A loop which was split into a main loop and a remainder loop. Each of them is null if it is
+     * known to never execute.
+     */
+    public static final class SplitLoop {
+        private final Loop mainLoop;
+        private final Loop remainderLoop;
+
+        private SplitLoop(Loop mainLoop, Loop remainderLoop) {
+            this.mainLoop = mainLoop;
+            this.remainderLoop = remainderLoop;
+        }
+
+        public Loop getMainLoop() {
+            return mainLoop;
+        }
+
+        public Loop getRemainderLoop() {
+            return remainderLoop;
+        }
+    }
+}
@@ -31,58 +31,245 @@
  */
 package at.pointhi.irbuilder.irbuilder;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
 import com.oracle.truffle.llvm.parser.model.ModelModule;
 import com.oracle.truffle.llvm.parser.model.attributes.AttributesCodeEntry;
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
 import com.oracle.truffle.llvm.parser.model.enums.Linkage;
 import com.oracle.truffle.llvm.parser.model.enums.Visibility;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDeclaration;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
 import com.oracle.truffle.llvm.parser.model.symbols.Symbols;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.StringConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalAlias;
 import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalValueSymbol;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalVariable;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.visitors.ModelVisitor;
 import com.oracle.truffle.llvm.runtime.types.ArrayType;
 import com.oracle.truffle.llvm.runtime.types.FunctionType;
 import com.oracle.truffle.llvm.runtime.types.PointerType;
 import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.StructureType;
 import com.oracle.truffle.llvm.runtime.types.Type;
 import com.oracle.truffle.llvm.runtime.types.symbols.LLVMIdentifier;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
 import com.oracle.truffle.llvm.runtime.types.symbols.ValueSymbol;
 
+import at.pointhi.irbuilder.irbuilder.util.AttributesBuilder;
+import at.pointhi.irbuilder.irbuilder.util.AttributesInterner;
+import at.pointhi.irbuilder.irbuilder.util.CallMarkers;
+import at.pointhi.irbuilder.irbuilder.util.ConstantOperands;
+import at.pointhi.irbuilder.irbuilder.util.InstructionOperands;
+import at.pointhi.irbuilder.irbuilder.util.MetadataBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+import at.pointhi.irbuilder.irbuilder.util.ModelIndex;
+import at.pointhi.irbuilder.irbuilder.util.TBAABuilder;
+import at.pointhi.irbuilder.irwriter.IRWriter;
+
 public class ModelModuleBuilder {
+    /*
+     * The ModelModule does not allow us to remove symbols.
+     *
+     * Because the required field is private, we rely on reflection for now.
+     */
+    private static final Field MODEL_GLOBALS;
+
+    static {
+        try {
+            MODEL_GLOBALS = ModelModule.class.getDeclaredField("globals");
+            MODEL_GLOBALS.setAccessible(true);
+        } catch (NoSuchFieldException | SecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private final ModelModule model;
 
+    private final ModelIndex index;
+
+    private MetadataBuilder metadataBuilder;
+    private TBAABuilder tbaaBuilder;
+
+    private final AttributesInterner attributesInterner = new AttributesInterner();
+    private final CallMarkers callMarkers = new CallMarkers();
+
+    private final Map<String, ValueSymbol> stringPool = new HashMap<>();
+    private final Set<Symbol> unnamedAddrGlobals = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int stringCounter = 0;
+
     public ModelModuleBuilder() {
         this(new ModelModule());
     }
 
     public ModelModuleBuilder(ModelModule model) {
         this.model = model;
+        // the model could already contain some symbols, which we need to know about
+        this.index = ModelIndex.create(model);
     }
 
     public ModelModule getModelModule() {
         return model;
     }
 
+    /**
+     * Get the lookup index of the model, which is updated for every symbol created by this builder.
+     */
+    public ModelIndex getModelIndex() {
+        return index;
+    }
+
+    /**
+     * Get the builder for metadata nodes of this model, which is created on first use.
+     */
+    public MetadataBuilder getMetadataBuilder() {
+        if (metadataBuilder == null) {
+            metadataBuilder = new MetadataBuilder(model);
+        }
+        return metadataBuilder;
+    }
+
+    /**
+     * Get the builder for type based alias analysis metadata, which uses the same root node as
+     * clang.
+     */
+    public TBAABuilder getTBAABuilder() {
+        if (tbaaBuilder == null) {
+            tbaaBuilder = new TBAABuilder(getMetadataBuilder(), "Simple C/C++ TBAA");
+        }
+        return tbaaBuilder;
+    }
+
+    /**
+     * Create a new builder for function, return value and parameter attributes. Identical groups are
+     * shared across the whole module.
+     */
+    public AttributesBuilder createAttributes() {
+        return new AttributesBuilder(attributesInterner);
+    }
+
     public FunctionDefinition createFunctionDefinition(String name, int blocks, FunctionType type) {
+        return createFunctionDefinition(name, blocks, type, AttributesCodeEntry.EMPTY);
+    }
+
+    public FunctionDefinition createFunctionDefinition(String name, int blocks, FunctionType type, AttributesCodeEntry attributes) {
+        checkFunctionNameIsFree(name);
         String globalName = LLVMIdentifier.toGlobalIdentifier(name);
-        FunctionDefinition definition = new FunctionDefinition(model, type, globalName, Linkage.EXTERNAL, AttributesCodeEntry.EMPTY);
+        FunctionDefinition definition = new FunctionDefinition(model, type, globalName, Linkage.EXTERNAL, attributes);
         definition.allocateBlocks(blocks);
 
         model.addFunctionDefinition(definition);
+        index.addFunctionDefinition(definition);
 
         return definition;
     }
 
     public FunctionDeclaration createFunctionDeclaration(String name, FunctionType type) {
+        return createFunctionDeclaration(name, type, AttributesCodeEntry.EMPTY);
+    }
+
+    public FunctionDeclaration createFunctionDeclaration(String name, FunctionType type, AttributesCodeEntry attributes) {
+        checkFunctionNameIsFree(name);
         String globalName = LLVMIdentifier.toGlobalIdentifier(name);
-        FunctionDeclaration declaration = new FunctionDeclaration(type, Linkage.EXTERNAL, AttributesCodeEntry.EMPTY);
+        FunctionDeclaration declaration = new FunctionDeclaration(type, Linkage.EXTERNAL, attributes);
         declaration.setName(globalName);
 
         model.addFunctionDeclaration(declaration);
+        index.addFunctionDeclaration(declaration);
 
         return declaration;
     }
 
+    /**
+     * Set the calling convention of a function definition or declaration. Calls which are created
+     * afterwards use the calling convention of their target.
+     */
+    public void setCallingConvention(Symbol function, CallMarkers.CallingConvention cc) {
+        callMarkers.setCallingConvention(function, cc);
+    }
+
+    /**
+     * Get the calling conventions and tail call markers of this module, see
+     * {@link #getAnnotations()} to pass them to the IRWriter.
+     */
+    public CallMarkers getCallMarkers() {
+        return callMarkers;
+    }
+
+    /**
+     * Get the information about the symbols of this module which is not stored in the model itself,
+     * like tail call markers, calling conventions and unnamed_addr. It has to be passed to the
+     * IRWriter together with the model, otherwise the information is lost in the written file.
+     */
+    public IRWriter.Annotations getAnnotations() {
+        return new IRWriter.Annotations() {
+            @Override
+            public String getTailCallMarker(Symbol call) {
+                return callMarkers.getTailCall(call).getIrString();
+            }
+
+            @Override
+            public String getCallingConvention(Symbol symbol) {
+                return callMarkers.getCallingConvention(symbol).getIrString();
+            }
+
+            @Override
+            public boolean isUnnamedAddr(Symbol global) {
+                return ModelModuleBuilder.this.isUnnamedAddr(global);
+            }
+        };
+    }
+
+    /**
+     * Lookup a function declaration which was already added to the model.
+     *
+     * @param name name of the function, without the global identifier prefix
+     * @param type exact type of the function
+     * @return the matching declaration, if there is one
+     */
+    public Optional<FunctionDeclaration> getFunctionDeclaration(String name, FunctionType type) {
+        final FunctionDeclaration declaration = index.getFunctionDeclaration(name);
+        if (declaration != null && declaration.getType().equals(type)) {
+            return Optional.of(declaration);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Get a function declaration with the given name and type. It's only created when it does not
+     * exist yet, which is the case we want for intrinsics and library functions.
+     *
+     * A module cannot contain two functions with the same name, so it's an error if the name is
+     * already used by a definition or by a declaration with another type.
+     */
+    public FunctionDeclaration getOrCreateFunctionDeclaration(String name, FunctionType type) {
+        final Optional<FunctionDeclaration> match = getFunctionDeclaration(name, type);
+        if (match.isPresent()) {
+            return match.get();
+        } else {
+            return createFunctionDeclaration(name, type);
+        }
+    }
+
+    private void checkFunctionNameIsFree(String name) {
+        final ValueSymbol existing = index.getFunction(name);
+        if (existing instanceof FunctionDefinition) {
+            throw new AssertionError("function is already defined: " + existing.getName());
+        } else if (existing != null) {
+            throw new AssertionError("function " + existing.getName() + " is already declared with type " + existing.getType());
+        }
+    }
+
     public ValueSymbol createGlobalConstant(String name, Type type, int valueIdx) {
         String globalName = LLVMIdentifier.toGlobalIdentifier(name);
         GlobalConstant global = GlobalConstant.create(type, valueIdx, 0, Linkage.INTERNAL.ordinal(), Visibility.DEFAULT.ordinal());
@@ -90,20 +277,205 @@ public class ModelModuleBuilder {
 
         model.addGlobalSymbol(global);
         model.exitModule();
+        index.addGlobal(global);
 
         return global;
     }
 
     public ValueSymbol createGlobalStringConstant(String name, String value) {
-        Type strType = new PointerType(new ArrayType(PrimitiveType.I8, value.length()));
+        return createGlobalStringConstant(name, value, false);
+    }
+
+    public ValueSymbol createGlobalStringConstant(String name, String value, boolean isCString) {
+        final int length = isCString ? value.length() + 1 : value.length();
+        Type strType = new PointerType(new ArrayType(PrimitiveType.I8, length));
 
         Symbols symbols = model.getSymbols();
-        symbols.addSymbol(new StringConstant(strType, value, false));
+        symbols.addSymbol(new StringConstant(strType, value, isCString));
 
         return createGlobalConstant(name, strType, symbols.getSize());
     }
 
+    /**
+     * Get a global string constant with the given content. Identical strings are only created once
+     * per module, and share the same global symbol afterwards.
+     *
+     * @param value content of the string
+     * @param isCString true if the string should be null terminated
+     * @return global constant which contains the requested string
+     */
+    public ValueSymbol getOrCreateGlobalStringConstant(String value, boolean isCString) {
+        return stringPool.computeIfAbsent(getStringPoolKey(value, isCString), k -> {
+            final ValueSymbol global = createGlobalStringConstant(getNextStringConstantName(), value, isCString);
+            setUnnamedAddr((GlobalValueSymbol) global);
+            return global;
+        });
+    }
+
+    private static String getStringPoolKey(String value, boolean isCString) {
+        return (isCString ? "c" : "s") + value;
+    }
+
+    private String getNextStringConstantName() {
+        String name;
+        do {
+            name = stringCounter == 0 ? ".str" : ".str." + stringCounter;
+            stringCounter++;
+        } while (index.getGlobal(name) != null);
+        return name;
+    }
+
+    /**
+     * Mark a global, so its address is not significant and only its content is. Such globals are
+     * written with unnamed_addr, and can be merged with other globals of the same content.
+     */
+    public void setUnnamedAddr(GlobalValueSymbol global) {
+        unnamedAddrGlobals.add(global);
+    }
+
+    public boolean isUnnamedAddr(Symbol global) {
+        return unnamedAddrGlobals.contains(global);
+    }
+
+    private boolean isMergeable(GlobalConstant constant) {
+        final Linkage linkage = constant.getLinkage();
+        return (linkage == Linkage.PRIVATE || linkage == Linkage.INTERNAL) && isUnnamedAddr(constant);
+    }
+
+    /**
+     * Merge all global string constants which have the same content. All instructions and global
+     * initializers which are referencing a duplicate are changed to use the first occurrence, and
+     * the duplicate itself is removed from the model.
+     *
+     * Like LLVM, only constants which are not visible outside of the module and whose address is
+     * not significant (see {@link #setUnnamedAddr}) are merged, because the addresses of other
+     * constants can be compared by the program.
+     *
+     * This should be called after all functions are built, because only instructions which already
+     * exist are updated.
+     *
+     * @return number of removed globals
+     */
+    public int mergeDuplicateStringConstants() {
+        final Map<String, GlobalConstant> canonicals = new HashMap<>();
+        final Map<Symbol, Symbol> replacements = new IdentityHashMap<>();
+        final List<FunctionDefinition> functions = new ArrayList<>();
+        final List<GlobalValueSymbol> globals = new ArrayList<>();
+
+        model.accept(new ModelVisitor() {
+            @Override
+            public void visit(GlobalConstant constant) {
+                globals.add(constant);
+                if (!(constant.getValue() instanceof StringConstant) || !isMergeable(constant)) {
+                    return;
+                }
+                final StringConstant str = (StringConstant) constant.getValue();
+                final String key = getStringPoolKey(str.getString(), str.isCString());
+                final GlobalConstant canonical = canonicals.putIfAbsent(key, constant);
+                if (canonical != null) {
+                    replacements.put(constant, canonical);
+                }
+            }
+
+            @Override
+            public void visit(GlobalVariable variable) {
+                globals.add(variable);
+            }
+
+            @Override
+            public void visit(GlobalAlias alias) {
+                globals.add(alias);
+            }
+
+            @Override
+            public void visit(FunctionDefinition function) {
+                functions.add(function);
+            }
+        });
+
+        if (replacements.isEmpty()) {
+            return 0; // nothing to do
+        }
+
+        final Set<Symbol> visitedConstants = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (FunctionDefinition function : functions) {
+            for (InstructionBlock block : function.getBlocks()) {
+                for (int i = 0; i < block.getInstructionCount(); i++) {
+                    final Instruction instr = block.getInstruction(i);
+                    for (Symbol op : InstructionOperands.get(instr)) {
+                        final Symbol replacement = replacements.get(op);
+                        if (replacement != null) {
+                            instr.replace(op, replacement);
+                        } else if (!(op instanceof GlobalValueSymbol)) {
+                            replaceInConstant(op, replacements, visitedConstants);
+                        }
+                    }
+                }
+            }
+            ModelEditor.replaceSymbols(function.getSymbols(), replacements);
+        }
+
+        for (GlobalValueSymbol global : globals) {
+            if (!replacements.containsKey(global)) {
+                replaceInConstant(global, replacements, visitedConstants);
+            }
+        }
+
+        /*
+         * The globals are resolved by their index into the symbol table, so the entries of the
+         * duplicates are replaced instead of removed.
+         */
+        ModelEditor.replaceSymbols(model.getSymbols(), replacements);
+        removeGlobals(replacements.keySet());
+
+        // later lookups should only return the remaining globals
+        for (Map.Entry<String, ValueSymbol> entry : stringPool.entrySet()) {
+            final Symbol replacement = replacements.get(entry.getValue());
+            if (replacement != null) {
+                entry.setValue((ValueSymbol) replacement);
+            }
+        }
+        for (Symbol removed : replacements.keySet()) {
+            index.removeGlobal((ValueSymbol) removed);
+            unnamedAddrGlobals.remove(removed);
+        }
+
+        return replacements.size();
+    }
+
+    /**
+     * Replace the references to duplicates in a global initializer or constant expression,
+     * including nested constant expressions.
+     */
+    private static void replaceInConstant(Symbol user, Map<Symbol, Symbol> replacements, Set<Symbol> visited) {
+        if (!visited.add(user)) {
+            return;
+        }
+        for (Symbol op : ConstantOperands.get(user)) {
+            final Symbol replacement = replacements.get(op);
+            if (replacement != null) {
+                user.replace(op, replacement);
+            } else if (!(op instanceof GlobalValueSymbol)) {
+                // other globals are handled on their own
+                replaceInConstant(op, replacements, visited);
+            }
+        }
+    }
+
+    private void removeGlobals(Set<Symbol> removedGlobals) {
+        try {
+            @SuppressWarnings("unchecked")
+            final List<Object> globals = (List<Object>) MODEL_GLOBALS.get(model);
+            globals.removeIf(removedGlobals::contains);
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void createType(Type type) {
         model.addGlobalType(type);
+        if (type instanceof StructureType) {
+            index.addStructureType((StructureType) type);
+        }
     }
 }
@@ -32,14 +32,20 @@
 package at.pointhi.irbuilder.irbuilder;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
+import com.oracle.truffle.llvm.parser.model.attributes.AttributesCodeEntry;
 import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.AtomicOrdering;
 import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
 import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
 import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.enums.ReadModifyWriteOperator;
+import com.oracle.truffle.llvm.parser.model.enums.SynchronizationScope;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.UndefinedConstant;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.TerminatingInstruction;
 import com.oracle.truffle.llvm.runtime.types.AggregateType;
@@ -52,14 +58,17 @@ import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
 
 import at.pointhi.irbuilder.irbuilder.helper.LLVMIntrinsics;
 import at.pointhi.irbuilder.irbuilder.helper.LLVMIntrinsics.VA_LIST_TAG_TYPE;
+import at.pointhi.irbuilder.irbuilder.util.CallMarkers;
+import at.pointhi.irbuilder.irbuilder.util.ConstantFolder;
 import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+import at.pointhi.irbuilder.irbuilder.util.OperationFlags;
 
 public class SimpleInstrunctionBuilder {
     private final ModelModuleBuilder modelBuilder;
     private final InstructionBuilder builder;
 
     public SimpleInstrunctionBuilder(ModelModuleBuilder modelBuilder, FunctionDefinition function) {
-        this(modelBuilder, new InstructionBuilder(function));
+        this(modelBuilder, new InstructionBuilder(function, modelBuilder.getModelIndex(), modelBuilder.getCallMarkers()));
     }
 
     public SimpleInstrunctionBuilder(ModelModuleBuilder modelBuilder, InstructionBuilder builder) {
@@ -71,6 +80,10 @@ public class SimpleInstrunctionBuilder {
         return builder;
     }
 
+    public ModelModuleBuilder getModelBuilder() {
+        return modelBuilder;
+    }
+
     public InstructionBlock nextBlock() {
         if (!(builder.getLastInstruction() instanceof TerminatingInstruction)) {
             throw new AssertionError("The last instruction of a block has to be a terminating instruction!");
@@ -112,8 +125,28 @@ public class SimpleInstrunctionBuilder {
         return builder.createAllocate(type);
     }
 
+    // Atomic Read Modify Write
+    public Instruction atomicRMW(ReadModifyWriteOperator op, Symbol ptr, Symbol value) {
+        return builder.createReadModifyWrite(op, ptr, value, false, AtomicOrdering.SEQUENTIALLY_CONSISTENT, SynchronizationScope.CROSS_THREAD);
+    }
+
+    /**
+     * Increment a shared counter without a retry loop, and return the value before the increment.
+     */
+    public Instruction atomicIncrement(Symbol ptr, long value) {
+        final Type type = ((PointerType) ptr.getType()).getPointeeType();
+        return builder.createReadModifyWrite(ReadModifyWriteOperator.ADD, ptr, ConstantUtil.getConst(type, value), false, AtomicOrdering.MONOTONIC, SynchronizationScope.CROSS_THREAD);
+    }
+
     // Binary Operator
     public Instruction binaryOperator(BinaryOperator op, Symbol lhs, Symbol rhs) {
+        return binaryOperator(op, OperationFlags.NONE, lhs, rhs);
+    }
+
+    /**
+     * Binary Operator with additional flags, which are a combination of {@link OperationFlags}.
+     */
+    public Instruction binaryOperator(BinaryOperator op, int flags, Symbol lhs, Symbol rhs) {
         if (!lhs.getType().equals(rhs.getType())) {
             throw new AssertionError("Both arguments must have same type! (" + lhs.getType() + " != " + rhs.getType() + ")");
         }
@@ -124,7 +157,19 @@ public class SimpleInstrunctionBuilder {
         if (!op.isFloatingPoint() && (Type.isFloatingpointType(type) || (type instanceof VectorType && Type.isFloatingpointType(((VectorType) type).getElementType())))) {
             throw new AssertionError("You cannot use Integer operators with Floating Point Variables!");
         }
-        return builder.createBinaryOperation(lhs, rhs, op);
+        return builder.createBinaryOperation(lhs, rhs, op, flags);
+    }
+
+    /**
+     * Binary Operator which is evaluated at build time if both operands are constants. In this case
+     * no instruction is emitted, and the resulting constant is returned instead.
+     */
+    public Symbol binaryOperatorFolded(BinaryOperator op, Symbol lhs, Symbol rhs) {
+        final Constant folded = ConstantFolder.fold(op, lhs, rhs);
+        if (folded != null) {
+            return folded;
+        }
+        return binaryOperator(op, lhs, rhs);
     }
 
     public Instruction binaryOperator(BinaryOperator op, boolean lhs, Symbol rhs) {
@@ -168,11 +213,32 @@ public class SimpleInstrunctionBuilder {
         return builder.createBranch(condition, ifBlock, elseBlock);
     }
 
+    /**
+     * Conditional branch with <code>!prof</code> branch weights, which tell how often each
+     * successor is expected to be taken.
+     */
+    public Instruction branch(Symbol condition, InstructionBlock ifBlock, InstructionBlock elseBlock, int ifWeight, int elseWeight) {
+        final Instruction instr = branch(condition, ifBlock, elseBlock);
+        modelBuilder.getMetadataBuilder().setBranchWeights(instr, ifWeight, elseWeight);
+        return instr;
+    }
+
     // Cast
     public Instruction cast(CastOperator op, Type type, Symbol value) {
         return builder.createCast(type, op, value);
     }
 
+    /**
+     * Cast which is evaluated at build time if the value is a constant.
+     */
+    public Symbol castFolded(CastOperator op, Type type, Symbol value) {
+        final Constant folded = ConstantFolder.fold(op, type, value);
+        if (folded != null) {
+            return folded;
+        }
+        return cast(op, type, value);
+    }
+
     // Compare
     public Instruction compare(CompareOperator op, Symbol lhs, Symbol rhs) {
         if (!lhs.getType().equals(rhs.getType())) {
@@ -188,6 +254,17 @@ public class SimpleInstrunctionBuilder {
         return builder.createCompare(op, lhs, rhs);
     }
 
+    /**
+     * Compare which is evaluated at build time if both operands are constants.
+     */
+    public Symbol compareFolded(CompareOperator op, Symbol lhs, Symbol rhs) {
+        final Constant folded = ConstantFolder.fold(op, lhs, rhs);
+        if (folded != null) {
+            return folded;
+        }
+        return compare(op, lhs, rhs);
+    }
+
     public Instruction compare(CompareOperator op, boolean lhs, Symbol rhs) {
         return compare(op, ConstantUtil.getConst(rhs.getType(), lhs), rhs);
     }
@@ -223,7 +300,6 @@ public class SimpleInstrunctionBuilder {
     // Compare Vector (constructed node)
     public Instruction compareVector(CompareOperator op, Symbol lhs, Symbol rhs) {
         Instruction cmpVec = compare(op, lhs, rhs);
-        AggregateType type = (AggregateType) cmpVec.getType();
 
         final BinaryOperator resultComperator;
         switch (op) {
@@ -237,19 +313,139 @@ public class SimpleInstrunctionBuilder {
                 break;
         }
 
-        Instruction cmpRes = extractElement(cmpVec, 0);
-        for (int i = 1; i < type.getNumberOfElements(); i++) {
-            Instruction extr = extractElement(cmpVec, i);
-            // all vector results needs to be joined together
-            cmpRes = binaryOperator(resultComperator, cmpRes, extr);
+        // all vector results needs to be joined together
+        return reduceVector(resultComperator, cmpVec);
+    }
+
+    // Reduce Vector (constructed node)
+
+    /**
+     * Combine all lanes of a vector with a binary operator.
+     *
+     * For a power of two number of lanes, the upper half of the vector is moved onto the lower half
+     * with a shufflevector and combined with it, until only one lane is left. This needs log2(n)
+     * steps instead of n - 1. For floating point operators this changes the order of evaluation.
+     * Other vectors are reduced lane by lane.
+     *
+     * The <code>llvm.experimental.vector.reduce.*</code> intrinsics are not used, because they
+     * require LLVM 5 or newer, while the IRWriter only writes LLVM 3.2 and 3.8.
+     */
+    public Instruction reduceVector(BinaryOperator op, Symbol vector) {
+        final VectorType type = (VectorType) vector.getType();
+        final int lanes = type.getNumberOfElements();
+
+        if (Integer.bitCount(lanes) != 1) {
+            Instruction result = builder.createExtractElement(vector, 0);
+            for (int i = 1; i < lanes; i++) {
+                result = binaryOperator(op, result, builder.createExtractElement(vector, i));
+            }
+            return result;
         }
 
-        return cmpRes;
+        Symbol current = vector;
+        for (int width = lanes / 2; width >= 1; width /= 2) {
+            // lanes above the current width are not used anymore
+            final Constant[] mask = new Constant[lanes];
+            for (int i = 0; i < width; i++) {
+                mask[i] = ConstantUtil.getI32Const(width + i);
+            }
+            final Constant maskVector = vectorConstant(new VectorType(PrimitiveType.I32, lanes), mask);
+            final Instruction upper = shuffleVector(type, current, new UndefinedConstant(type), maskVector);
+            current = binaryOperator(op, current, upper);
+        }
+        return builder.createExtractElement(current, 0);
+    }
+
+    // Compare Exchange
+    public Instruction compareExchange(Symbol ptr, Symbol cmp, Symbol replace) {
+        return builder.createCompareExchange(ptr, cmp, replace, false, false, AtomicOrdering.SEQUENTIALLY_CONSISTENT, AtomicOrdering.SEQUENTIALLY_CONSISTENT, SynchronizationScope.CROSS_THREAD);
+    }
+
+    /**
+     * Callback which computes the value that should be stored by a CAS loop.
+     */
+    @FunctionalInterface
+    public interface CasUpdate {
+        Symbol build(SimpleInstrunctionBuilder instr, Instruction expected);
+    }
+
+    // CAS Loop (constructed node)
+
+    /**
+     * Atomically replace the value at the pointer by the result of the update callback, using a
+     * weak cmpxchg which is retried until it succeeds:
+     *
+     * <pre>
+     *          %init = load atomic %ptr monotonic
+     *          br label %header
+     * header:  %expected = phi [ %init, %entry ], [ %observed, %cas ]
+     *          %new = ...                     ; update
+     *          br label %cas
+     * cas:     %pair = cmpxchg weak %ptr, %expected, %new seq_cst monotonic
+     *          %observed = extractvalue %pair, 0
+     *          %success = extractvalue %pair, 1
+     *          br i1 %success, label %exit, label %header
+     * exit:
+     * </pre>
+     *
+     * Like every other constructed node, an update which requires additional blocks has to insert
+     * them before using them. After the loop was built, the builder points to the exit block.
+     *
+     * @return the value which was stored
+     */
+    public Symbol casLoop(Symbol ptr, CasUpdate update) {
+        final Type type = ((PointerType) ptr.getType()).getPointeeType();
+        final int align = type.getAlignment(InstructionBuilder.targetDataLayout);
+        final Instruction initial = builder.createAtomicLoad(type, ptr, align, false, AtomicOrdering.MONOTONIC.ordinal(), SynchronizationScope.CROSS_THREAD.ordinal());
+
+        insertBlocks(3);
+        final InstructionBlock entry = getCurrentBlock();
+        final InstructionBlock header = getBlock(entry.getBlockIndex() + 1);
+        final InstructionBlock cas = getBlock(entry.getBlockIndex() + 2);
+        final InstructionBlock exit = getBlock(entry.getBlockIndex() + 3);
+
+        jump(header);
+        nextBlock();
+
+        final Instruction expected = phi(type, new Symbol[]{initial, null}, new InstructionBlock[]{entry, cas});
+        final Symbol newValue = update.build(this, expected);
+
+        jump(cas);
+        nextBlock();
+        if (getCurrentBlock() != cas) {
+            throw new AssertionError("the update has to insert the blocks it uses");
+        }
+
+        final Instruction pair = builder.createCompareExchange(ptr, expected, newValue, true, false, AtomicOrdering.SEQUENTIALLY_CONSISTENT, AtomicOrdering.MONOTONIC,
+                        SynchronizationScope.CROSS_THREAD);
+        final Instruction observed = extractValue(pair, 0);
+        final Instruction success = extractValue(pair, 1);
+        setPhiValue(expected, cas, observed);
+        sealBlock(header);
+        branch(success, exit, header);
+
+        nextBlock();
+        assert getCurrentBlock() == exit;
+        return newValue;
     }
 
     // Call
     public Instruction call(Symbol target, Symbol... arguments) {
-        return builder.createCall(target, arguments);
+        return call(AttributesCodeEntry.EMPTY, target, arguments);
+    }
+
+    /**
+     * Call with call site attributes, which are created by {@link ModelModuleBuilder#createAttributes}.
+     */
+    public Instruction call(AttributesCodeEntry attributes, Symbol target, Symbol... arguments) {
+        return builder.createCall(target, arguments, attributes);
+    }
+
+    /**
+     * Call which is marked as tail call. A musttail call has to be directly followed by a return.
+     */
+    public Instruction tailCall(CallMarkers.TailCall tailCall, Symbol target, Symbol... arguments) {
+        return builder.createCall(target, arguments, AttributesCodeEntry.EMPTY, tailCall);
     }
 
     // Extract Element
@@ -260,50 +456,166 @@ public class SimpleInstrunctionBuilder {
         return builder.createExtractElement(vector, index);
     }
 
+    // Extract Value
+    public Instruction extractValue(Symbol aggregate, int index) {
+        return builder.createExtractValue(aggregate, index);
+    }
+
+    // Fence
+    public Instruction fence() {
+        return builder.createFence(AtomicOrdering.SEQUENTIALLY_CONSISTENT, SynchronizationScope.CROSS_THREAD);
+    }
+
     // Fill Vector (constructed node)
+
+    /**
+     * Fill the first lanes of the vector stored at source, and return the new vector.
+     *
+     * If every lane is written, the vector constant is stored directly. Otherwise the new lanes are
+     * blended into the old vector with a single shufflevector, instead of one insertelement per
+     * lane.
+     */
     public Instruction fillVector(Instruction source, Constant... values) {
-        Instruction vector = load(source);
-        for (int i = 0; i < values.length; i++) {
-            vector = insertElement(vector, values[i], i);
+        final VectorType type = (VectorType) ((PointerType) source.getType()).getPointeeType();
+        final int lanes = type.getNumberOfElements();
+        if (values.length > lanes) {
+            throw new AssertionError("Cannot fill " + values.length + " lanes of the type " + type);
+        }
+
+        final Constant[] elements = Arrays.copyOf(values, lanes);
+        final Constant constant = builder.createAggregateConstant(type, elements);
+        if (values.length == lanes) {
+            store(source, constant);
+            return load(source);
         }
+
+        // take the first lanes from the constant and the rest from the old vector
+        final long[] mask = new long[lanes];
+        for (int i = 0; i < lanes; i++) {
+            mask[i] = i < values.length ? lanes + i : i;
+        }
+        final Instruction vector = shuffleVector(type, load(source), constant, getShuffleMask(mask));
         store(source, vector);
         return vector;
     }
 
     public Instruction fillVector(Instruction source, boolean... values) {
-        Instruction vector = load(source);
+        final Type elementType = getVectorElementType(source);
+        final Constant[] constants = new Constant[values.length];
         for (int i = 0; i < values.length; i++) {
-            vector = insertElement(vector, values[i], i);
+            constants[i] = ConstantUtil.getConst(elementType, values[i]);
         }
-        store(source, vector);
-        return vector;
+        return fillVector(source, constants);
     }
 
     public Instruction fillVector(Instruction source, long... values) {
-        Instruction vector = load(source);
+        final Type elementType = getVectorElementType(source);
+        final Constant[] constants = new Constant[values.length];
         for (int i = 0; i < values.length; i++) {
-            vector = insertElement(vector, values[i], i);
+            constants[i] = ConstantUtil.getConst(elementType, values[i]);
         }
-        store(source, vector);
-        return vector;
+        return fillVector(source, constants);
     }
 
     public Instruction fillVector(Instruction source, BigInteger... values) {
-        Instruction vector = load(source);
+        final Type elementType = getVectorElementType(source);
+        final Constant[] constants = new Constant[values.length];
         for (int i = 0; i < values.length; i++) {
-            vector = insertElement(vector, values[i], i);
+            constants[i] = ConstantUtil.getConst(elementType, values[i]);
         }
-        store(source, vector);
-        return vector;
+        return fillVector(source, constants);
     }
 
     public Instruction fillVector(Instruction source, double... values) {
-        Instruction vector = load(source);
+        final Type elementType = getVectorElementType(source);
+        final Constant[] constants = new Constant[values.length];
+        for (int i = 0; i < values.length; i++) {
+            constants[i] = ConstantUtil.getConst(elementType, values[i]);
+        }
+        return fillVector(source, constants);
+    }
+
+    /**
+     * Fill every lane of the vector stored at source with values which are not necessarily
+     * constant. Constant lanes are part of the initial vector constant, only the other lanes are
+     * inserted one by one. If every lane gets the same value, it is splatted instead.
+     */
+    public Instruction fillVector(Instruction source, Symbol... values) {
+        final VectorType type = (VectorType) ((PointerType) source.getType()).getPointeeType();
+        if (values.length != type.getNumberOfElements()) {
+            throw new AssertionError("expected " + type.getNumberOfElements() + " values for " + type + ", got " + values.length);
+        }
+
+        boolean isSplat = true;
+        final Constant[] constants = new Constant[values.length];
         for (int i = 0; i < values.length; i++) {
-            vector = insertElement(vector, values[i], i);
+            isSplat &= values[i] == values[0];
+            if (values[i] instanceof Constant) {
+                constants[i] = (Constant) values[i];
+            }
+        }
+
+        final Symbol vector;
+        if (isSplat) {
+            vector = splat(type, values[0]);
+        } else {
+            Symbol current = builder.createAggregateConstant(type, constants);
+            for (int i = 0; i < values.length; i++) {
+                if (constants[i] == null) {
+                    current = builder.createInsertElement(current, values[i], i);
+                }
+            }
+            vector = current;
         }
         store(source, vector);
-        return vector;
+        return vector instanceof Instruction ? (Instruction) vector : load(source);
+    }
+
+    // Vector Constant
+
+    public Constant vectorConstant(VectorType type, Constant... values) {
+        return builder.createAggregateConstant(type, values);
+    }
+
+    public Constant vectorConstant(VectorType type, long... values) {
+        final Constant[] constants = new Constant[values.length];
+        for (int i = 0; i < values.length; i++) {
+            constants[i] = ConstantUtil.getConst(type.getElementType(), values[i]);
+        }
+        return vectorConstant(type, constants);
+    }
+
+    public Constant vectorConstant(VectorType type, double... values) {
+        final Constant[] constants = new Constant[values.length];
+        for (int i = 0; i < values.length; i++) {
+            constants[i] = ConstantUtil.getConst(type.getElementType(), values[i]);
+        }
+        return vectorConstant(type, constants);
+    }
+
+    private Constant getShuffleMask(long... lanes) {
+        return vectorConstant(new VectorType(PrimitiveType.I32, lanes.length), lanes);
+    }
+
+    private static Type getVectorElementType(Instruction source) {
+        return ((VectorType) ((PointerType) source.getType()).getPointeeType()).getElementType();
+    }
+
+    // Splat (constructed node)
+
+    /**
+     * Get a vector which has the given value in every lane. Constants are folded into a vector
+     * constant, other values are inserted once and broadcast with a shufflevector.
+     */
+    public Symbol splat(VectorType type, Symbol value) {
+        final int lanes = type.getNumberOfElements();
+        if (value instanceof Constant) {
+            final Constant[] constants = new Constant[lanes];
+            Arrays.fill(constants, value);
+            return vectorConstant(type, constants);
+        }
+        final Instruction first = builder.createInsertElement(new UndefinedConstant(type), value, 0);
+        return shuffleVector(type, first, new UndefinedConstant(type), getShuffleMask(new long[lanes]));
     }
 
     // GetElementPointer
@@ -407,6 +719,23 @@ public class SimpleInstrunctionBuilder {
         return builder.createPhi(type, values, blocks);
     }
 
+    /**
+     * Create a phi instruction whose incoming values are set later using {@link #setPhiValue}.
+     * This is required for loop-carried values, where the value of the back edge is defined after
+     * the phi.
+     */
+    public Instruction phi(Type type, InstructionBlock[] blocks) {
+        return builder.createPhi(type, new Symbol[blocks.length], blocks);
+    }
+
+    public void setPhiValue(Instruction phi, InstructionBlock block, Symbol value) {
+        builder.setPhiValue(phi, block, value);
+    }
+
+    public void sealBlock(InstructionBlock block) {
+        builder.sealBlock(block);
+    }
+
     // Return
     public void returnx(Symbol value) {
         final Type functionReturnType = builder.getFunctionDefinition().getType().getReturnType();
@@ -464,6 +793,15 @@ public class SimpleInstrunctionBuilder {
         return builder.createSwitch(condition, defaultBlock, caseValues, caseBlocks);
     }
 
+    /**
+     * Switch with <code>!prof</code> branch weights, the first weight is for the default block.
+     */
+    public Instruction switchx(Symbol condition, InstructionBlock defaultBlock, Symbol[] caseValues, InstructionBlock[] caseBlocks, int... weights) {
+        final Instruction instr = switchx(condition, defaultBlock, caseValues, caseBlocks);
+        modelBuilder.getMetadataBuilder().setBranchWeights(instr, weights);
+        return instr;
+    }
+
     // Unreachable
     public Instruction unreachable() {
         return builder.createUnreachable();
@@ -490,6 +828,11 @@ public class SimpleInstrunctionBuilder {
      * additional InstructionBlocks into the function. This needs to be considered when a branch is
      * jumping over this function.
      *
+     * Every call creates a new {@link VaArgReaderAMD64}, which computes the pointers into the
+     * va_list again. This is correct, because the current position is stored in the va_list itself,
+     * but use a single {@link VaArgReaderAMD64} to read multiple varargs, which shares those pointers
+     * and allows to read multiple arguments with a single register check.
+     *
      * @see "https://software.intel.com/sites/default/files/article/402129/mpx-linux64-abi.pdf"
      *
      * @param vaListTag our %struct.__va_list_tag
@@ -497,71 +840,7 @@ public class SimpleInstrunctionBuilder {
      * @return the next vararg
      */
     public Instruction vaArgAMD64(Symbol vaListTag, Type type) {
-        final int curBlockIdx = getCurrentBlock().getBlockIndex();
-        insertBlocks(3);
-        InstructionBlock i11 = getBlock(curBlockIdx + 1);
-        InstructionBlock i17 = getBlock(curBlockIdx + 2);
-        InstructionBlock i22 = getBlock(curBlockIdx + 3);
-
-        // Is register available?
-        Instruction i7 = getElementPointerInbounds(vaListTag, 0, 0);
-        final Instruction i8;
-        final Instruction i9;
-        final Instruction i10;
-        if (Type.isIntegerType(type)) {
-            i8 = getElementPointerInbounds(i7, ConstantUtil.getI32Const(0), ConstantUtil.getI32Const(VA_LIST_TAG_TYPE.GP_OFFSET.getIdx()));
-            i9 = this.load(i8);
-            i10 = compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, i9, 40);
-        } else if (Type.isFloatingpointType(type)) {
-            i8 = getElementPointerInbounds(i7, ConstantUtil.getI32Const(0), ConstantUtil.getI32Const(VA_LIST_TAG_TYPE.FP_OFFSET.getIdx()));
-            i9 = this.load(i8);
-            i10 = compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, i9, 160);
-        } else {
-            throw new AssertionError("type not implemented yet: " + type);
-        }
-        branch(i10, i11, i17);
-
-        nextBlock(); // 11
-        assert getCurrentBlock() == i11;
-
-        // Address of saved register
-        Instruction i12 = getElementPointerInbounds(i7, ConstantUtil.getI32Const(0), ConstantUtil.getI32Const(VA_LIST_TAG_TYPE.REG_SAVE_AREA.getIdx()));
-        Instruction i13 = load(i12);
-        Instruction i14 = getElementPointer(i13, i9);
-        Instruction i15 = cast(CastOperator.BITCAST, new PointerType(type), i14);
-
-        // Update gp_offset
-        final int offset;
-        if (Type.isIntegerType(type)) {
-            offset = 8;
-        } else if (Type.isFloatingpointType(type)) {
-            offset = 16;
-        } else {
-            throw new AssertionError("type not implemented yet: " + type);
-        }
-        Instruction i16 = binaryOperator(BinaryOperator.INT_ADD, i9, offset);
-        store(i8, i16, 16);
-        jump(i22);
-
-        nextBlock(); // 17
-        assert getCurrentBlock() == i17;
-
-        // Address of stack slot
-        Instruction i18 = getElementPointerInbounds(i7, ConstantUtil.getI32Const(0), ConstantUtil.getI32Const(VA_LIST_TAG_TYPE.OVERFLOW_ARG_AREA.getIdx()));
-        Instruction i19 = load(i18);
-        Instruction i20 = cast(CastOperator.BITCAST, new PointerType(type), i19);
-        Instruction i21 = getElementPointer(i19, 8);
-        // update to next available stack slot
-        store(i18, i21, 8);
-        jump(i22);
-
-        nextBlock(); // 22
-        assert getCurrentBlock() == i22;
-        Instruction i23 = phi(new PointerType(type), new Symbol[]{i15, i20}, new InstructionBlock[]{i11, i17});
-        // Load argument
-        Instruction i24 = load(i23);
-
-        return i24;
+        return new VaArgReaderAMD64(this, vaListTag).read(type);
     }
 
     // TODO: private
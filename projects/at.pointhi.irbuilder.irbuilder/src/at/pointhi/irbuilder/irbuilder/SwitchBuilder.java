@@ -0,0 +1,295 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Builder for switch instructions over integer constants.
+ *
+ * The cases are sorted and duplicates are removed. Afterwards they are split into clusters of
+ * dense ranges, which can be lowered to jump tables. If there is more than one cluster, the
+ * clusters are selected by a balanced binary decision tree of signed comparisons, and every
+ * cluster gets its own small switch:
+ *
+ * <pre>
+ *        %lt = icmp slt %cond, 100
+ *        br i1 %lt, label %left, label %right
+ * left:  switch %cond, label %default [ i32 0, ... i32 15, ... ]
+ * right: switch %cond, label %default [ i32 100, ... i32 120, ... ]
+ * </pre>
+ *
+ * The blocks of the decision tree are inserted after the current block. After the switch was
+ * built, the builder points to the last of them, which is already terminated.
+ */
+public final class SwitchBuilder {
+
+    private static final class Case {
+        private final long value;
+        private final InstructionBlock target;
+        private final long weight;
+
+        Case(long value, InstructionBlock target, long weight) {
+            this.value = value;
+            this.target = target;
+            this.weight = weight;
+        }
+    }
+
+    private final SimpleInstrunctionBuilder instr;
+    private final Symbol condition;
+    private final Type type;
+    private final int bits;
+
+    private final List<Case> cases = new ArrayList<>();
+    private InstructionBlock defaultBlock;
+    private long defaultWeight = 0;
+    private boolean hasWeights = false;
+
+    // minimum ratio of cases to the size of the range they cover
+    private double minDensity = 0.4;
+
+    public SwitchBuilder(SimpleInstrunctionBuilder instr, Symbol condition) {
+        if (!Type.isIntegerType(condition.getType())) {
+            throw new AssertionError("switch needs an integer condition: " + condition.getType());
+        }
+        this.instr = instr;
+        this.condition = condition;
+        this.type = condition.getType();
+        this.bits = type.getBitSize();
+    }
+
+    public SwitchBuilder setDefault(InstructionBlock target) {
+        this.defaultBlock = target;
+        return this;
+    }
+
+    public SwitchBuilder setDefault(InstructionBlock target, int weight) {
+        if (weight < 0) {
+            throw new AssertionError("branch weights cannot be negative: " + weight);
+        }
+        this.hasWeights = true;
+        this.defaultWeight = weight;
+        return setDefault(target);
+    }
+
+    /**
+     * Add a case. The value can be given either signed or unsigned, so 0xFFFFFFFFL and -1 are the
+     * same case for an i32 condition.
+     */
+    public SwitchBuilder addCase(long value, InstructionBlock target) {
+        cases.add(new Case(toCaseValue(value), target, 0));
+        return this;
+    }
+
+    /**
+     * Add a case with a branch weight, which tells how often the case is expected to be taken.
+     */
+    public SwitchBuilder addCase(long value, InstructionBlock target, int weight) {
+        if (weight < 0) {
+            throw new AssertionError("branch weights cannot be negative: " + weight);
+        }
+        hasWeights = true;
+        cases.add(new Case(toCaseValue(value), target, weight));
+        return this;
+    }
+
+    /**
+     * Sign extend the value to the bit width of the condition, because the cases are sorted and
+     * selected by signed comparisons.
+     */
+    private long toCaseValue(long value) {
+        if (bits >= Long.SIZE) {
+            return value;
+        }
+        final long signExtended = (value << (Long.SIZE - bits)) >> (Long.SIZE - bits);
+        final long zeroExtended = value & ((1L << bits) - 1);
+        if (value != signExtended && value != zeroExtended) {
+            throw new AssertionError("case " + value + " does not fit into " + type);
+        }
+        return signExtended;
+    }
+
+    /**
+     * Set the minimum ratio between the number of cases and the size of the value range which is
+     * covered by a single switch.
+     */
+    public SwitchBuilder setMinDensity(double value) {
+        if (value <= 0 || value > 1) {
+            throw new AssertionError("density has to be in (0, 1]: " + value);
+        }
+        this.minDensity = value;
+        return this;
+    }
+
+    /**
+     * Sort the cases by value and merge duplicates. The added cases stay untouched, so the switch
+     * can be built multiple times.
+     */
+    private Case[] getSortedCases() {
+        final Case[] sorted = cases.toArray(new Case[cases.size()]);
+        Arrays.sort(sorted, Comparator.comparingLong(c -> c.value));
+
+        int size = 0;
+        for (Case c : sorted) {
+            if (size > 0 && sorted[size - 1].value == c.value) {
+                final Case previous = sorted[size - 1];
+                if (previous.target != c.target) {
+                    throw new AssertionError("case " + c.value + " has multiple targets");
+                }
+                sorted[size - 1] = new Case(previous.value, previous.target, previous.weight + c.weight);
+            } else {
+                sorted[size++] = c;
+            }
+        }
+        return Arrays.copyOf(sorted, size);
+    }
+
+    /**
+     * Split the sorted cases into ranges which are dense enough, and return the start index of
+     * every range.
+     */
+    private int[] getClusters(Case[] sorted) {
+        final int[] starts = new int[sorted.length];
+        int count = 0;
+        int start = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i < sorted.length) {
+                final double range = (double) sorted[i].value - sorted[start].value + 1;
+                if ((i - start + 1) / range >= minDensity) {
+                    continue;
+                }
+            }
+            starts[count++] = start;
+            start = i;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    /**
+     * Emit the switch, and return the first terminating instruction of it.
+     */
+    public Instruction build() {
+        if (defaultBlock == null) {
+            throw new AssertionError("switch needs a default block");
+        }
+
+        final Case[] sorted = getSortedCases();
+        final int[] clusters = getClusters(sorted);
+        if (clusters.length > 1) {
+            // every node of the decision tree except the root needs its own block
+            instr.insertBlocks(2 * clusters.length - 2);
+        }
+        return emit(sorted, clusters, 0, clusters.length);
+    }
+
+    private int getClusterEnd(Case[] sorted, int[] clusters, int idx) {
+        return idx + 1 < clusters.length ? clusters[idx + 1] : sorted.length;
+    }
+
+    private Instruction emit(Case[] sorted, int[] clusters, int first, int last) {
+        if (last - first <= 1) {
+            final int from = clusters.length == 0 ? 0 : clusters[first];
+            final int to = clusters.length == 0 ? 0 : getClusterEnd(sorted, clusters, first);
+            return emitSwitch(sorted, from, to);
+        }
+
+        final int mid = (first + last) / 2;
+        final int leftLeaves = mid - first;
+        final int blockIdx = instr.getCurrentBlock().getBlockIndex();
+        final InstructionBlock left = instr.getBlock(blockIdx + 1);
+        final InstructionBlock right = instr.getBlock(blockIdx + 2 * leftLeaves);
+
+        final Instruction lessThan = instr.compare(CompareOperator.INT_SIGNED_LESS_THAN, condition, ConstantUtil.getConst(type, sorted[clusters[mid]].value));
+        final Instruction branch;
+        if (hasWeights) {
+            final long leftWeight = sumWeights(sorted, clusters[first], clusters[mid]) + 1;
+            final long rightWeight = sumWeights(sorted, clusters[mid], getClusterEnd(sorted, clusters, last - 1)) + 1;
+            branch = instr.branch(lessThan, left, right, clampWeight(leftWeight), clampWeight(rightWeight));
+        } else {
+            branch = instr.branch(lessThan, left, right);
+        }
+
+        instr.nextBlock();
+        emit(sorted, clusters, first, mid);
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == right;
+        emit(sorted, clusters, mid, last);
+        return branch;
+    }
+
+    private Instruction emitSwitch(Case[] sorted, int from, int to) {
+        if (from == to) {
+            return instr.jump(defaultBlock);
+        }
+
+        final Symbol[] values = new Symbol[to - from];
+        final InstructionBlock[] targets = new InstructionBlock[to - from];
+        for (int i = from; i < to; i++) {
+            values[i - from] = ConstantUtil.getConst(type, sorted[i].value);
+            targets[i - from] = sorted[i].target;
+        }
+
+        if (!hasWeights) {
+            return instr.switchx(condition, defaultBlock, values, targets);
+        }
+        final int[] weights = new int[values.length + 1];
+        weights[0] = clampWeight(defaultWeight);
+        for (int i = from; i < to; i++) {
+            weights[i - from + 1] = clampWeight(sorted[i].weight);
+        }
+        return instr.switchx(condition, defaultBlock, values, targets, weights);
+    }
+
+    private static long sumWeights(Case[] sorted, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += sorted[i].weight;
+        }
+        return sum;
+    }
+
+    private static int clampWeight(long weight) {
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+}
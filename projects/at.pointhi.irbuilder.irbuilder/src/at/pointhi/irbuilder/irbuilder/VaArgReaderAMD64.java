@@ -0,0 +1,449 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.AggregateType;
+import com.oracle.truffle.llvm.runtime.types.ArrayType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.StructureType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.helper.LLVMIntrinsics.VA_LIST_TAG_TYPE;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Reader for the variable arguments of a function compiled for x86_64-unknown-linux-gnu.
+ *
+ * The pointers into the %struct.__va_list_tag are computed once when the reader is created, so the
+ * reader has to be created in a block which dominates all reads. Arguments which are passed in
+ * registers are read from the register save area, all others from the overflow area on the stack.
+ * Like in C, <code>long double</code> is always passed on the stack.
+ *
+ * Every read inserts additional InstructionBlocks into the function. After a read, the builder
+ * points to the block where the result is available, which is not terminated yet.
+ *
+ * @see "https://software.intel.com/sites/default/files/article/402129/mpx-linux64-abi.pdf"
+ */
+public final class VaArgReaderAMD64 {
+
+    private static final int GP_REGISTER_SIZE = 8;
+    private static final int GP_SAVE_AREA_END = 6 * GP_REGISTER_SIZE;
+    private static final int FP_REGISTER_SIZE = 16;
+    private static final int FP_SAVE_AREA_END = GP_SAVE_AREA_END + 8 * FP_REGISTER_SIZE;
+    private static final int STACK_SLOT_SIZE = 8;
+
+    private enum ArgumentClass {
+        INTEGER,
+        SSE,
+        MEMORY
+    }
+
+    private final SimpleInstrunctionBuilder instr;
+
+    private final Instruction gpOffset;
+    private final Instruction fpOffset;
+    private final Instruction overflowArgArea;
+    private final Instruction regSaveArea;
+
+    public VaArgReaderAMD64(SimpleInstrunctionBuilder instr, Symbol vaListTag) {
+        this.instr = instr;
+
+        final Instruction tag = instr.getElementPointerInbounds(vaListTag, 0, 0);
+        this.gpOffset = getField(tag, VA_LIST_TAG_TYPE.GP_OFFSET);
+        this.fpOffset = getField(tag, VA_LIST_TAG_TYPE.FP_OFFSET);
+        this.overflowArgArea = getField(tag, VA_LIST_TAG_TYPE.OVERFLOW_ARG_AREA);
+        this.regSaveArea = getField(tag, VA_LIST_TAG_TYPE.REG_SAVE_AREA);
+    }
+
+    private Instruction getField(Instruction tag, VA_LIST_TAG_TYPE field) {
+        return instr.getElementPointerInbounds(tag, ConstantUtil.getI32Const(0), ConstantUtil.getI32Const(field.getIdx()));
+    }
+
+    private static ArgumentClass classify(Type type) {
+        if (Type.isIntegerType(type) || type instanceof PointerType) {
+            return ArgumentClass.INTEGER;
+        } else if (PrimitiveType.X86_FP80.equals(type)) {
+            // the x87 classes are passed in memory
+            return ArgumentClass.MEMORY;
+        } else if (Type.isFloatingpointType(type)) {
+            return ArgumentClass.SSE;
+        } else {
+            throw new AssertionError("type not implemented yet: " + type);
+        }
+    }
+
+    private Instruction getOffsetField(ArgumentClass argClass) {
+        return argClass == ArgumentClass.INTEGER ? gpOffset : fpOffset;
+    }
+
+    private static int getRegisterSize(ArgumentClass argClass) {
+        return argClass == ArgumentClass.INTEGER ? GP_REGISTER_SIZE : FP_REGISTER_SIZE;
+    }
+
+    private static int getSaveAreaEnd(ArgumentClass argClass) {
+        return argClass == ArgumentClass.INTEGER ? GP_SAVE_AREA_END : FP_SAVE_AREA_END;
+    }
+
+    /**
+     * Get the next vararg.
+     */
+    public Instruction read(Type type) {
+        final ArgumentClass argClass = classify(type);
+        if (argClass == ArgumentClass.MEMORY) {
+            return instr.load(readMemory(type));
+        }
+        return instr.load(readPointer(argClass, type, getRegisterSize(argClass), STACK_SLOT_SIZE));
+    }
+
+    /**
+     * Get the next varargs, which all need to be passed in the same kind of registers.
+     *
+     * There is only a single check if all of them are still in the register save area, in which
+     * case they are loaded without any further branches. Otherwise they are read one after the
+     * other, because the registers could run out in the middle of them.
+     */
+    public Instruction[] readAll(Type... types) {
+        if (types.length == 0) {
+            return new Instruction[0];
+        } else if (types.length == 1) {
+            return new Instruction[]{read(types[0])};
+        }
+
+        final ArgumentClass argClass = classify(types[0]);
+        for (Type type : types) {
+            if (classify(type) != argClass) {
+                throw new AssertionError("all arguments have to be passed in the same kind of registers: " + types[0] + " and " + type);
+            }
+        }
+        if (argClass == ArgumentClass.MEMORY) {
+            return readEach(types);
+        }
+
+        final int registerSize = getRegisterSize(argClass);
+        final int size = types.length * registerSize;
+        final int maxOffset = getSaveAreaEnd(argClass) - size;
+        if (maxOffset < (argClass == ArgumentClass.INTEGER ? 0 : GP_SAVE_AREA_END)) {
+            // the arguments never fit into the registers at once
+            return readEach(types);
+        }
+
+        final int curBlockIdx = instr.getCurrentBlock().getBlockIndex();
+        instr.insertBlocks(3);
+        final InstructionBlock registerBlock = instr.getBlock(curBlockIdx + 1);
+        final InstructionBlock slowBlock = instr.getBlock(curBlockIdx + 2);
+        final InstructionBlock joinBlock = instr.getBlock(curBlockIdx + 3);
+
+        final Instruction offsetField = getOffsetField(argClass);
+        final Instruction offset = instr.load(offsetField);
+        final Instruction fits = instr.compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, offset, maxOffset);
+        instr.branch(fits, registerBlock, slowBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == registerBlock;
+
+        final Instruction[] registerValues = new Instruction[types.length];
+        final Instruction base = instr.getElementPointer(instr.load(regSaveArea), offset);
+        for (int i = 0; i < types.length; i++) {
+            final Instruction address = i == 0 ? base : instr.getElementPointer(base, i * registerSize);
+            registerValues[i] = instr.load(instr.cast(CastOperator.BITCAST, new PointerType(types[i]), address));
+        }
+        instr.store(offsetField, instr.binaryOperator(BinaryOperator.INT_ADD, offset, size), 4);
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == slowBlock;
+
+        final Instruction[] slowValues = readEach(types);
+        // the blocks of the single reads are inserted before the join block
+        final InstructionBlock slowEnd = instr.getCurrentBlock();
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == joinBlock;
+
+        final Instruction[] values = new Instruction[types.length];
+        for (int i = 0; i < types.length; i++) {
+            values[i] = instr.phi(types[i], new Symbol[]{registerValues[i], slowValues[i]}, new InstructionBlock[]{registerBlock, slowEnd});
+        }
+        return values;
+    }
+
+    private Instruction[] readEach(Type[] types) {
+        final Instruction[] values = new Instruction[types.length];
+        for (int i = 0; i < types.length; i++) {
+            values[i] = read(types[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Get a pointer to the next vararg which is passed by value as aggregate.
+     *
+     * The aggregate is split into eightbytes, which are passed in general purpose or SSE registers
+     * depending on their fields. If it only uses general purpose registers or a single SSE register,
+     * the result points directly into the register save area or the overflow area, and stays valid
+     * until va_end is called. It has to be copied if it is used after that, or if it is modified.
+     *
+     * Otherwise the eightbytes are not next to each other in the register save area, and they are
+     * copied into a temporary which is allocated in the block of the read.
+     *
+     * Vectors of more than eight bytes inside of aggregates are not implemented yet.
+     */
+    public Instruction readAggregate(AggregateType type) {
+        final int size = type.getSize(InstructionBuilder.targetDataLayout);
+        final int slotSize = (size + STACK_SLOT_SIZE - 1) / STACK_SLOT_SIZE * STACK_SLOT_SIZE;
+
+        if (size > 2 * GP_REGISTER_SIZE) {
+            return readMemory(type);
+        } else if (type instanceof VectorType && size > GP_REGISTER_SIZE) {
+            // the whole vector is passed in a single SSE register
+            return readPointer(ArgumentClass.SSE, type, FP_REGISTER_SIZE, slotSize);
+        }
+
+        final ArgumentClass[] classes = new ArgumentClass[slotSize / STACK_SLOT_SIZE];
+        classifyEightbytes(type, 0, classes);
+
+        boolean isInteger = true;
+        for (ArgumentClass argClass : classes) {
+            if (argClass == null) {
+                throw new AssertionError("eightbytes which only contain padding are not implemented yet: " + type);
+            } else if (argClass == ArgumentClass.MEMORY) {
+                return readMemory(type);
+            }
+            isInteger &= argClass == ArgumentClass.INTEGER;
+        }
+
+        if (isInteger) {
+            // the general purpose registers are saved next to each other, so no copy is required
+            return readPointer(ArgumentClass.INTEGER, type, slotSize, slotSize);
+        } else if (classes.length == 1) {
+            return readPointer(ArgumentClass.SSE, type, FP_REGISTER_SIZE, slotSize);
+        } else {
+            return readCopy(type, classes, slotSize);
+        }
+    }
+
+    /**
+     * Merge the classes of all fields of the type into the classes of the eightbytes they are
+     * located in.
+     */
+    private static void classifyEightbytes(Type type, int offset, ArgumentClass[] classes) {
+        if (type instanceof VectorType && type.getSize(InstructionBuilder.targetDataLayout) > GP_REGISTER_SIZE) {
+            throw new AssertionError("vectors of more than eight bytes inside of aggregates are not implemented yet: " + type);
+        } else if (type instanceof StructureType) {
+            final StructureType struct = (StructureType) type;
+            int fieldOffset = 0;
+            for (int i = 0; i < struct.getNumberOfElements(); i++) {
+                final Type field = struct.getElementType(i);
+                if (!struct.isPacked()) {
+                    final int align = field.getAlignment(InstructionBuilder.targetDataLayout);
+                    fieldOffset = (fieldOffset + align - 1) / align * align;
+                }
+                classifyEightbytes(field, offset + fieldOffset, classes);
+                fieldOffset += field.getSize(InstructionBuilder.targetDataLayout);
+            }
+        } else if (type instanceof ArrayType || type instanceof VectorType) {
+            final AggregateType aggregate = (AggregateType) type;
+            for (int i = 0; i < aggregate.getNumberOfElements(); i++) {
+                final Type element = aggregate.getElementType(i);
+                classifyEightbytes(element, offset + i * element.getSize(InstructionBuilder.targetDataLayout), classes);
+            }
+        } else {
+            final int idx = offset / STACK_SLOT_SIZE;
+            final int end = offset + type.getSize(InstructionBuilder.targetDataLayout);
+            // unaligned fields which span two eightbytes are passed in memory
+            final ArgumentClass argClass = end > (idx + 1) * STACK_SLOT_SIZE ? ArgumentClass.MEMORY : classify(type);
+            classes[idx] = merge(classes[idx], argClass);
+        }
+    }
+
+    private static ArgumentClass merge(ArgumentClass a, ArgumentClass b) {
+        if (a == null || a == b) {
+            return b;
+        } else if (a == ArgumentClass.MEMORY || b == ArgumentClass.MEMORY) {
+            return ArgumentClass.MEMORY;
+        } else {
+            // an eightbyte with integer and floating point fields is passed in a general purpose register
+            return ArgumentClass.INTEGER;
+        }
+    }
+
+    /**
+     * Read an aggregate which is passed in two registers, of which at least one is a SSE register.
+     * Either both eightbytes are passed in registers, or the whole aggregate is on the stack.
+     */
+    private Instruction readCopy(AggregateType type, ArgumentClass[] classes, int slotSize) {
+        int gpCount = 0;
+        int fpCount = 0;
+        for (ArgumentClass argClass : classes) {
+            if (argClass == ArgumentClass.INTEGER) {
+                gpCount++;
+            } else {
+                fpCount++;
+            }
+        }
+
+        final int curBlockIdx = instr.getCurrentBlock().getBlockIndex();
+        instr.insertBlocks(3);
+        final InstructionBlock registerBlock = instr.getBlock(curBlockIdx + 1);
+        final InstructionBlock stackBlock = instr.getBlock(curBlockIdx + 2);
+        final InstructionBlock joinBlock = instr.getBlock(curBlockIdx + 3);
+
+        // Are all registers available?
+        final Instruction gp = instr.load(gpOffset);
+        final Instruction fp = instr.load(fpOffset);
+        Instruction fits = instr.compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, fp, FP_SAVE_AREA_END - fpCount * FP_REGISTER_SIZE);
+        if (gpCount > 0) {
+            final Instruction gpFits = instr.compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, gp, GP_SAVE_AREA_END - gpCount * GP_REGISTER_SIZE);
+            fits = instr.binaryOperator(BinaryOperator.INT_AND, fits, gpFits);
+        }
+        instr.branch(fits, registerBlock, stackBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == registerBlock;
+
+        // Copy the eightbytes out of the saved registers
+        final Instruction copy = instr.allocate(new ArrayType(PrimitiveType.I64, classes.length));
+        final Instruction saveArea = instr.load(regSaveArea);
+        int gpUsed = 0;
+        int fpUsed = 0;
+        for (int i = 0; i < classes.length; i++) {
+            final Instruction registerOffset;
+            if (classes[i] == ArgumentClass.INTEGER) {
+                registerOffset = instr.binaryOperator(BinaryOperator.INT_ADD, gp, gpUsed++ * GP_REGISTER_SIZE);
+            } else {
+                registerOffset = instr.binaryOperator(BinaryOperator.INT_ADD, fp, fpUsed++ * FP_REGISTER_SIZE);
+            }
+            final Instruction registerAddress = instr.getElementPointer(saveArea, registerOffset);
+            final Instruction eightbyte = instr.load(instr.cast(CastOperator.BITCAST, new PointerType(PrimitiveType.I64), registerAddress));
+            instr.store(instr.getElementPointer(copy, 0, i), eightbyte);
+        }
+        if (gpCount > 0) {
+            instr.store(gpOffset, instr.binaryOperator(BinaryOperator.INT_ADD, gp, gpCount * GP_REGISTER_SIZE), 4);
+        }
+        instr.store(fpOffset, instr.binaryOperator(BinaryOperator.INT_ADD, fp, fpCount * FP_REGISTER_SIZE), 4);
+        final Instruction registerValue = instr.cast(CastOperator.BITCAST, new PointerType(type), copy);
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == stackBlock;
+
+        final Instruction stackValue = readMemory(type);
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == joinBlock;
+
+        return instr.phi(new PointerType(type), new Symbol[]{registerValue, stackValue}, new InstructionBlock[]{registerBlock, stackBlock});
+    }
+
+    /**
+     * Return a pointer to the next vararg in the overflow area, for arguments which are never passed
+     * in registers.
+     */
+    private Instruction readMemory(Type type) {
+        final int size = type.getSize(InstructionBuilder.targetDataLayout);
+        final int align = Math.max(STACK_SLOT_SIZE, type.getAlignment(InstructionBuilder.targetDataLayout));
+
+        final Instruction address = loadOverflowArgArea(type);
+        final Instruction value = instr.cast(CastOperator.BITCAST, new PointerType(type), address);
+        instr.store(overflowArgArea, instr.getElementPointer(address, (size + align - 1) / align * align), 8);
+        return value;
+    }
+
+    /**
+     * Return a pointer to the next vararg, which is either in the register save area or in the
+     * overflow area.
+     */
+    private Instruction readPointer(ArgumentClass argClass, Type type, int registerSize, int stackSize) {
+        final int curBlockIdx = instr.getCurrentBlock().getBlockIndex();
+        instr.insertBlocks(3);
+        final InstructionBlock registerBlock = instr.getBlock(curBlockIdx + 1);
+        final InstructionBlock stackBlock = instr.getBlock(curBlockIdx + 2);
+        final InstructionBlock joinBlock = instr.getBlock(curBlockIdx + 3);
+
+        // Is register available?
+        final Instruction offsetField = getOffsetField(argClass);
+        final Instruction offset = instr.load(offsetField);
+        final Instruction fits = instr.compare(CompareOperator.INT_UNSIGNED_LESS_OR_EQUAL, offset, getSaveAreaEnd(argClass) - registerSize);
+        instr.branch(fits, registerBlock, stackBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == registerBlock;
+
+        // Address of saved register
+        final Instruction registerAddress = instr.getElementPointer(instr.load(regSaveArea), offset);
+        final Instruction registerValue = instr.cast(CastOperator.BITCAST, new PointerType(type), registerAddress);
+        instr.store(offsetField, instr.binaryOperator(BinaryOperator.INT_ADD, offset, registerSize), 4);
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == stackBlock;
+
+        // Address of stack slot
+        final Instruction stackAddress = loadOverflowArgArea(type);
+        final Instruction stackValue = instr.cast(CastOperator.BITCAST, new PointerType(type), stackAddress);
+        instr.store(overflowArgArea, instr.getElementPointer(stackAddress, stackSize), 8);
+        instr.jump(joinBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == joinBlock;
+
+        return instr.phi(new PointerType(type), new Symbol[]{registerValue, stackValue}, new InstructionBlock[]{registerBlock, stackBlock});
+    }
+
+    /**
+     * Load the address of the next argument in the overflow area. The arguments are stored in 8
+     * byte slots, but arguments with a higher alignment start at the next address which is aligned
+     * accordingly.
+     */
+    private Instruction loadOverflowArgArea(Type type) {
+        final Instruction address = instr.load(overflowArgArea);
+        final int align = type.getAlignment(InstructionBuilder.targetDataLayout);
+        if (align <= STACK_SLOT_SIZE) {
+            return address;
+        }
+
+        final Instruction intAddress = instr.cast(CastOperator.PTR_TO_INT, PrimitiveType.I64, address);
+        final Instruction roundedUp = instr.binaryOperator(BinaryOperator.INT_ADD, intAddress, align - 1);
+        final Instruction aligned = instr.binaryOperator(BinaryOperator.INT_AND, roundedUp, -align);
+        return instr.cast(CastOperator.INT_TO_PTR, address.getType(), aligned);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.analysis;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+
+/**
+ * Cache of analysis results per function.
+ *
+ * Results are not updated automatically. Whoever modifies a function has to call
+ * {@link #invalidate} afterwards. Different functions can be analyzed concurrently, but a single
+ * function must only be accessed by one thread at a time.
+ */
+public final class AnalysisCache {
+
+    private final Map<FunctionDefinition, Map<FunctionAnalysis<?>, Object>> results = new IdentityHashMap<>();
+
+    private synchronized Map<FunctionAnalysis<?>, Object> getResults(FunctionDefinition function) {
+        return results.computeIfAbsent(function, f -> new HashMap<>());
+    }
+
+    /**
+     * Get the result of an analysis, and compute it if it is not cached yet.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(FunctionDefinition function, FunctionAnalysis<T> analysis) {
+        final Map<FunctionAnalysis<?>, Object> functionResults = getResults(function);
+        Object result = functionResults.get(analysis);
+        if (result == null) {
+            // not computeIfAbsent, because the analysis is allowed to request other analyses
+            result = analysis.compute(function, this);
+            functionResults.put(analysis, result);
+        }
+        return (T) result;
+    }
+
+    /**
+     * Get the result of an analysis, but only if it is already cached.
+     *
+     * @return cached result or null
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getCached(FunctionDefinition function, FunctionAnalysis<T> analysis) {
+        return (T) getResults(function).get(analysis);
+    }
+
+    /**
+     * Drop all analysis results of a function, because it was modified.
+     */
+    public synchronized void invalidate(FunctionDefinition function) {
+        results.remove(function);
+    }
+
+    /**
+     * Drop a single analysis result of a function.
+     */
+    public void invalidate(FunctionDefinition function, FunctionAnalysis<?> analysis) {
+        getResults(function).remove(analysis);
+    }
+
+    /**
+     * Drop all analysis results of a function, except the ones which are preserved by a
+     * modification.
+     */
+    public void invalidateExcept(FunctionDefinition function, Collection<? extends FunctionAnalysis<?>> preserved) {
+        getResults(function).keySet().retainAll(preserved);
+    }
+
+    public synchronized void invalidateAll() {
+        results.clear();
+    }
+}
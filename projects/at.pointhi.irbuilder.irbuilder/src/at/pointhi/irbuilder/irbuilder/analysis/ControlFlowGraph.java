@@ -0,0 +1,186 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.BranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ConditionalBranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.IndirectBranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Invoke;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SwitchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SwitchOldInstruction;
+
+/**
+ * Successors and predecessors of all blocks of a function, indexed by the block index.
+ *
+ * Edges are stored in flat arrays, to support functions with a huge number of blocks. An edge is
+ * listed once for every reference in the terminating instruction, so a block can be the
+ * predecessor of another block multiple times (like for phi instructions).
+ */
+public final class ControlFlowGraph {
+
+    public static final FunctionAnalysis<ControlFlowGraph> ANALYSIS = (function, cache) -> create(function);
+
+    private final FunctionDefinition function;
+    private final List<InstructionBlock> blocks;
+
+    private final int[] successorOffsets;
+    private final int[] successors;
+    private final int[] predecessorOffsets;
+    private final int[] predecessors;
+
+    private ControlFlowGraph(FunctionDefinition function, List<InstructionBlock> blocks, int[] successorOffsets, int[] successors, int[] predecessorOffsets, int[] predecessors) {
+        this.function = function;
+        this.blocks = blocks;
+        this.successorOffsets = successorOffsets;
+        this.successors = successors;
+        this.predecessorOffsets = predecessorOffsets;
+        this.predecessors = predecessors;
+    }
+
+    public static ControlFlowGraph create(FunctionDefinition function) {
+        final List<InstructionBlock> blocks = function.getBlocks();
+        final int n = blocks.size();
+
+        final int[] successorOffsets = new int[n + 1];
+        int[] successors = new int[n * 2];
+        int edges = 0;
+        for (int i = 0; i < n; i++) {
+            successorOffsets[i] = edges;
+            for (InstructionBlock succ : getSuccessors(blocks.get(i))) {
+                if (edges == successors.length) {
+                    successors = Arrays.copyOf(successors, successors.length * 2 + 1);
+                }
+                successors[edges++] = succ.getBlockIndex();
+            }
+        }
+        successorOffsets[n] = edges;
+
+        // counting sort of the edges by their target
+        final int[] predecessorOffsets = new int[n + 1];
+        for (int e = 0; e < edges; e++) {
+            predecessorOffsets[successors[e] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            predecessorOffsets[i + 1] += predecessorOffsets[i];
+        }
+        final int[] predecessors = new int[edges];
+        final int[] fill = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int e = successorOffsets[i]; e < successorOffsets[i + 1]; e++) {
+                final int target = successors[e];
+                predecessors[predecessorOffsets[target] + fill[target]++] = i;
+            }
+        }
+
+        return new ControlFlowGraph(function, blocks, successorOffsets, successors, predecessorOffsets, predecessors);
+    }
+
+    /**
+     * Get the successors of a block, as referenced by its terminating instruction.
+     */
+    public static List<InstructionBlock> getSuccessors(InstructionBlock block) {
+        if (block.getInstructionCount() == 0) {
+            return new ArrayList<>(0);
+        }
+
+        return getSuccessors(block.getInstruction(block.getInstructionCount() - 1));
+    }
+
+    /**
+     * Get the successors of a terminating instruction, in the order in which they are referenced.
+     */
+    public static List<InstructionBlock> getSuccessors(Instruction terminator) {
+        final List<InstructionBlock> succ = new ArrayList<>(2);
+        if (terminator instanceof BranchInstruction) {
+            succ.add(((BranchInstruction) terminator).getSuccessor());
+        } else if (terminator instanceof ConditionalBranchInstruction) {
+            succ.add(((ConditionalBranchInstruction) terminator).getTrueSuccessor());
+            succ.add(((ConditionalBranchInstruction) terminator).getFalseSuccessor());
+        } else if (terminator instanceof SwitchInstruction) {
+            final SwitchInstruction switchInstr = (SwitchInstruction) terminator;
+            succ.add(switchInstr.getDefaultBlock());
+            for (int i = 0; i < switchInstr.getCaseCount(); i++) {
+                succ.add(switchInstr.getCaseBlock(i));
+            }
+        } else if (terminator instanceof SwitchOldInstruction) {
+            final SwitchOldInstruction switchInstr = (SwitchOldInstruction) terminator;
+            succ.add(switchInstr.getDefaultBlock());
+            for (int i = 0; i < switchInstr.getCaseCount(); i++) {
+                succ.add(switchInstr.getCaseBlock(i));
+            }
+        } else if (terminator instanceof IndirectBranchInstruction) {
+            final IndirectBranchInstruction branch = (IndirectBranchInstruction) terminator;
+            for (int i = 0; i < branch.getSuccessorCount(); i++) {
+                succ.add(branch.getSuccessor(i));
+            }
+        } else if (terminator instanceof Invoke) {
+            succ.add(((Invoke) terminator).normalSuccessor());
+            succ.add(((Invoke) terminator).unwindSuccessor());
+        }
+        return succ;
+    }
+
+    public FunctionDefinition getFunction() {
+        return function;
+    }
+
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    public InstructionBlock getBlock(int idx) {
+        return blocks.get(idx);
+    }
+
+    public int getSuccessorCount(int block) {
+        return successorOffsets[block + 1] - successorOffsets[block];
+    }
+
+    public int getSuccessor(int block, int idx) {
+        return successors[successorOffsets[block] + idx];
+    }
+
+    public int getPredecessorCount(int block) {
+        return predecessorOffsets[block + 1] - predecessorOffsets[block];
+    }
+
+    public int getPredecessor(int block, int idx) {
+        return predecessors[predecessorOffsets[block] + idx];
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.analysis;
+
+import java.util.Arrays;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+
+import at.pointhi.irbuilder.irbuilder.util.IntArrayBuilder;
+
+/**
+ * Dominator tree and dominance frontiers of a function, computed with the algorithm of Cooper,
+ * Harvey and Kennedy ("A Simple, Fast Dominance Algorithm").
+ *
+ * All traversals are iterative, to support functions with a huge number of blocks. Blocks which
+ * are not reachable from the entry block are not part of the tree.
+ */
+public final class DominatorTree {
+
+    public static final FunctionAnalysis<DominatorTree> ANALYSIS = (function, cache) -> create(cache.get(function, ControlFlowGraph.ANALYSIS));
+
+    private static final int UNDEFINED = -1;
+
+    private final ControlFlowGraph cfg;
+
+    private final int[] reversePostorder;
+    private final int[] rpoNumber;
+    private final int[] idom;
+
+    // children of every node in the tree
+    private final int[] childOffsets;
+    private final int[] children;
+
+    // preorder and postorder numbers inside the tree, to check dominance in constant time
+    private final int[] treeIn;
+    private final int[] treeOut;
+
+    // computed on first use
+    private int[] frontierOffsets;
+    private int[] frontiers;
+
+    private DominatorTree(ControlFlowGraph cfg, int[] reversePostorder, int[] rpoNumber, int[] idom) {
+        this.cfg = cfg;
+        this.reversePostorder = reversePostorder;
+        this.rpoNumber = rpoNumber;
+        this.idom = idom;
+
+        final int n = cfg.getBlockCount();
+        this.childOffsets = new int[n + 1];
+        for (int i = 1; i < reversePostorder.length; i++) {
+            childOffsets[idom[reversePostorder[i]] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            childOffsets[i + 1] += childOffsets[i];
+        }
+        this.children = new int[Math.max(reversePostorder.length - 1, 0)];
+        final int[] fill = new int[n];
+        for (int i = 1; i < reversePostorder.length; i++) {
+            final int b = reversePostorder[i];
+            children[childOffsets[idom[b]] + fill[idom[b]]++] = b;
+        }
+
+        this.treeIn = new int[n];
+        this.treeOut = new int[n];
+        numberTree();
+    }
+
+    public static DominatorTree create(ControlFlowGraph cfg) {
+        final int n = cfg.getBlockCount();
+        if (n == 0) {
+            return new DominatorTree(cfg, new int[0], new int[0], new int[0]);
+        }
+
+        // reverse postorder of all reachable blocks
+        final int[] postorder = new int[n];
+        int count = 0;
+        final boolean[] visited = new boolean[n];
+        final int[] stack = new int[n];
+        final int[] nextSuccessor = new int[n];
+        int sp = 0;
+        stack[sp++] = 0;
+        visited[0] = true;
+        while (sp > 0) {
+            final int b = stack[sp - 1];
+            if (nextSuccessor[b] < cfg.getSuccessorCount(b)) {
+                final int s = cfg.getSuccessor(b, nextSuccessor[b]++);
+                if (!visited[s]) {
+                    visited[s] = true;
+                    stack[sp++] = s;
+                }
+            } else {
+                postorder[count++] = b;
+                sp--;
+            }
+        }
+
+        final int[] reversePostorder = new int[count];
+        final int[] rpoNumber = new int[n];
+        Arrays.fill(rpoNumber, UNDEFINED);
+        for (int i = 0; i < count; i++) {
+            reversePostorder[i] = postorder[count - 1 - i];
+            rpoNumber[reversePostorder[i]] = i;
+        }
+
+        final int[] idom = new int[n];
+        Arrays.fill(idom, UNDEFINED);
+        idom[0] = 0;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < count; i++) {
+                final int b = reversePostorder[i];
+                int newIdom = UNDEFINED;
+                for (int p = 0; p < cfg.getPredecessorCount(b); p++) {
+                    final int pred = cfg.getPredecessor(b, p);
+                    if (idom[pred] != UNDEFINED) {
+                        newIdom = newIdom == UNDEFINED ? pred : intersect(idom, rpoNumber, pred, newIdom);
+                    }
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        return new DominatorTree(cfg, reversePostorder, rpoNumber, idom);
+    }
+
+    private static int intersect(int[] idom, int[] rpoNumber, int block1, int block2) {
+        int finger1 = block1;
+        int finger2 = block2;
+        while (finger1 != finger2) {
+            while (rpoNumber[finger1] > rpoNumber[finger2]) {
+                finger1 = idom[finger1];
+            }
+            while (rpoNumber[finger2] > rpoNumber[finger1]) {
+                finger2 = idom[finger2];
+            }
+        }
+        return finger1;
+    }
+
+    private void numberTree() {
+        if (reversePostorder.length == 0) {
+            return;
+        }
+
+        final int n = cfg.getBlockCount();
+        final int[] stack = new int[n];
+        final int[] nextChild = new int[n];
+        int sp = 0;
+        int number = 0;
+        stack[sp++] = 0;
+        treeIn[0] = number++;
+        while (sp > 0) {
+            final int b = stack[sp - 1];
+            if (nextChild[b] < getChildCount(b)) {
+                final int child = getChild(b, nextChild[b]++);
+                treeIn[child] = number++;
+                stack[sp++] = child;
+            } else {
+                treeOut[b] = number++;
+                sp--;
+            }
+        }
+    }
+
+    private void computeFrontiers() {
+        final int n = cfg.getBlockCount();
+
+        // collect all (block, frontier) pairs, and sort them by block afterwards
+        final IntArrayBuilder sources = new IntArrayBuilder();
+        final IntArrayBuilder targets = new IntArrayBuilder();
+        final int[] lastAdded = new int[n];
+        Arrays.fill(lastAdded, UNDEFINED);
+
+        for (int i = 1; i < reversePostorder.length; i++) {
+            final int b = reversePostorder[i];
+            if (cfg.getPredecessorCount(b) < 2) {
+                continue;
+            }
+            for (int p = 0; p < cfg.getPredecessorCount(b); p++) {
+                int runner = cfg.getPredecessor(b, p);
+                if (!isReachable(runner)) {
+                    continue;
+                }
+                while (runner != idom[b]) {
+                    if (lastAdded[runner] != b) {
+                        lastAdded[runner] = b;
+                        sources.add(runner);
+                        targets.add(b);
+                    }
+                    runner = idom[runner];
+                }
+            }
+        }
+
+        final int[] offsets = new int[n + 1];
+        for (int i = 0; i < sources.size(); i++) {
+            offsets[sources.get(i) + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        final int[] values = new int[sources.size()];
+        final int[] fill = new int[n];
+        for (int i = 0; i < sources.size(); i++) {
+            final int source = sources.get(i);
+            values[offsets[source] + fill[source]++] = targets.get(i);
+        }
+
+        frontierOffsets = offsets;
+        frontiers = values;
+    }
+
+    public ControlFlowGraph getControlFlowGraph() {
+        return cfg;
+    }
+
+    public boolean isReachable(int block) {
+        return idom[block] != UNDEFINED;
+    }
+
+    public boolean isReachable(InstructionBlock block) {
+        return isReachable(block.getBlockIndex());
+    }
+
+    /**
+     * Get the immediate dominator of a block. The entry block is its own immediate dominator.
+     *
+     * @return block index, or -1 if the block is not reachable
+     */
+    public int getImmediateDominator(int block) {
+        return idom[block];
+    }
+
+    /**
+     * Check if every path from the entry to block <code>b</code> goes through block <code>a</code>.
+     * Like in LLVM, a block which is not reachable is dominated by every block.
+     */
+    public boolean dominates(int a, int b) {
+        if (!isReachable(b)) {
+            return true;
+        } else if (!isReachable(a)) {
+            return false;
+        }
+        return treeIn[a] <= treeIn[b] && treeOut[b] <= treeOut[a];
+    }
+
+    public boolean dominates(InstructionBlock a, InstructionBlock b) {
+        return dominates(a.getBlockIndex(), b.getBlockIndex());
+    }
+
+    /**
+     * Get all reachable blocks in reverse postorder, which visits a block before its successors if
+     * they are not connected by a back edge.
+     */
+    public int[] getReversePostorder() {
+        return Arrays.copyOf(reversePostorder, reversePostorder.length);
+    }
+
+    public int getReversePostorderNumber(int block) {
+        return rpoNumber[block];
+    }
+
+    public int getChildCount(int block) {
+        return childOffsets[block + 1] - childOffsets[block];
+    }
+
+    public int getChild(int block, int idx) {
+        return children[childOffsets[block] + idx];
+    }
+
+    public int getFrontierCount(int block) {
+        if (frontiers == null) {
+            computeFrontiers();
+        }
+        return frontierOffsets[block + 1] - frontierOffsets[block];
+    }
+
+    public int getFrontier(int block, int idx) {
+        if (frontiers == null) {
+            computeFrontiers();
+        }
+        return frontiers[frontierOffsets[block] + idx];
+    }
+}
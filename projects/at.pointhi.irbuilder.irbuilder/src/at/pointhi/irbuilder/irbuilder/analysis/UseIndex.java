@@ -0,0 +1,206 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.analysis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.util.InstructionOperands;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+
+/**
+ * Users of every symbol inside a function, which allows to rewrite the function without scanning
+ * all instructions for every change.
+ *
+ * The index is only kept up to date by its own methods. Instructions which are inserted by other
+ * means have to be registered with {@link #addInstruction}.
+ */
+public final class UseIndex {
+
+    public static final FunctionAnalysis<UseIndex> ANALYSIS = (function, cache) -> create(function);
+
+    private final FunctionDefinition function;
+
+    private final Map<Symbol, Set<Instruction>> users = new IdentityHashMap<>();
+    private final Map<Instruction, InstructionBlock> parents = new IdentityHashMap<>();
+
+    private UseIndex(FunctionDefinition function) {
+        this.function = function;
+    }
+
+    public static UseIndex create(FunctionDefinition function) {
+        final UseIndex index = new UseIndex(function);
+        for (InstructionBlock block : function.getBlocks()) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                index.addInstruction(block, block.getInstruction(i));
+            }
+        }
+        return index;
+    }
+
+    private Set<Instruction> getUserSet(Symbol value) {
+        return users.computeIfAbsent(value, v -> Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    public FunctionDefinition getFunction() {
+        return function;
+    }
+
+    /**
+     * Register an instruction which was inserted into a block.
+     */
+    public void addInstruction(InstructionBlock block, Instruction instr) {
+        parents.put(instr, block);
+        InstructionOperands.forEach(instr, op -> getUserSet(op).add(instr));
+    }
+
+    /**
+     * Get all instructions which are using the value as operand.
+     */
+    public List<Instruction> getUsers(Symbol value) {
+        final Set<Instruction> set = users.get(value);
+        return set == null ? Collections.emptyList() : new ArrayList<>(set);
+    }
+
+    public boolean hasUsers(Symbol value) {
+        final Set<Instruction> set = users.get(value);
+        return set != null && !set.isEmpty();
+    }
+
+    public int getUserCount(Symbol value) {
+        final Set<Instruction> set = users.get(value);
+        return set == null ? 0 : set.size();
+    }
+
+    /**
+     * Get the block which contains the instruction.
+     *
+     * @return block or null if the instruction is not part of this function
+     */
+    public InstructionBlock getBlock(Instruction instr) {
+        return parents.get(instr);
+    }
+
+    /**
+     * Let every user of <code>oldValue</code> use <code>newValue</code> instead.
+     */
+    public void replaceAllUsesWith(Symbol oldValue, Symbol newValue) {
+        if (oldValue == newValue) {
+            return;
+        }
+        if (!oldValue.getType().equals(newValue.getType())) {
+            throw new AssertionError("cannot replace a value with a different type: " + oldValue.getType() + " != " + newValue.getType());
+        }
+
+        final Set<Instruction> oldUsers = users.remove(oldValue);
+        if (oldUsers == null) {
+            return;
+        }
+        final Set<Instruction> newUsers = getUserSet(newValue);
+        for (Instruction user : oldUsers) {
+            user.replace(oldValue, newValue);
+            newUsers.add(user);
+        }
+    }
+
+    /**
+     * Remove an instruction from its block, if it has no users and no side effects.
+     *
+     * The operands of the instruction stay untouched, even if they are dead afterwards. Because
+     * implicit value names are not sequential anymore after removing instructions, call
+     * {@link ModelEditor#renumberValues} when the function is written.
+     *
+     * @return true if the instruction was removed
+     */
+    public boolean eraseIfUnused(Instruction instr) {
+        if (hasUsers(instr) || !SideEffects.isRemovable(instr)) {
+            return false;
+        }
+        erase(instr);
+        return true;
+    }
+
+    /**
+     * Remove an instruction from its block, without checking for users or side effects.
+     *
+     * The block has no index of its instructions, so this searches the block. Use
+     * {@link #eraseAll} to remove many instructions at once.
+     */
+    public void erase(Instruction instr) {
+        final InstructionBlock block = parents.remove(instr);
+        if (block == null) {
+            throw new AssertionError("instruction is not part of the function: " + instr);
+        }
+        ModelEditor.removeInstruction(block, instr);
+        removeUses(instr);
+    }
+
+    /**
+     * Remove instructions from their blocks, without checking for users or side effects. Every
+     * affected block is only rewritten once.
+     */
+    public void eraseAll(Collection<? extends Instruction> instructions) {
+        final Map<InstructionBlock, Set<Instruction>> removedByBlock = new IdentityHashMap<>();
+        for (Instruction instr : instructions) {
+            final InstructionBlock block = parents.remove(instr);
+            if (block == null) {
+                throw new AssertionError("instruction is not part of the function: " + instr);
+            }
+            removedByBlock.computeIfAbsent(block, b -> Collections.newSetFromMap(new IdentityHashMap<>())).add(instr);
+            removeUses(instr);
+        }
+        for (Map.Entry<InstructionBlock, Set<Instruction>> entry : removedByBlock.entrySet()) {
+            final Set<Instruction> removed = entry.getValue();
+            ModelEditor.removeInstructions(entry.getKey(), removed::contains);
+        }
+    }
+
+    private void removeUses(Instruction instr) {
+        InstructionOperands.forEach(instr, op -> {
+            final Set<Instruction> set = users.get(op);
+            if (set != null) {
+                set.remove(instr);
+            }
+        });
+        users.remove(instr);
+    }
+}
@@ -31,8 +31,6 @@
  */
 package at.pointhi.irbuilder.irbuilder.helper;
 
-import java.util.Optional;
-
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDeclaration;
 import com.oracle.truffle.llvm.runtime.types.ArrayType;
 import com.oracle.truffle.llvm.runtime.types.FunctionType;
@@ -40,49 +38,245 @@ import com.oracle.truffle.llvm.runtime.types.PointerType;
 import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
 import com.oracle.truffle.llvm.runtime.types.StructureType;
 import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
 import com.oracle.truffle.llvm.runtime.types.VoidType;
-import com.oracle.truffle.llvm.runtime.types.symbols.LLVMIdentifier;
 
 import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
-import at.pointhi.irbuilder.irbuilder.util.ModelExtractor;
 
 public final class LLVMIntrinsics {
 
-    private static final FunctionType vaStartType = new FunctionType(VoidType.INSTANCE, new Type[]{new PointerType(PrimitiveType.I8)}, false);
-    private static final String vaStartName = "llvm.va_start";
+    /**
+     * Intrinsics which have a fixed signature, and can therefore be declared without any further
+     * information.
+     */
+    public enum Intrinsic {
+        VA_START("llvm.va_start", VoidType.INSTANCE, new PointerType(PrimitiveType.I8)),
+        VA_END("llvm.va_end", VoidType.INSTANCE, new PointerType(PrimitiveType.I8)),
+        VA_COPY("llvm.va_copy", VoidType.INSTANCE, new PointerType(PrimitiveType.I8), new PointerType(PrimitiveType.I8)),
+        STACKSAVE("llvm.stacksave", new PointerType(PrimitiveType.I8)),
+        STACKRESTORE("llvm.stackrestore", VoidType.INSTANCE, new PointerType(PrimitiveType.I8)),
+        TRAP("llvm.trap", VoidType.INSTANCE),
+        DEBUGTRAP("llvm.debugtrap", VoidType.INSTANCE),
+        FRAMEADDRESS("llvm.frameaddress", new PointerType(PrimitiveType.I8), PrimitiveType.I32),
+        RETURNADDRESS("llvm.returnaddress", new PointerType(PrimitiveType.I8), PrimitiveType.I32);
+
+        private final String name;
+        private final FunctionType type;
+
+        Intrinsic(String name, Type returnType, Type... argumentTypes) {
+            this.name = name;
+            this.type = new FunctionType(returnType, argumentTypes, false);
+        }
 
-    public static FunctionDeclaration getLlvmVaStart(ModelModuleBuilder builder) {
-        return getFunctionDeclaration(builder, vaStartName, vaStartType);
+        public String getName() {
+            return name;
+        }
+
+        public FunctionType getType() {
+            return type;
+        }
     }
 
-    private static final FunctionType vaEndType = new FunctionType(VoidType.INSTANCE, new Type[]{new PointerType(PrimitiveType.I8)}, false);
-    private static final String vaEndName = "llvm.va_end";
+    /**
+     * Get the declaration of an intrinsic, and declare it when this was not done yet.
+     */
+    public static FunctionDeclaration getIntrinsic(ModelModuleBuilder builder, Intrinsic intrinsic) {
+        return builder.getOrCreateFunctionDeclaration(intrinsic.getName(), intrinsic.getType());
+    }
 
-    public static FunctionDeclaration getLlvmVaEnd(ModelModuleBuilder builder) {
-        return getFunctionDeclaration(builder, vaEndName, vaEndType);
+    @FunctionalInterface
+    private interface Signature {
+        FunctionType create(Type[] overloads);
     }
 
-    private static final FunctionType memcpyP0i8P0i8i64Type = new FunctionType(VoidType.INSTANCE,
-                    new Type[]{new PointerType(PrimitiveType.I8), new PointerType(PrimitiveType.I8), PrimitiveType.I64, PrimitiveType.I32, PrimitiveType.I1}, false);
-    private static final String memcpyP0i8P0i8i64Name = "llvm.memcpy.p0i8.p0i8.i64";
+    /**
+     * Intrinsics which are overloaded on one or more types. The name of the actual intrinsic is the
+     * name of the family, followed by the suffixes of the overloaded types, like
+     * <code>llvm.ctpop.v4i32</code>.
+     */
+    public enum OverloadedIntrinsic {
+        // overloaded on destination pointer, source pointer and length
+        MEMCPY("llvm.memcpy", 3, o -> memoryTransfer(o)),
+        MEMMOVE("llvm.memmove", 3, o -> memoryTransfer(o)),
+        // overloaded on destination pointer and length
+        MEMSET("llvm.memset", 2, o -> new FunctionType(VoidType.INSTANCE, new Type[]{requirePointer(o[0]), PrimitiveType.I8, requireInteger(o[1]), PrimitiveType.I32, PrimitiveType.I1}, false)),
+
+        CTPOP("llvm.ctpop", 1, o -> new FunctionType(requireInteger(o[0]), new Type[]{o[0]}, false)),
+        // the i1 argument tells if a zero input is undefined
+        CTLZ("llvm.ctlz", 1, o -> new FunctionType(requireInteger(o[0]), new Type[]{o[0], PrimitiveType.I1}, false)),
+        CTTZ("llvm.cttz", 1, o -> new FunctionType(requireInteger(o[0]), new Type[]{o[0], PrimitiveType.I1}, false)),
+        BSWAP("llvm.bswap", 1, o -> new FunctionType(requireByteSwappable(o[0]), new Type[]{o[0]}, false)),
+
+        SADD_WITH_OVERFLOW("llvm.sadd.with.overflow", 1, o -> withOverflow(o[0])),
+        UADD_WITH_OVERFLOW("llvm.uadd.with.overflow", 1, o -> withOverflow(o[0])),
+        SSUB_WITH_OVERFLOW("llvm.ssub.with.overflow", 1, o -> withOverflow(o[0])),
+        USUB_WITH_OVERFLOW("llvm.usub.with.overflow", 1, o -> withOverflow(o[0])),
+        SMUL_WITH_OVERFLOW("llvm.smul.with.overflow", 1, o -> withOverflow(o[0])),
+        UMUL_WITH_OVERFLOW("llvm.umul.with.overflow", 1, o -> withOverflow(o[0])),
+
+        FMA("llvm.fma", 1, o -> new FunctionType(requireFloatingPoint(o[0]), new Type[]{o[0], o[0], o[0]}, false)),
+        FMULADD("llvm.fmuladd", 1, o -> new FunctionType(requireFloatingPoint(o[0]), new Type[]{o[0], o[0], o[0]}, false)),
 
-    public static FunctionDeclaration getLlvmMemcpyP0i8P0i8i64(ModelModuleBuilder builder) {
-        return getFunctionDeclaration(builder, memcpyP0i8P0i8i64Name, memcpyP0i8P0i8i64Type);
+        /*
+         * Horizontal reductions of a vector. They are only known to LLVM 5 and newer, where the name
+         * contains the result type in front of the vector type.
+         */
+        VECTOR_REDUCE_ADD("llvm.experimental.vector.reduce.add", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_MUL("llvm.experimental.vector.reduce.mul", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_AND("llvm.experimental.vector.reduce.and", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_OR("llvm.experimental.vector.reduce.or", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_XOR("llvm.experimental.vector.reduce.xor", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_SMAX("llvm.experimental.vector.reduce.smax", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_SMIN("llvm.experimental.vector.reduce.smin", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_UMAX("llvm.experimental.vector.reduce.umax", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_UMIN("llvm.experimental.vector.reduce.umin", 1, o -> reduction(o[0], false)),
+        VECTOR_REDUCE_FMAX("llvm.experimental.vector.reduce.fmax", 1, o -> reduction(o[0], true)),
+        VECTOR_REDUCE_FMIN("llvm.experimental.vector.reduce.fmin", 1, o -> reduction(o[0], true)),
+        /*
+         * The first argument is the start value. Without fast-math flags, the lanes are combined in
+         * order, starting with this value.
+         */
+        VECTOR_REDUCE_FADD("llvm.experimental.vector.reduce.fadd", 1, o -> reductionWithStart(o[0])),
+        VECTOR_REDUCE_FMUL("llvm.experimental.vector.reduce.fmul", 1, o -> reductionWithStart(o[0]));
+
+        private final String name;
+        private final int overloadCount;
+        private final Signature signature;
+
+        OverloadedIntrinsic(String name, int overloadCount, Signature signature) {
+            this.name = name;
+            this.overloadCount = overloadCount;
+            this.signature = signature;
+        }
+
+        public String getName(Type... overloads) {
+            checkOverloads(overloads);
+            final StringBuilder str = new StringBuilder(name);
+            if (isReduction()) {
+                // the result type is part of the name too
+                str.append('.').append(getTypeSuffix(((VectorType) overloads[0]).getElementType()));
+            }
+            for (Type type : overloads) {
+                str.append('.').append(getTypeSuffix(type));
+            }
+            return str.toString();
+        }
+
+        public FunctionType getType(Type... overloads) {
+            checkOverloads(overloads);
+            return signature.create(overloads);
+        }
+
+        private boolean isReduction() {
+            return name.startsWith("llvm.experimental.vector.reduce.");
+        }
+
+        private void checkOverloads(Type[] overloads) {
+            if (overloads.length != overloadCount) {
+                throw new AssertionError(name + " is overloaded on " + overloadCount + " types, got " + overloads.length);
+            }
+        }
+    }
+
+    private static FunctionType memoryTransfer(Type[] overloads) {
+        return new FunctionType(VoidType.INSTANCE, new Type[]{requirePointer(overloads[0]), requirePointer(overloads[1]), requireInteger(overloads[2]), PrimitiveType.I32, PrimitiveType.I1},
+                        false);
+    }
+
+    private static FunctionType withOverflow(Type type) {
+        if (!Type.isIntegerType(type)) {
+            throw new AssertionError("expected an integer type: " + type);
+        }
+        return new FunctionType(new StructureType(false, new Type[]{type, PrimitiveType.I1}), new Type[]{type, type}, false);
     }
 
-    private static FunctionDeclaration getFunctionDeclaration(ModelModuleBuilder builder, String name, FunctionType type) {
-        final String llvmName = LLVMIdentifier.toGlobalIdentifier(name);
-        final ModelExtractor<FunctionDeclaration> extractor = new ModelExtractor.FunctionDeclarationExtractor(f -> f.getName().equals(llvmName) && f.getType().equals(type));
+    private static FunctionType reduction(Type type, boolean floatingPoint) {
+        if (!(type instanceof VectorType)) {
+            throw new AssertionError("expected a vector type: " + type);
+        }
+        final Type elementType = ((VectorType) type).getElementType();
+        if (floatingPoint ? !Type.isFloatingpointType(elementType) : !Type.isIntegerType(elementType)) {
+            throw new AssertionError("invalid element type for this reduction: " + elementType);
+        }
+        return new FunctionType(elementType, new Type[]{type}, false);
+    }
+
+    private static FunctionType reductionWithStart(Type type) {
+        final FunctionType reduction = reduction(type, true);
+        return new FunctionType(reduction.getReturnType(), new Type[]{reduction.getReturnType(), type}, false);
+    }
+
+    private static Type getScalarType(Type type) {
+        return type instanceof VectorType ? ((VectorType) type).getElementType() : type;
+    }
 
-        builder.getModelModule().accept(extractor);
+    private static Type requireInteger(Type type) {
+        if (!Type.isIntegerType(getScalarType(type))) {
+            throw new AssertionError("expected an integer type: " + type);
+        }
+        return type;
+    }
+
+    private static Type requireFloatingPoint(Type type) {
+        if (!Type.isFloatingpointType(getScalarType(type))) {
+            throw new AssertionError("expected a floating point type: " + type);
+        }
+        return type;
+    }
+
+    private static Type requireByteSwappable(Type type) {
+        requireInteger(type);
+        if (getScalarType(type).getBitSize() % 16 != 0) {
+            throw new AssertionError("bswap needs an even number of bytes: " + type);
+        }
+        return type;
+    }
 
-        // only create function declaration if it does not exist yet
-        final Optional<FunctionDeclaration> match = extractor.getMatch();
-        if (match.isPresent()) {
-            return match.get();
-        } else {
-            return builder.createFunctionDeclaration(name, type);
+    private static Type requirePointer(Type type) {
+        if (!(type instanceof PointerType)) {
+            throw new AssertionError("expected a pointer type: " + type);
         }
+        return type;
+    }
+
+    /**
+     * Get the suffix which is used to name an overloaded intrinsic, like <code>v4i32</code> for
+     * <code>&lt;4 x i32&gt;</code> or <code>p0i8</code> for <code>i8*</code>.
+     */
+    public static String getTypeSuffix(Type type) {
+        if (type instanceof PointerType) {
+            // our model has no address spaces, so every pointer is in address space 0
+            return "p0" + getTypeSuffix(((PointerType) type).getPointeeType());
+        } else if (type instanceof VectorType) {
+            final VectorType vector = (VectorType) type;
+            return "v" + vector.getNumberOfElements() + getTypeSuffix(vector.getElementType());
+        } else if (Type.isIntegerType(type)) {
+            return "i" + type.getBitSize();
+        } else if (Type.isFloatingpointType(type)) {
+            return "f" + type.getBitSize();
+        }
+        throw new AssertionError("type cannot be used for an overloaded intrinsic: " + type);
+    }
+
+    /**
+     * Get the declaration of an overloaded intrinsic for the given types, and declare it when this
+     * was not done yet.
+     */
+    public static FunctionDeclaration getIntrinsic(ModelModuleBuilder builder, OverloadedIntrinsic intrinsic, Type... overloads) {
+        return builder.getOrCreateFunctionDeclaration(intrinsic.getName(overloads), intrinsic.getType(overloads));
+    }
+
+    public static FunctionDeclaration getLlvmVaStart(ModelModuleBuilder builder) {
+        return getIntrinsic(builder, Intrinsic.VA_START);
+    }
+
+    public static FunctionDeclaration getLlvmVaEnd(ModelModuleBuilder builder) {
+        return getIntrinsic(builder, Intrinsic.VA_END);
+    }
+
+    public static FunctionDeclaration getLlvmMemcpyP0i8P0i8i64(ModelModuleBuilder builder) {
+        final Type bytePointer = new PointerType(PrimitiveType.I8);
+        return getIntrinsic(builder, OverloadedIntrinsic.MEMCPY, bytePointer, bytePointer, PrimitiveType.I64);
     }
 
     public enum VA_LIST_TAG_TYPE {
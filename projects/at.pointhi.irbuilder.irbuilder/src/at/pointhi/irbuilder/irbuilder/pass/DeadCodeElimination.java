@@ -0,0 +1,251 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.pass;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.PhiInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ValueInstruction;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.analysis.AnalysisCache;
+import at.pointhi.irbuilder.irbuilder.analysis.DominatorTree;
+import at.pointhi.irbuilder.irbuilder.analysis.FunctionAnalysis;
+import at.pointhi.irbuilder.irbuilder.analysis.SideEffects;
+import at.pointhi.irbuilder.irbuilder.util.InstructionOperands;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+
+/**
+ * Remove blocks which are not reachable from the entry block, and all instructions without side
+ * effects whose result is never used.
+ *
+ * Instructions are only kept if they have side effects, or are (transitively) used by such an
+ * instruction. This also removes dead cycles of phi instructions, which are left behind by
+ * {@link PromoteMemoryToRegister}.
+ */
+public final class DeadCodeElimination {
+
+    public static final FunctionPass PASS = new FunctionPass() {
+        @Override
+        public String getName() {
+            return "dce";
+        }
+
+        @Override
+        public List<FunctionAnalysis<?>> getRequiredAnalyses() {
+            return Collections.singletonList(DominatorTree.ANALYSIS);
+        }
+
+        @Override
+        public boolean run(FunctionDefinition function, AnalysisCache cache) {
+            return DeadCodeElimination.run(function, cache);
+        }
+    };
+
+    private final FunctionDefinition function;
+    private final DominatorTree domTree;
+
+    private final Map<Symbol, Symbol> replacements = new IdentityHashMap<>();
+
+    private DeadCodeElimination(FunctionDefinition function, DominatorTree domTree) {
+        this.function = function;
+        this.domTree = domTree;
+    }
+
+    public static boolean run(FunctionDefinition function) {
+        return run(function, new AnalysisCache());
+    }
+
+    /**
+     * @return true if anything was removed
+     */
+    public static boolean run(FunctionDefinition function, AnalysisCache cache) {
+        if (function.getBlocks().isEmpty()) {
+            return false;
+        }
+
+        final DeadCodeElimination dce = new DeadCodeElimination(function, cache.get(function, DominatorTree.ANALYSIS));
+        boolean changed = dce.removeUnreachableBlocks();
+        changed |= dce.removeDeadInstructions();
+
+        if (changed) {
+            ModelEditor.renumberValues(function);
+            cache.invalidate(function);
+        }
+        return changed;
+    }
+
+    private boolean removeUnreachableBlocks() {
+        boolean hasUnreachable = false;
+        for (InstructionBlock block : function.getBlocks()) {
+            if (!domTree.isReachable(block)) {
+                hasUnreachable = true;
+                break;
+            }
+        }
+        if (!hasUnreachable) {
+            return false;
+        }
+
+        // phi instructions must not reference blocks which do not exist anymore
+        for (InstructionBlock block : function.getBlocks()) {
+            if (!domTree.isReachable(block)) {
+                continue;
+            }
+            final List<Instruction> instructions = ModelEditor.getInstructions(block);
+            for (int i = 0; i < instructions.size() && instructions.get(i) instanceof PhiInstruction; i++) {
+                final Symbol replacement = removeUnreachableIncoming((PhiInstruction) instructions.get(i));
+                if (replacement instanceof PhiInstruction) {
+                    instructions.set(i, (PhiInstruction) replacement);
+                } else if (replacement != null) {
+                    instructions.remove(i--);
+                }
+            }
+        }
+
+        if (!replacements.isEmpty()) {
+            for (InstructionBlock block : function.getBlocks()) {
+                if (!domTree.isReachable(block)) {
+                    continue;
+                }
+                for (int i = 0; i < block.getInstructionCount(); i++) {
+                    final Instruction instr = block.getInstruction(i);
+                    for (Symbol op : InstructionOperands.get(instr)) {
+                        if (replacements.containsKey(op)) {
+                            instr.replace(op, resolve(op));
+                        }
+                    }
+                }
+            }
+        }
+
+        ModelEditor.removeBlocks(function, block -> !domTree.isReachable(block));
+        return true;
+    }
+
+    private Symbol resolve(Symbol sym) {
+        Symbol resolved = sym;
+        while (replacements.containsKey(resolved)) {
+            resolved = replacements.get(resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Create a replacement for a phi without the incoming values of unreachable blocks.
+     *
+     * @return null if the phi does not need to be changed, otherwise the replacement
+     */
+    private Symbol removeUnreachableIncoming(PhiInstruction phi) {
+        final List<Symbol> values = new ArrayList<>(phi.getSize());
+        final List<InstructionBlock> blocks = new ArrayList<>(phi.getSize());
+        for (int i = 0; i < phi.getSize(); i++) {
+            if (domTree.isReachable(phi.getBlock(i))) {
+                values.add(phi.getValue(i));
+                blocks.add(phi.getBlock(i));
+            }
+        }
+        if (values.size() == phi.getSize()) {
+            return null;
+        }
+
+        final Symbol replacement;
+        if (isUniqueValue(phi, values)) {
+            replacement = values.get(0);
+        } else {
+            final int[] valuesIdx = new int[values.size()];
+            for (int i = 0; i < values.size(); i++) {
+                valuesIdx[i] = ModelEditor.addSymbol(function, values.get(i));
+            }
+            final PhiInstruction newPhi = PhiInstruction.generate(function, phi.getType(), valuesIdx, blocks.toArray(new InstructionBlock[blocks.size()]));
+            ModelEditor.copyName(phi, newPhi);
+            replacement = newPhi;
+        }
+        replacements.put(phi, replacement);
+        return replacement;
+    }
+
+    private static boolean isUniqueValue(PhiInstruction phi, List<Symbol> values) {
+        final Symbol first = values.get(0);
+        for (Symbol value : values) {
+            if (value != first || value == phi) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean removeDeadInstructions() {
+        final Set<Instruction> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<Instruction> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<Instruction> worklist = new ArrayDeque<>();
+
+        for (InstructionBlock block : function.getBlocks()) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                all.add(instr);
+                if (!SideEffects.isRemovable(instr)) {
+                    live.add(instr);
+                    worklist.add(instr);
+                }
+            }
+        }
+
+        if (live.size() == all.size()) {
+            return false;
+        }
+
+        while (!worklist.isEmpty()) {
+            InstructionOperands.forEach(worklist.poll(), op -> {
+                if (op instanceof ValueInstruction && all.contains(op) && live.add((Instruction) op)) {
+                    worklist.add((Instruction) op);
+                }
+            });
+        }
+
+        boolean changed = false;
+        for (InstructionBlock block : function.getBlocks()) {
+            changed |= ModelEditor.removeInstructions(block, instr -> !live.contains(instr));
+        }
+        return changed;
+    }
+}
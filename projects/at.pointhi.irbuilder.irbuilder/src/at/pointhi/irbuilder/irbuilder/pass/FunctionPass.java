@@ -0,0 +1,70 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.pass;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+
+import at.pointhi.irbuilder.irbuilder.analysis.AnalysisCache;
+import at.pointhi.irbuilder.irbuilder.analysis.FunctionAnalysis;
+
+/**
+ * Transformation of a single function, which is executed by the {@link PassManager}.
+ *
+ * A pass must only modify the function it is executed on, because multiple functions are processed
+ * in parallel.
+ */
+public interface FunctionPass {
+
+    String getName();
+
+    /**
+     * Analyses which are computed before the pass is executed.
+     */
+    default List<FunctionAnalysis<?>> getRequiredAnalyses() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Analyses which are still valid after the pass changed the function.
+     */
+    default List<FunctionAnalysis<?>> getPreservedAnalyses() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return true if the function was changed
+     */
+    boolean run(FunctionDefinition function, AnalysisCache cache);
+}
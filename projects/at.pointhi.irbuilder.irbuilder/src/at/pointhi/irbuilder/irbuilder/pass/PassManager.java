@@ -0,0 +1,182 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.pass;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.visitors.ModelVisitor;
+
+import at.pointhi.irbuilder.irbuilder.analysis.AnalysisCache;
+import at.pointhi.irbuilder.irbuilder.analysis.FunctionAnalysis;
+import at.pointhi.irbuilder.irbuilder.util.ModelIndex;
+
+/**
+ * Execute a sequence of function passes on every function of a module.
+ *
+ * Functions are independent of each other, so they are processed in parallel, while the passes are
+ * executed in order for every single function. Analysis results are shared between the passes
+ * until a pass changes the function.
+ */
+public final class PassManager {
+
+    private final ForkJoinPool pool;
+    private final AnalysisCache cache;
+
+    private final List<FunctionPass> passes = new ArrayList<>();
+    private final List<LongAdder> timings = new ArrayList<>();
+
+    private boolean parallel = true;
+    private ModelIndex index;
+
+    public PassManager() {
+        this(ForkJoinPool.commonPool(), new AnalysisCache());
+    }
+
+    public PassManager(ForkJoinPool pool, AnalysisCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    public PassManager add(FunctionPass pass) {
+        passes.add(pass);
+        timings.add(new LongAdder());
+        return this;
+    }
+
+    /**
+     * Process all functions on the current thread, which is useful for debugging.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Keep the call sites of the index up to date, when a pass changes a function.
+     */
+    public void setModelIndex(ModelIndex index) {
+        this.index = index;
+    }
+
+    public AnalysisCache getAnalysisCache() {
+        return cache;
+    }
+
+    public void run(ModelModule model) {
+        final List<FunctionDefinition> functions = new ArrayList<>();
+        model.accept(new ModelVisitor() {
+            @Override
+            public void visit(FunctionDefinition function) {
+                functions.add(function);
+            }
+        });
+
+        if (!parallel || functions.size() < 2) {
+            for (FunctionDefinition function : functions) {
+                run(function);
+            }
+            return;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<>(functions.size());
+        for (FunctionDefinition function : functions) {
+            tasks.add(() -> {
+                run(function);
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Execute all passes on a single function.
+     */
+    public void run(FunctionDefinition function) {
+        boolean changed = false;
+        for (int i = 0; i < passes.size(); i++) {
+            final FunctionPass pass = passes.get(i);
+            final long start = System.nanoTime();
+
+            for (FunctionAnalysis<?> analysis : pass.getRequiredAnalyses()) {
+                cache.get(function, analysis);
+            }
+            if (pass.run(function, cache)) {
+                cache.invalidateExcept(function, pass.getPreservedAnalyses());
+                changed = true;
+            }
+
+            timings.get(i).add(System.nanoTime() - start);
+        }
+
+        if (changed && index != null) {
+            index.updateCallSites(function);
+        }
+    }
+
+    /**
+     * Get the time spent in every pass, including the required analyses, summed up over all
+     * functions and threads.
+     *
+     * @return nanoseconds per pass name
+     */
+    public Map<String, Long> getTimings() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < passes.size(); i++) {
+            result.merge(passes.get(i).getName(), timings.get(i).sum(), Long::sum);
+        }
+        return result;
+    }
+
+    public void printTimings(PrintStream out) {
+        for (Map.Entry<String, Long> entry : getTimings().entrySet()) {
+            out.printf("%-30s %10.3f ms%n", entry.getKey(), entry.getValue() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+}
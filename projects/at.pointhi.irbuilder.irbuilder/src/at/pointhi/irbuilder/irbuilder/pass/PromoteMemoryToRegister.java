@@ -0,0 +1,457 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.pass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.AtomicOrdering;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.Symbols;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.UndefinedConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.AllocateInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.LoadInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.PhiInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.StoreInstruction;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.analysis.AnalysisCache;
+import at.pointhi.irbuilder.irbuilder.analysis.ControlFlowGraph;
+import at.pointhi.irbuilder.irbuilder.analysis.DominatorTree;
+import at.pointhi.irbuilder.irbuilder.analysis.FunctionAnalysis;
+import at.pointhi.irbuilder.irbuilder.analysis.UseIndex;
+import at.pointhi.irbuilder.irbuilder.util.InstructionOperands;
+import at.pointhi.irbuilder.irbuilder.util.IntArrayBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+
+/**
+ * Promote local variables which live in memory into SSA values (also known as mem2reg).
+ *
+ * The builders are routing every local variable through allocate, store and load, which results in
+ * real memory accesses when the code is executed. Allocas of the entry block which are only used as
+ * target of non-volatile loads and stores are replaced by SSA values, and phi instructions are
+ * placed at the iterated dominance frontier of their stores (Cytron et al.).
+ *
+ * This pass should be executed after the function was completely built.
+ */
+public final class PromoteMemoryToRegister {
+
+    public static final FunctionPass PASS = new FunctionPass() {
+        @Override
+        public String getName() {
+            return "mem2reg";
+        }
+
+        @Override
+        public List<FunctionAnalysis<?>> getRequiredAnalyses() {
+            return Arrays.asList(ControlFlowGraph.ANALYSIS, DominatorTree.ANALYSIS);
+        }
+
+        @Override
+        public List<FunctionAnalysis<?>> getPreservedAnalyses() {
+            return Arrays.asList(ControlFlowGraph.ANALYSIS, DominatorTree.ANALYSIS);
+        }
+
+        @Override
+        public boolean run(FunctionDefinition function, AnalysisCache cache) {
+            return PromoteMemoryToRegister.run(function, cache) > 0;
+        }
+    };
+
+    private final FunctionDefinition function;
+    private final List<InstructionBlock> blocks;
+
+    private final AnalysisCache cache;
+    private ControlFlowGraph cfg;
+    private DominatorTree domTree;
+
+    // promotable allocas and their index in the arrays below
+    private final Map<Symbol, Integer> allocaIndex = new IdentityHashMap<>();
+    private final List<AllocateInstruction> allocas = new ArrayList<>();
+    private final List<IntArrayBuilder> defBlocks = new ArrayList<>();
+
+    // inserted phi instructions, with the alloca they belong to and their not yet resolved values
+    private final Map<PhiInstruction, Integer> phiAlloca = new IdentityHashMap<>();
+    private final Map<PhiInstruction, Symbol[]> phiPlaceholders = new IdentityHashMap<>();
+    private List<List<PhiInstruction>> blockPhis;
+
+    private final Map<Symbol, Symbol> replacements = new IdentityHashMap<>();
+    private final Set<Instruction> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private PromoteMemoryToRegister(FunctionDefinition function, AnalysisCache cache) {
+        this.function = function;
+        this.blocks = function.getBlocks();
+        this.cache = cache;
+    }
+
+    /**
+     * Promote all suitable allocas of a function.
+     *
+     * @return number of promoted allocas
+     */
+    public static int run(FunctionDefinition function) {
+        return run(function, new AnalysisCache());
+    }
+
+    /**
+     * Promote all suitable allocas of a function. The control flow of the function is not changed,
+     * so the cached control flow analyses are still valid afterwards.
+     *
+     * @return number of promoted allocas
+     */
+    public static int run(FunctionDefinition function, AnalysisCache cache) {
+        if (function.getBlocks().isEmpty()) {
+            return 0;
+        }
+        return new PromoteMemoryToRegister(function, cache).promote();
+    }
+
+    private int promote() {
+        findPromotableAllocas();
+        if (allocas.isEmpty()) {
+            return 0; // nothing to do
+        }
+
+        cfg = cache.get(function, ControlFlowGraph.ANALYSIS);
+        domTree = cache.get(function, DominatorTree.ANALYSIS);
+
+        insertPhis();
+        rename();
+        removeUnreachableAccesses();
+        rewriteUses();
+
+        for (InstructionBlock block : blocks) {
+            ModelEditor.removeInstructions(block, removed::contains);
+        }
+        ModelEditor.renumberValues(function);
+
+        // we changed the operands of instructions without updating the index
+        cache.invalidate(function, UseIndex.ANALYSIS);
+
+        return allocas.size();
+    }
+
+    private static boolean isPromotableType(Type type) {
+        return type instanceof PrimitiveType || type instanceof PointerType || type instanceof VectorType;
+    }
+
+    private static boolean isSingleElement(AllocateInstruction allocate) {
+        final Symbol count = allocate.getCount();
+        return count instanceof IntegerConstant && ((IntegerConstant) count).getValue() == 1;
+    }
+
+    private Type getAllocatedType(Symbol alloca) {
+        return allocas.get(allocaIndex.get(alloca)).getPointeeType();
+    }
+
+    private void findPromotableAllocas() {
+        final Map<Symbol, Boolean> candidates = new IdentityHashMap<>();
+
+        final InstructionBlock entry = blocks.get(0);
+        for (int i = 0; i < entry.getInstructionCount(); i++) {
+            final Instruction instr = entry.getInstruction(i);
+            if (instr instanceof AllocateInstruction) {
+                final AllocateInstruction allocate = (AllocateInstruction) instr;
+                if (isSingleElement(allocate) && isPromotableType(allocate.getPointeeType())) {
+                    candidates.put(allocate, Boolean.TRUE);
+                }
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        // every use which is not a simple load or store lets the alloca escape
+        for (InstructionBlock block : blocks) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (instr instanceof LoadInstruction) {
+                    final LoadInstruction load = (LoadInstruction) instr;
+                    if (candidates.containsKey(load.getSource())) {
+                        final Type type = ((AllocateInstruction) load.getSource()).getPointeeType();
+                        if (load.isVolatile() || load.getAtomicOrdering() != AtomicOrdering.NOT_ATOMIC || !load.getType().equals(type)) {
+                            candidates.put(load.getSource(), Boolean.FALSE);
+                        }
+                    }
+                } else if (instr instanceof StoreInstruction) {
+                    final StoreInstruction store = (StoreInstruction) instr;
+                    if (candidates.containsKey(store.getSource())) {
+                        candidates.put(store.getSource(), Boolean.FALSE);
+                    }
+                    if (candidates.containsKey(store.getDestination())) {
+                        final Type type = ((AllocateInstruction) store.getDestination()).getPointeeType();
+                        if (store.isVolatile() || store.getAtomicOrdering() != AtomicOrdering.NOT_ATOMIC || !store.getSource().getType().equals(type)) {
+                            candidates.put(store.getDestination(), Boolean.FALSE);
+                        }
+                    }
+                } else {
+                    InstructionOperands.forEach(instr, op -> {
+                        if (candidates.containsKey(op)) {
+                            candidates.put(op, Boolean.FALSE);
+                        }
+                    });
+                }
+            }
+        }
+
+        for (int i = 0; i < entry.getInstructionCount(); i++) {
+            final Instruction instr = entry.getInstruction(i);
+            if (candidates.get(instr) == Boolean.TRUE) {
+                allocaIndex.put(instr, allocas.size());
+                allocas.add((AllocateInstruction) instr);
+                defBlocks.add(new IntArrayBuilder());
+            }
+        }
+
+        for (InstructionBlock block : blocks) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (instr instanceof StoreInstruction) {
+                    final Integer idx = allocaIndex.get(((StoreInstruction) instr).getDestination());
+                    if (idx != null) {
+                        defBlocks.get(idx).add(block.getBlockIndex());
+                    }
+                }
+            }
+        }
+    }
+
+    private void insertPhis() {
+        final int n = blocks.size();
+        blockPhis = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            blockPhis.add(null);
+        }
+
+        final boolean[] hasPhi = new boolean[n];
+        final boolean[] inWorklist = new boolean[n];
+        final IntArrayBuilder worklist = new IntArrayBuilder();
+
+        for (int a = 0; a < allocas.size(); a++) {
+            Arrays.fill(hasPhi, false);
+            Arrays.fill(inWorklist, false);
+            worklist.clear();
+
+            final IntArrayBuilder defs = defBlocks.get(a);
+            for (int i = 0; i < defs.size(); i++) {
+                final int b = defs.get(i);
+                if (domTree.isReachable(b) && !inWorklist[b]) {
+                    inWorklist[b] = true;
+                    worklist.add(b);
+                }
+            }
+
+            // the worklist can grow while we are iterating over it
+            for (int w = 0; w < worklist.size(); w++) {
+                final int x = worklist.get(w);
+                for (int i = 0; i < domTree.getFrontierCount(x); i++) {
+                    final int y = domTree.getFrontier(x, i);
+                    if (!hasPhi[y]) {
+                        hasPhi[y] = true;
+                        createPhi(a, y);
+                        if (!inWorklist[y]) {
+                            inWorklist[y] = true;
+                            worklist.add(y);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void createPhi(int alloca, int blockIdx) {
+        final Type type = allocas.get(alloca).getPointeeType();
+        final int predecessorCount = cfg.getPredecessorCount(blockIdx);
+
+        final Symbols symbols = function.getSymbols();
+        final InstructionBlock[] incomingBlocks = new InstructionBlock[predecessorCount];
+        final Symbol[] placeholders = new Symbol[predecessorCount];
+        final int[] valuesIdx = new int[predecessorCount];
+        for (int i = 0; i < predecessorCount; i++) {
+            incomingBlocks[i] = blocks.get(cfg.getPredecessor(blockIdx, i));
+            // every value is undefined until we know better, which stays true for unreachable blocks
+            placeholders[i] = new UndefinedConstant(type);
+            symbols.addSymbol(placeholders[i]);
+            valuesIdx[i] = symbols.getSize() - 1;
+        }
+
+        final PhiInstruction phi = PhiInstruction.generate(function, type, valuesIdx, incomingBlocks);
+        phi.setName("0"); // fixed when the values are renumbered
+
+        ModelEditor.insertInstruction(blocks.get(blockIdx), 0, phi);
+        phiAlloca.put(phi, alloca);
+        phiPlaceholders.put(phi, placeholders);
+        if (blockPhis.get(blockIdx) == null) {
+            blockPhis.set(blockIdx, new ArrayList<>());
+        }
+        blockPhis.get(blockIdx).add(phi);
+    }
+
+    private Symbol resolve(Symbol sym) {
+        Symbol resolved = sym;
+        while (replacements.containsKey(resolved)) {
+            resolved = replacements.get(resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Walk the dominator tree and replace every load by the value which was stored last.
+     */
+    private void rename() {
+        final Symbol[] current = new Symbol[allocas.size()];
+        for (int a = 0; a < allocas.size(); a++) {
+            current[a] = new UndefinedConstant(allocas.get(a).getPointeeType());
+        }
+
+        // values which were overwritten inside a subtree, and need to be restored afterwards
+        final IntArrayBuilder undoAlloca = new IntArrayBuilder();
+        final List<Symbol> undoValue = new ArrayList<>();
+        final int[] undoMark = new int[blocks.size()];
+
+        // a negative entry marks that the subtree of the block was completely processed
+        final IntArrayBuilder stack = new IntArrayBuilder();
+        stack.add(0);
+        while (stack.size() > 0) {
+            final int entry = stack.removeLast();
+
+            if (entry < 0) {
+                final int mark = undoMark[-entry - 1];
+                while (undoAlloca.size() > mark) {
+                    current[undoAlloca.removeLast()] = undoValue.remove(undoValue.size() - 1);
+                }
+                continue;
+            }
+
+            final int b = entry;
+            undoMark[b] = undoAlloca.size();
+            final InstructionBlock block = blocks.get(b);
+
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                final Integer phiIdx = instr instanceof PhiInstruction ? phiAlloca.get(instr) : null;
+                if (phiIdx != null) {
+                    undoAlloca.add(phiIdx);
+                    undoValue.add(current[phiIdx]);
+                    current[phiIdx] = instr;
+                } else if (instr instanceof LoadInstruction) {
+                    final Integer a = allocaIndex.get(((LoadInstruction) instr).getSource());
+                    if (a != null) {
+                        replacements.put(instr, current[a]);
+                        removed.add(instr);
+                    }
+                } else if (instr instanceof StoreInstruction) {
+                    final StoreInstruction store = (StoreInstruction) instr;
+                    final Integer a = allocaIndex.get(store.getDestination());
+                    if (a != null) {
+                        undoAlloca.add(a);
+                        undoValue.add(current[a]);
+                        current[a] = resolve(store.getSource());
+                        removed.add(instr);
+                    }
+                }
+            }
+
+            for (int succ = 0; succ < cfg.getSuccessorCount(b); succ++) {
+                final List<PhiInstruction> phis = blockPhis.get(cfg.getSuccessor(b, succ));
+                if (phis == null) {
+                    continue;
+                }
+                for (PhiInstruction phi : phis) {
+                    final Symbol[] placeholders = phiPlaceholders.get(phi);
+                    final Symbol value = current[phiAlloca.get(phi)];
+                    for (int i = 0; i < phi.getSize(); i++) {
+                        if (phi.getBlock(i) == block && phi.getValue(i) == placeholders[i]) {
+                            phi.replace(placeholders[i], value);
+                        }
+                    }
+                }
+            }
+
+            stack.add(-b - 1);
+            for (int i = 0; i < domTree.getChildCount(b); i++) {
+                stack.add(domTree.getChild(b, i));
+            }
+        }
+    }
+
+    /**
+     * Blocks which are not reachable are not visited when we rename the values. Their accesses
+     * would reference the removed allocas, so they are replaced as well.
+     */
+    private void removeUnreachableAccesses() {
+        for (InstructionBlock block : blocks) {
+            if (domTree.isReachable(block)) {
+                continue;
+            }
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (instr instanceof LoadInstruction && allocaIndex.containsKey(((LoadInstruction) instr).getSource())) {
+                    replacements.put(instr, new UndefinedConstant(getAllocatedType(((LoadInstruction) instr).getSource())));
+                    removed.add(instr);
+                } else if (instr instanceof StoreInstruction && allocaIndex.containsKey(((StoreInstruction) instr).getDestination())) {
+                    removed.add(instr);
+                }
+            }
+        }
+        removed.addAll(allocas);
+    }
+
+    private void rewriteUses() {
+        for (InstructionBlock block : blocks) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (removed.contains(instr)) {
+                    continue;
+                }
+                for (Symbol op : InstructionOperands.get(instr)) {
+                    if (replacements.containsKey(op)) {
+                        instr.replace(op, resolve(op));
+                    }
+                }
+            }
+        }
+    }
+}
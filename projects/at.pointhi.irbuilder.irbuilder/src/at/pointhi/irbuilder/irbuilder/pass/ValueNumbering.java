@@ -0,0 +1,434 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.pass;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.AtomicOrdering;
+import com.oracle.truffle.llvm.parser.model.enums.Flag;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.BinaryOperationInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CastInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CompareInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractElementInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractValueInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.GetElementPointerInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertElementInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertValueInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.LoadInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SelectInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ShuffleVectorInstruction;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.analysis.AnalysisCache;
+import at.pointhi.irbuilder.irbuilder.analysis.ControlFlowGraph;
+import at.pointhi.irbuilder.irbuilder.analysis.DominatorTree;
+import at.pointhi.irbuilder.irbuilder.analysis.FunctionAnalysis;
+import at.pointhi.irbuilder.irbuilder.analysis.SideEffects;
+import at.pointhi.irbuilder.irbuilder.analysis.UseIndex;
+import at.pointhi.irbuilder.irbuilder.util.InstructionOperands;
+import at.pointhi.irbuilder.irbuilder.util.IntArrayBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+
+/**
+ * Merge pure instructions which compute the same value as an instruction in a dominating block.
+ *
+ * Instructions are hashed into a 64 bit key, and stored in a scoped hash table while the dominator
+ * tree is walked. Integer constants are compared by value, because the builders are creating a new
+ * constant object for every use. Loads are only merged inside a block, as long as there is no
+ * instruction in between which could write to memory.
+ */
+public final class ValueNumbering {
+
+    public static final FunctionPass PASS = new FunctionPass() {
+        @Override
+        public String getName() {
+            return "gvn";
+        }
+
+        @Override
+        public List<FunctionAnalysis<?>> getRequiredAnalyses() {
+            return Collections.singletonList(DominatorTree.ANALYSIS);
+        }
+
+        @Override
+        public List<FunctionAnalysis<?>> getPreservedAnalyses() {
+            return Arrays.asList(ControlFlowGraph.ANALYSIS, DominatorTree.ANALYSIS);
+        }
+
+        @Override
+        public boolean run(FunctionDefinition function, AnalysisCache cache) {
+            return ValueNumbering.run(function, cache) > 0;
+        }
+    };
+
+    private final FunctionDefinition function;
+    private final DominatorTree domTree;
+
+    private final ExpressionTable table = new ExpressionTable();
+    private final Map<Symbol, Symbol> replacements = new IdentityHashMap<>();
+    private final Set<Instruction> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // incremented whenever memory could have been changed, to invalidate all loads
+    private int memoryGeneration = 0;
+
+    private ValueNumbering(FunctionDefinition function, DominatorTree domTree) {
+        this.function = function;
+        this.domTree = domTree;
+    }
+
+    public static int run(FunctionDefinition function) {
+        return run(function, new AnalysisCache());
+    }
+
+    /**
+     * @return number of removed instructions
+     */
+    public static int run(FunctionDefinition function, AnalysisCache cache) {
+        if (function.getBlocks().isEmpty()) {
+            return 0;
+        }
+
+        final ValueNumbering gvn = new ValueNumbering(function, cache.get(function, DominatorTree.ANALYSIS));
+        gvn.walkDominatorTree();
+        if (gvn.removed.isEmpty()) {
+            return 0;
+        }
+
+        gvn.rewriteUses();
+        for (InstructionBlock block : function.getBlocks()) {
+            ModelEditor.removeInstructions(block, gvn.removed::contains);
+        }
+        ModelEditor.renumberValues(function);
+
+        // we changed the operands of instructions without updating the index
+        cache.invalidate(function, UseIndex.ANALYSIS);
+
+        return gvn.removed.size();
+    }
+
+    private void walkDominatorTree() {
+        final int[] scopeMark = new int[function.getBlocks().size()];
+
+        // a negative entry marks that the subtree of the block was completely processed
+        final IntArrayBuilder stack = new IntArrayBuilder();
+        stack.add(0);
+        while (stack.size() > 0) {
+            final int entry = stack.removeLast();
+            if (entry < 0) {
+                table.popTo(scopeMark[-entry - 1]);
+                continue;
+            }
+
+            scopeMark[entry] = table.size();
+            processBlock(function.getBlocks().get(entry));
+
+            stack.add(-entry - 1);
+            for (int i = 0; i < domTree.getChildCount(entry); i++) {
+                stack.add(domTree.getChild(entry, i));
+            }
+        }
+    }
+
+    private void processBlock(InstructionBlock block) {
+        // loads of dominating blocks are never reused
+        memoryGeneration++;
+
+        for (int i = 0; i < block.getInstructionCount(); i++) {
+            final Instruction instr = block.getInstruction(i);
+            if (!isCandidate(instr)) {
+                if (!SideEffects.isRemovable(instr)) {
+                    memoryGeneration++;
+                }
+                continue;
+            }
+
+            final int generation = instr instanceof LoadInstruction ? memoryGeneration : 0;
+            final long hash = hash(instr);
+            final Instruction existing = table.find(hash, generation, instr, this);
+            if (existing != null) {
+                replacements.put(instr, existing);
+                removed.add(instr);
+            } else {
+                table.push(hash, generation, instr);
+            }
+        }
+    }
+
+    private static boolean isCandidate(Instruction instr) {
+        if (instr instanceof LoadInstruction) {
+            final LoadInstruction load = (LoadInstruction) instr;
+            return !load.isVolatile() && load.getAtomicOrdering() == AtomicOrdering.NOT_ATOMIC;
+        }
+        return instr instanceof BinaryOperationInstruction || instr instanceof CastInstruction || instr instanceof CompareInstruction || instr instanceof ExtractElementInstruction ||
+                        instr instanceof ExtractValueInstruction || instr instanceof GetElementPointerInstruction || instr instanceof InsertElementInstruction ||
+                        instr instanceof InsertValueInstruction || instr instanceof SelectInstruction || instr instanceof ShuffleVectorInstruction;
+    }
+
+    private static boolean isCommutative(Instruction instr) {
+        if (!(instr instanceof BinaryOperationInstruction)) {
+            return false;
+        }
+        switch (((BinaryOperationInstruction) instr).getOperator()) {
+            case INT_ADD:
+            case INT_MULTIPLY:
+            case INT_AND:
+            case INT_OR:
+            case INT_XOR:
+            case FP_ADD:
+            case FP_MULTIPLY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Symbol resolve(Symbol sym) {
+        Symbol resolved = sym;
+        while (replacements.containsKey(resolved)) {
+            resolved = replacements.get(resolved);
+        }
+        return resolved;
+    }
+
+    private static long mix(long h, long value) {
+        // 64 bit variant of the FNV multiply step, with an additional shift to spread high bits
+        final long x = (h ^ value) * 0x100000001B3L;
+        return x ^ (x >>> 29);
+    }
+
+    private long hashOperand(Symbol sym) {
+        final Symbol resolved = resolve(sym);
+        if (resolved instanceof IntegerConstant) {
+            return mix(resolved.getType().hashCode(), ((IntegerConstant) resolved).getValue());
+        }
+        return System.identityHashCode(resolved);
+    }
+
+    private boolean equalOperands(Symbol a, Symbol b) {
+        final Symbol x = resolve(a);
+        final Symbol y = resolve(b);
+        if (x == y) {
+            return true;
+        }
+        return x instanceof IntegerConstant && y instanceof IntegerConstant && x.getType().equals(y.getType()) && ((IntegerConstant) x).getValue() == ((IntegerConstant) y).getValue();
+    }
+
+    private static List<Flag> getFlags(BinaryOperationInstruction instr) {
+        final List<Flag> flags = new ArrayList<>();
+        for (Flag flag : instr.getFlags()) {
+            flags.add(flag);
+        }
+        return flags;
+    }
+
+    /**
+     * Attributes of an instruction, which are not covered by its class, type or operands.
+     */
+    private static long hashAttributes(Instruction instr) {
+        if (instr instanceof BinaryOperationInstruction) {
+            return mix(((BinaryOperationInstruction) instr).getOperator().ordinal(), getFlags((BinaryOperationInstruction) instr).hashCode());
+        } else if (instr instanceof CastInstruction) {
+            return ((CastInstruction) instr).getOperator().ordinal();
+        } else if (instr instanceof CompareInstruction) {
+            return ((CompareInstruction) instr).getOperator().ordinal();
+        } else if (instr instanceof GetElementPointerInstruction) {
+            return ((GetElementPointerInstruction) instr).isInbounds() ? 1 : 0;
+        } else if (instr instanceof ExtractValueInstruction) {
+            return ((ExtractValueInstruction) instr).getIndex();
+        } else if (instr instanceof InsertValueInstruction) {
+            return ((InsertValueInstruction) instr).getIndex();
+        }
+        return 0;
+    }
+
+    private static boolean equalAttributes(Instruction a, Instruction b) {
+        if (a instanceof BinaryOperationInstruction) {
+            final BinaryOperationInstruction x = (BinaryOperationInstruction) a;
+            final BinaryOperationInstruction y = (BinaryOperationInstruction) b;
+            return x.getOperator() == y.getOperator() && getFlags(x).equals(getFlags(y));
+        } else if (a instanceof CastInstruction) {
+            return ((CastInstruction) a).getOperator() == ((CastInstruction) b).getOperator();
+        } else if (a instanceof CompareInstruction) {
+            return ((CompareInstruction) a).getOperator() == ((CompareInstruction) b).getOperator();
+        } else if (a instanceof GetElementPointerInstruction) {
+            return ((GetElementPointerInstruction) a).isInbounds() == ((GetElementPointerInstruction) b).isInbounds();
+        } else if (a instanceof ExtractValueInstruction) {
+            return ((ExtractValueInstruction) a).getIndex() == ((ExtractValueInstruction) b).getIndex();
+        } else if (a instanceof InsertValueInstruction) {
+            return ((InsertValueInstruction) a).getIndex() == ((InsertValueInstruction) b).getIndex();
+        }
+        return true;
+    }
+
+    private long hash(Instruction instr) {
+        long h = mix(instr.getClass().hashCode(), instr.getType().hashCode());
+        h = mix(h, hashAttributes(instr));
+
+        final List<Symbol> operands = InstructionOperands.get(instr);
+        if (isCommutative(instr)) {
+            // the order of the operands must not matter
+            final long lhs = hashOperand(operands.get(0));
+            final long rhs = hashOperand(operands.get(1));
+            return mix(h, (lhs + rhs) ^ (lhs * rhs));
+        }
+
+        for (Symbol op : operands) {
+            h = mix(h, hashOperand(op));
+        }
+        return h;
+    }
+
+    private boolean isEquivalent(Instruction a, Instruction b) {
+        if (a.getClass() != b.getClass() || !a.getType().equals(b.getType()) || !equalAttributes(a, b)) {
+            return false;
+        }
+
+        final List<Symbol> x = InstructionOperands.get(a);
+        final List<Symbol> y = InstructionOperands.get(b);
+        if (x.size() != y.size()) {
+            return false;
+        }
+
+        boolean equal = true;
+        for (int i = 0; i < x.size() && equal; i++) {
+            equal = equalOperands(x.get(i), y.get(i));
+        }
+        if (!equal && isCommutative(a)) {
+            equal = equalOperands(x.get(0), y.get(1)) && equalOperands(x.get(1), y.get(0));
+        }
+        return equal;
+    }
+
+    private void rewriteUses() {
+        for (InstructionBlock block : function.getBlocks()) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (removed.contains(instr)) {
+                    continue;
+                }
+                for (Symbol op : InstructionOperands.get(instr)) {
+                    if (replacements.containsKey(op)) {
+                        instr.replace(op, resolve(op));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash table with 64 bit keys, whose entries are removed in the reverse order of their
+     * insertion when a scope of the dominator tree is left.
+     *
+     * Entries with the same bucket are chained using their index, so the most recently inserted
+     * entry is always the head of its chain, and can be removed in constant time.
+     */
+    private static final class ExpressionTable {
+        private static final int NONE = -1;
+
+        private int[] heads = new int[64];
+        private long[] hashes = new long[64];
+        private int[] generations = new int[64];
+        private int[] next = new int[64];
+        private Instruction[] values = new Instruction[64];
+        private int size = 0;
+
+        ExpressionTable() {
+            Arrays.fill(heads, NONE);
+        }
+
+        private int bucket(long hash) {
+            return (int) (hash ^ (hash >>> 32)) & (heads.length - 1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        Instruction find(long hash, int generation, Instruction instr, ValueNumbering gvn) {
+            for (int e = heads[bucket(hash)]; e != NONE; e = next[e]) {
+                if (hashes[e] == hash && generations[e] == generation && gvn.isEquivalent(values[e], instr)) {
+                    return values[e];
+                }
+            }
+            return null;
+        }
+
+        void push(long hash, int generation, Instruction instr) {
+            if (size == values.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                generations = Arrays.copyOf(generations, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size >= heads.length / 4 * 3) {
+                rehash(heads.length * 2);
+            }
+
+            final int b = bucket(hash);
+            hashes[size] = hash;
+            generations[size] = generation;
+            values[size] = instr;
+            next[size] = heads[b];
+            heads[b] = size;
+            size++;
+        }
+
+        void popTo(int mark) {
+            while (size > mark) {
+                size--;
+                heads[bucket(hashes[size])] = next[size];
+                values[size] = null;
+            }
+        }
+
+        private void rehash(int bucketCount) {
+            heads = new int[bucketCount];
+            Arrays.fill(heads, NONE);
+            // insert in the original order, so later entries are still in front of earlier ones
+            for (int e = 0; e < size; e++) {
+                final int b = bucket(hashes[e]);
+                next[e] = heads[b];
+                heads[b] = e;
+            }
+        }
+    }
+}
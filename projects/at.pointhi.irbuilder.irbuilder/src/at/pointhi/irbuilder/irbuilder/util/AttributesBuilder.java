@@ -0,0 +1,112 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.oracle.truffle.llvm.parser.model.attributes.Attribute;
+import com.oracle.truffle.llvm.parser.model.attributes.AttributesCodeEntry;
+import com.oracle.truffle.llvm.parser.model.attributes.AttributesGroup;
+
+/**
+ * Collect the attributes of a function or call site, like <code>nounwind</code> for the function,
+ * <code>nonnull</code> for the return value or <code>noalias</code> for a parameter.
+ *
+ * The resulting groups are interned, so functions with the same attributes share them.
+ */
+public final class AttributesBuilder {
+
+    private final AttributesInterner interner;
+
+    // sorted by parameter index, to get a deterministic order of the groups
+    private final Map<Long, List<Attribute>> attributes = new TreeMap<>();
+
+    public AttributesBuilder(AttributesInterner interner) {
+        this.interner = interner;
+    }
+
+    private AttributesBuilder add(long paramIdx, Attribute attr) {
+        final List<Attribute> list = attributes.computeIfAbsent(paramIdx, k -> new ArrayList<>());
+        for (Attribute existing : list) {
+            if (existing.getIrString().equals(attr.getIrString())) {
+                return this; // already present
+            }
+        }
+        list.add(attr);
+        return this;
+    }
+
+    public AttributesBuilder addFunctionAttribute(Attribute.Kind kind) {
+        return add(AttributesInterner.FUNCTION_INDEX, new Attribute.KnownAttribute(kind));
+    }
+
+    public AttributesBuilder addFunctionAttribute(String key, String value) {
+        return add(AttributesInterner.FUNCTION_INDEX, new Attribute.KeyValueAttribute(key, value));
+    }
+
+    public AttributesBuilder addReturnAttribute(Attribute.Kind kind) {
+        return add(AttributesInterner.RETURN_INDEX, new Attribute.KnownAttribute(kind));
+    }
+
+    /**
+     * Add an attribute with a value, like <code>dereferenceable(8)</code>.
+     */
+    public AttributesBuilder addReturnAttribute(Attribute.Kind kind, int value) {
+        return add(AttributesInterner.RETURN_INDEX, new Attribute.KnownIntegerValueAttribute(kind, value));
+    }
+
+    public AttributesBuilder addParameterAttribute(int parameter, Attribute.Kind kind) {
+        return add(AttributesInterner.getParameterIndex(parameter), new Attribute.KnownAttribute(kind));
+    }
+
+    /**
+     * Add an attribute with a value, like <code>align 16</code>.
+     */
+    public AttributesBuilder addParameterAttribute(int parameter, Attribute.Kind kind, int value) {
+        return add(AttributesInterner.getParameterIndex(parameter), new Attribute.KnownIntegerValueAttribute(kind, value));
+    }
+
+    public AttributesCodeEntry build() {
+        if (attributes.isEmpty()) {
+            return AttributesCodeEntry.EMPTY;
+        }
+
+        final List<AttributesGroup> groups = new ArrayList<>(attributes.size());
+        for (Map.Entry<Long, List<Attribute>> entry : attributes.entrySet()) {
+            groups.add(interner.intern(entry.getKey(), entry.getValue()));
+        }
+        return new AttributesCodeEntry(groups);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.oracle.truffle.llvm.parser.model.attributes.Attribute;
+import com.oracle.truffle.llvm.parser.model.attributes.AttributesGroup;
+
+/**
+ * Share identical attribute groups inside a module.
+ *
+ * The writer emits one <code>attributes #N</code> entry for every distinct group instance, so
+ * identical groups need to be the same object.
+ */
+public final class AttributesInterner {
+
+    // parameter index which is used for the attributes of the function itself
+    public static final long FUNCTION_INDEX = 0xFFFFFFFFL;
+    public static final long RETURN_INDEX = 0;
+
+    private final Map<String, AttributesGroup> groups = new HashMap<>();
+    private long groupCounter = 1;
+
+    public static long getParameterIndex(int parameter) {
+        return parameter + 1;
+    }
+
+    /**
+     * Get the shared group which contains exactly the given attributes, in this order.
+     */
+    public synchronized AttributesGroup intern(long paramIdx, List<Attribute> attributes) {
+        final StringBuilder key = new StringBuilder();
+        key.append(paramIdx);
+        for (Attribute attr : attributes) {
+            key.append(' ').append(attr.getIrString());
+        }
+
+        return groups.computeIfAbsent(key.toString(), k -> {
+            final AttributesGroup group = new AttributesGroup(groupCounter++, paramIdx);
+            for (Attribute attr : new ArrayList<>(attributes)) {
+                group.addAttribute(attr);
+            }
+            return group;
+        });
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * Tail call markers and calling conventions of functions and call sites of a single module.
+ *
+ * The parser model does not store them, so they are owned by the ModelModuleBuilder and have to be
+ * passed to the IRWriter together with the model.
+ */
+public final class CallMarkers {
+
+    /*
+     * @see http://releases.llvm.org/3.8.0/docs/LangRef.html#call-instruction
+     */
+    public enum TailCall {
+        NONE(null),
+        TAIL("tail"),
+        MUSTTAIL("musttail"),
+        NOTAIL("notail");
+
+        private final String irString;
+
+        TailCall(String irString) {
+            this.irString = irString;
+        }
+
+        public String getIrString() {
+            return irString;
+        }
+    }
+
+    /*
+     * @see http://releases.llvm.org/3.8.0/docs/LangRef.html#calling-conventions
+     */
+    public enum CallingConvention {
+        C(null),
+        FAST("fastcc"),
+        COLD("coldcc");
+
+        private final String irString;
+
+        CallingConvention(String irString) {
+            this.irString = irString;
+        }
+
+        public String getIrString() {
+            return irString;
+        }
+    }
+
+    private final Map<Symbol, TailCall> tailCalls = new IdentityHashMap<>();
+    private final Map<Symbol, CallingConvention> callingConventions = new IdentityHashMap<>();
+
+    public void setTailCall(Symbol call, TailCall kind) {
+        if (kind == TailCall.NONE) {
+            tailCalls.remove(call);
+        } else {
+            tailCalls.put(call, kind);
+        }
+    }
+
+    public TailCall getTailCall(Symbol call) {
+        return tailCalls.getOrDefault(call, TailCall.NONE);
+    }
+
+    /**
+     * Set the calling convention of a function definition, declaration or call site.
+     */
+    public void setCallingConvention(Symbol symbol, CallingConvention cc) {
+        if (cc == CallingConvention.C) {
+            callingConventions.remove(symbol);
+        } else {
+            callingConventions.put(symbol, cc);
+        }
+    }
+
+    public CallingConvention getCallingConvention(Symbol symbol) {
+        return callingConventions.getOrDefault(symbol, CallingConvention.C);
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.floatingpoint.DoubleConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.floatingpoint.FloatConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * Evaluate operations on constants at build time, with the same semantics as LLVM would have at
+ * runtime.
+ *
+ * Operations which would result in undefined behavior or a poison value (like a division by zero,
+ * or a shift by more than the bitwidth) are not folded, because the instruction could be guarded
+ * by a branch which is never taken. In this case, and when an operand is not a supported constant,
+ * null is returned.
+ */
+public final class ConstantFolder {
+    private ConstantFolder() {
+    }
+
+    public static Constant fold(BinaryOperator op, Symbol lhs, Symbol rhs) {
+        if (isFoldableInteger(lhs) && isFoldableInteger(rhs)) {
+            return foldInteger(op, (IntegerConstant) lhs, (IntegerConstant) rhs);
+        } else if (!op.isFloatingPoint()) {
+            return null;
+        } else if (lhs instanceof FloatConstant && rhs instanceof FloatConstant) {
+            // every operation on two floats is exactly rounded when it's calculated as double
+            final double res = foldFloatingPoint(op, ((FloatConstant) lhs).getValue(), ((FloatConstant) rhs).getValue());
+            return ConstantUtil.getFloatConst((float) res);
+        } else if (lhs instanceof DoubleConstant && rhs instanceof DoubleConstant) {
+            final double res = foldFloatingPoint(op, ((DoubleConstant) lhs).getValue(), ((DoubleConstant) rhs).getValue());
+            return ConstantUtil.getDoubleConst(res);
+        }
+        return null;
+    }
+
+    public static Constant fold(CompareOperator op, Symbol lhs, Symbol rhs) {
+        if (isFoldableInteger(lhs) && isFoldableInteger(rhs)) {
+            final int bits = getBitSize(lhs.getType());
+            final long l = ((IntegerConstant) lhs).getValue();
+            final long r = ((IntegerConstant) rhs).getValue();
+            final Boolean res = compareInteger(op, signExtend(l, bits), signExtend(r, bits), zeroExtend(l, bits), zeroExtend(r, bits));
+            return res == null ? null : ConstantUtil.getI1Const(res);
+        } else if (lhs instanceof FloatConstant && rhs instanceof FloatConstant) {
+            final Boolean res = compareFloatingPoint(op, ((FloatConstant) lhs).getValue(), ((FloatConstant) rhs).getValue());
+            return res == null ? null : ConstantUtil.getI1Const(res);
+        } else if (lhs instanceof DoubleConstant && rhs instanceof DoubleConstant) {
+            final Boolean res = compareFloatingPoint(op, ((DoubleConstant) lhs).getValue(), ((DoubleConstant) rhs).getValue());
+            return res == null ? null : ConstantUtil.getI1Const(res);
+        }
+        return null;
+    }
+
+    public static Constant fold(CastOperator op, Type type, Symbol value) {
+        if (isFoldableInteger(value)) {
+            final int bits = getBitSize(value.getType());
+            final long val = ((IntegerConstant) value).getValue();
+            switch (op) {
+                case TRUNCATE:
+                case ZERO_EXTEND:
+                    return isFoldableIntegerType(type) ? getIntegerConst(type, zeroExtend(val, bits)) : null;
+                case SIGN_EXTEND:
+                    return isFoldableIntegerType(type) ? getIntegerConst(type, signExtend(val, bits)) : null;
+                case SIGNED_INT_TO_FP:
+                    return getFloatingPointConst(type, signExtend(val, bits));
+                case UNSIGNED_INT_TO_FP:
+                    // values with the highest bit set cannot be represented as signed long
+                    return zeroExtend(val, bits) < 0 ? null : getFloatingPointConst(type, zeroExtend(val, bits));
+                case BITCAST:
+                    if (bits == Integer.SIZE && PrimitiveType.FLOAT.equals(type)) {
+                        return ConstantUtil.getFloatConst(Float.intBitsToFloat((int) val));
+                    } else if (bits == Long.SIZE && PrimitiveType.DOUBLE.equals(type)) {
+                        return ConstantUtil.getDoubleConst(Double.longBitsToDouble(val));
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        } else if (value instanceof FloatConstant || value instanceof DoubleConstant) {
+            final double val = value instanceof FloatConstant ? ((FloatConstant) value).getValue() : ((DoubleConstant) value).getValue();
+            switch (op) {
+                case FP_EXTEND:
+                case FP_TRUNCATE:
+                    return getFloatingPointConst(type, val);
+                case FP_TO_SIGNED_INT:
+                    return isFoldableIntegerType(type) && fitsSigned(val, getBitSize(type)) ? getIntegerConst(type, (long) val) : null;
+                case FP_TO_UNSIGNED_INT:
+                    return isFoldableIntegerType(type) && fitsUnsigned(val, getBitSize(type)) ? getIntegerConst(type, (long) val) : null;
+                case BITCAST:
+                    if (value instanceof FloatConstant && isFoldableIntegerType(type) && getBitSize(type) == Integer.SIZE) {
+                        return getIntegerConst(type, Float.floatToRawIntBits((float) val));
+                    } else if (value instanceof DoubleConstant && isFoldableIntegerType(type) && getBitSize(type) == Long.SIZE) {
+                        return getIntegerConst(type, Double.doubleToRawLongBits(val));
+                    }
+                    return null;
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    private static Constant foldInteger(BinaryOperator op, IntegerConstant lhs, IntegerConstant rhs) {
+        final Type type = lhs.getType();
+        final int bits = getBitSize(type);
+        final long l = lhs.getValue();
+        final long r = rhs.getValue();
+
+        switch (op) {
+            case INT_ADD:
+                return getIntegerConst(type, l + r);
+            case INT_SUBTRACT:
+                return getIntegerConst(type, l - r);
+            case INT_MULTIPLY:
+                return getIntegerConst(type, l * r);
+            case INT_UNSIGNED_DIVIDE:
+                if (zeroExtend(r, bits) == 0) {
+                    return null; // undefined behavior
+                }
+                return getIntegerConst(type, Long.divideUnsigned(zeroExtend(l, bits), zeroExtend(r, bits)));
+            case INT_UNSIGNED_REMAINDER:
+                if (zeroExtend(r, bits) == 0) {
+                    return null; // undefined behavior
+                }
+                return getIntegerConst(type, Long.remainderUnsigned(zeroExtend(l, bits), zeroExtend(r, bits)));
+            case INT_SIGNED_DIVIDE:
+            case INT_SIGNED_REMAINDER: {
+                final long sl = signExtend(l, bits);
+                final long sr = signExtend(r, bits);
+                if (sr == 0 || (sr == -1 && sl == signExtend(1L << (bits - 1), bits))) {
+                    return null; // undefined behavior (division by zero or overflow)
+                }
+                return getIntegerConst(type, op == BinaryOperator.INT_SIGNED_DIVIDE ? sl / sr : sl % sr);
+            }
+            case INT_SHIFT_LEFT:
+            case INT_LOGICAL_SHIFT_RIGHT:
+            case INT_ARITHMETIC_SHIFT_RIGHT: {
+                final long shift = zeroExtend(r, bits);
+                if (shift < 0 || shift >= bits) {
+                    return null; // poison value
+                }
+                if (op == BinaryOperator.INT_SHIFT_LEFT) {
+                    return getIntegerConst(type, l << shift);
+                } else if (op == BinaryOperator.INT_LOGICAL_SHIFT_RIGHT) {
+                    return getIntegerConst(type, zeroExtend(l, bits) >>> shift);
+                } else {
+                    return getIntegerConst(type, signExtend(l, bits) >> shift);
+                }
+            }
+            case INT_AND:
+                return getIntegerConst(type, l & r);
+            case INT_OR:
+                return getIntegerConst(type, l | r);
+            case INT_XOR:
+                return getIntegerConst(type, l ^ r);
+            default:
+                return null;
+        }
+    }
+
+    private static double foldFloatingPoint(BinaryOperator op, double lhs, double rhs) {
+        switch (op) {
+            case FP_ADD:
+                return lhs + rhs;
+            case FP_SUBTRACT:
+                return lhs - rhs;
+            case FP_MULTIPLY:
+                return lhs * rhs;
+            case FP_DIVIDE:
+                return lhs / rhs;
+            case FP_REMAINDER:
+                // java has the same semantics as fmod
+                return lhs % rhs;
+            default:
+                throw new AssertionError("unexpected floating point operator: " + op);
+        }
+    }
+
+    private static Boolean compareInteger(CompareOperator op, long sl, long sr, long ul, long ur) {
+        switch (op) {
+            case INT_EQUAL:
+                return ul == ur;
+            case INT_NOT_EQUAL:
+                return ul != ur;
+            case INT_UNSIGNED_GREATER_THAN:
+                return Long.compareUnsigned(ul, ur) > 0;
+            case INT_UNSIGNED_GREATER_OR_EQUAL:
+                return Long.compareUnsigned(ul, ur) >= 0;
+            case INT_UNSIGNED_LESS_THAN:
+                return Long.compareUnsigned(ul, ur) < 0;
+            case INT_UNSIGNED_LESS_OR_EQUAL:
+                return Long.compareUnsigned(ul, ur) <= 0;
+            case INT_SIGNED_GREATER_THAN:
+                return sl > sr;
+            case INT_SIGNED_GREATER_OR_EQUAL:
+                return sl >= sr;
+            case INT_SIGNED_LESS_THAN:
+                return sl < sr;
+            case INT_SIGNED_LESS_OR_EQUAL:
+                return sl <= sr;
+            default:
+                return null;
+        }
+    }
+
+    private static Boolean compareFloatingPoint(CompareOperator op, double lhs, double rhs) {
+        final boolean unordered = Double.isNaN(lhs) || Double.isNaN(rhs);
+        switch (op) {
+            case FP_FALSE:
+                return false;
+            case FP_TRUE:
+                return true;
+            case FP_ORDERED:
+                return !unordered;
+            case FP_UNORDERED:
+                return unordered;
+            case FP_ORDERED_EQUAL:
+                return !unordered && lhs == rhs;
+            case FP_ORDERED_NOT_EQUAL:
+                return !unordered && lhs != rhs;
+            case FP_ORDERED_GREATER_THAN:
+                return !unordered && lhs > rhs;
+            case FP_ORDERED_GREATER_OR_EQUAL:
+                return !unordered && lhs >= rhs;
+            case FP_ORDERED_LESS_THAN:
+                return !unordered && lhs < rhs;
+            case FP_ORDERED_LESS_OR_EQUAL:
+                return !unordered && lhs <= rhs;
+            case FP_UNORDERED_EQUAL:
+                return unordered || lhs == rhs;
+            case FP_UNORDERED_NOT_EQUAL:
+                return unordered || lhs != rhs;
+            case FP_UNORDERED_GREATER_THAN:
+                return unordered || lhs > rhs;
+            case FP_UNORDERED_GREATER_OR_EQUAL:
+                return unordered || lhs >= rhs;
+            case FP_UNORDERED_LESS_THAN:
+                return unordered || lhs < rhs;
+            case FP_UNORDERED_LESS_OR_EQUAL:
+                return unordered || lhs <= rhs;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isFoldableIntegerType(Type type) {
+        return type instanceof PrimitiveType && Type.isIntegerType(type) && getBitSize(type) <= Long.SIZE;
+    }
+
+    private static boolean isFoldableInteger(Symbol sym) {
+        return sym instanceof IntegerConstant && isFoldableIntegerType(sym.getType());
+    }
+
+    private static int getBitSize(Type type) {
+        return ((PrimitiveType) type).getBitSize();
+    }
+
+    private static long zeroExtend(long value, int bits) {
+        return bits == Long.SIZE ? value : value & ((1L << bits) - 1);
+    }
+
+    private static long signExtend(long value, int bits) {
+        final int shift = Long.SIZE - bits;
+        return (value << shift) >> shift;
+    }
+
+    private static boolean fitsSigned(double value, int bits) {
+        // fptosi returns a poison value if the result does not fit
+        return !Double.isNaN(value) && value > -Math.pow(2, bits - 1) - 1 && value < Math.pow(2, bits - 1);
+    }
+
+    private static boolean fitsUnsigned(double value, int bits) {
+        // we only fold values which also fit into a signed long, to not lose precision on conversion
+        return !Double.isNaN(value) && value > -1 && value < Math.pow(2, Math.min(bits, Long.SIZE - 1));
+    }
+
+    /**
+     * Create an integer constant, and wrap the value around if it does not fit into the type.
+     */
+    private static IntegerConstant getIntegerConst(Type type, long value) {
+        final int bits = getBitSize(type);
+        if (bits == 1) {
+            return ConstantUtil.getI1Const((value & 1) != 0);
+        }
+        return new IntegerConstant(type, signExtend(value, bits));
+    }
+
+    private static Constant getFloatingPointConst(Type type, long value) {
+        // an integer needs to be rounded only once, otherwise we could get a different result
+        if (PrimitiveType.FLOAT.equals(type)) {
+            return ConstantUtil.getFloatConst(value);
+        } else if (PrimitiveType.DOUBLE.equals(type)) {
+            return ConstantUtil.getDoubleConst(value);
+        }
+        return null; // we only fold float and double
+    }
+
+    private static Constant getFloatingPointConst(Type type, double value) {
+        if (PrimitiveType.FLOAT.equals(type)) {
+            return ConstantUtil.getFloatConst((float) value);
+        } else if (PrimitiveType.DOUBLE.equals(type)) {
+            return ConstantUtil.getDoubleConst(value);
+        }
+        return null; // we only fold float and double
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.oracle.truffle.llvm.parser.model.symbols.constants.BinaryOperationConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.CastConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.CompareConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.GetElementPointerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.aggregate.AggregateConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalValueSymbol;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * Like {@link InstructionOperands}, but for the symbols which are referenced by the initializer of
+ * a global or by a constant expression.
+ */
+public final class ConstantOperands {
+    private ConstantOperands() {
+    }
+
+    /**
+     * Execute an action for every symbol which is directly referenced by the given global or
+     * constant. Symbols which do not reference other symbols have no operands.
+     */
+    public static void forEach(Symbol sym, Consumer<Symbol> action) {
+        if (sym instanceof GlobalValueSymbol) {
+            operand(((GlobalValueSymbol) sym).getValue(), action);
+        } else if (sym instanceof AggregateConstant) {
+            final AggregateConstant aggregate = (AggregateConstant) sym;
+            for (int i = 0; i < aggregate.getElementCount(); i++) {
+                operand(aggregate.getElement(i), action);
+            }
+        } else if (sym instanceof CastConstant) {
+            operand(((CastConstant) sym).getValue(), action);
+        } else if (sym instanceof GetElementPointerConstant) {
+            final GetElementPointerConstant gep = (GetElementPointerConstant) sym;
+            operand(gep.getBasePointer(), action);
+            for (Symbol index : gep.getIndices()) {
+                operand(index, action);
+            }
+        } else if (sym instanceof BinaryOperationConstant) {
+            operand(((BinaryOperationConstant) sym).getLHS(), action);
+            operand(((BinaryOperationConstant) sym).getRHS(), action);
+        } else if (sym instanceof CompareConstant) {
+            operand(((CompareConstant) sym).getLHS(), action);
+            operand(((CompareConstant) sym).getRHS(), action);
+        }
+    }
+
+    public static List<Symbol> get(Symbol sym) {
+        final List<Symbol> operands = new ArrayList<>();
+        forEach(sym, operands::add);
+        return operands;
+    }
+
+    private static void operand(Symbol sym, Consumer<Symbol> action) {
+        if (sym != null) {
+            action.accept(sym);
+        }
+    }
+}
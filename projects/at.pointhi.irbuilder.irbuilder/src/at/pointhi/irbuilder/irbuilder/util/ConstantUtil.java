@@ -34,7 +34,6 @@ package at.pointhi.irbuilder.irbuilder.util;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 
 import com.oracle.truffle.llvm.parser.model.enums.AsmDialect;
 import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
@@ -146,25 +145,30 @@ public final class ConstantUtil {
     }
 
     public static Constant getInlineAssemblyConstant(Type type, String asmExpression, String asmFlags, boolean hasSideEffects, boolean stackAlign, AsmDialect dialect) {
-        ArrayList<Long> args = new ArrayList<>();
+        final byte[] expressionBytes = asmExpression.getBytes();
+        final byte[] flagsBytes = asmFlags.getBytes();
+
+        // flags, expression length, expression, flags length, flags
+        final long[] args = new long[1 + 1 + expressionBytes.length + 1 + flagsBytes.length];
+        int i = 0;
 
         long flags = 0;
         flags |= hasSideEffects ? 1L << 0 : 0;
         flags |= stackAlign ? 1L << 1 : 0;
         flags |= dialect.ordinal() << 2;
-        args.add(flags);
+        args[i++] = flags;
 
-        args.add((long) asmExpression.length());
-        for (byte c : asmExpression.getBytes()) {
-            args.add((long) c);
+        args[i++] = expressionBytes.length;
+        for (byte c : expressionBytes) {
+            args[i++] = c;
         }
 
-        args.add((long) asmFlags.length());
-        for (byte c : asmFlags.getBytes()) {
-            args.add((long) c);
+        args[i++] = flagsBytes.length;
+        for (byte c : flagsBytes) {
+            args[i++] = c;
         }
 
-        long[] longArgs = args.stream().mapToLong(l -> l).toArray();
-        return InlineAsmConstant.generate(type, longArgs);
+        assert i == args.length;
+        return InlineAsmConstant.generate(type, args);
     }
 }
@@ -0,0 +1,292 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.AllocateInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.BinaryOperationInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.BranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Call;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CallInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CastInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CompareExchangeInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.CompareInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ConditionalBranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractElementInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ExtractValueInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.FenceInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.GetElementPointerInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.IndirectBranchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertElementInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.InsertValueInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Invoke;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.InvokeInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.LandingpadInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.LoadInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.PhiInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ReadModifyWriteInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ResumeInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ReturnInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SelectInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ShuffleVectorInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.StoreInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SwitchInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.SwitchOldInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.UnreachableInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.VoidCallInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.VoidInvokeInstruction;
+import com.oracle.truffle.llvm.parser.model.visitors.InstructionVisitor;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * The model does not offer a generic way to get the operands of an instruction, so we have to
+ * extract them for every instruction type on our own.
+ */
+public final class InstructionOperands {
+    private InstructionOperands() {
+    }
+
+    /**
+     * Execute an action for every symbol which is used as operand by the given instruction.
+     *
+     * Successor blocks are not considered as operands.
+     */
+    public static void forEach(Instruction instr, Consumer<Symbol> action) {
+        instr.accept(new OperandVisitor(action));
+    }
+
+    public static List<Symbol> get(Instruction instr) {
+        final List<Symbol> operands = new ArrayList<>();
+        forEach(instr, operands::add);
+        return operands;
+    }
+
+    private static final class OperandVisitor implements InstructionVisitor {
+        private final Consumer<Symbol> action;
+
+        OperandVisitor(Consumer<Symbol> action) {
+            this.action = action;
+        }
+
+        private void operand(Symbol sym) {
+            if (sym != null) {
+                action.accept(sym);
+            }
+        }
+
+        private void callOperands(Call call) {
+            operand(call.getCallTarget());
+            for (int i = 0; i < call.getArgumentCount(); i++) {
+                operand(call.getArgument(i));
+            }
+        }
+
+        private void invokeOperands(Invoke invoke) {
+            operand(invoke.getCallTarget());
+            for (int i = 0; i < invoke.getArgumentCount(); i++) {
+                operand(invoke.getArgument(i));
+            }
+        }
+
+        @Override
+        public void visit(AllocateInstruction allocate) {
+            operand(allocate.getCount());
+        }
+
+        @Override
+        public void visit(BinaryOperationInstruction operation) {
+            operand(operation.getLHS());
+            operand(operation.getRHS());
+        }
+
+        @Override
+        public void visit(BranchInstruction branch) {
+        }
+
+        @Override
+        public void visit(CallInstruction call) {
+            callOperands(call);
+        }
+
+        @Override
+        public void visit(CastInstruction cast) {
+            operand(cast.getValue());
+        }
+
+        @Override
+        public void visit(CompareExchangeInstruction cmpxchg) {
+            operand(cmpxchg.getPtr());
+            operand(cmpxchg.getCmp());
+            operand(cmpxchg.getReplace());
+        }
+
+        @Override
+        public void visit(CompareInstruction operation) {
+            operand(operation.getLHS());
+            operand(operation.getRHS());
+        }
+
+        @Override
+        public void visit(ConditionalBranchInstruction branch) {
+            operand(branch.getCondition());
+        }
+
+        @Override
+        public void visit(ExtractElementInstruction extract) {
+            operand(extract.getVector());
+            operand(extract.getIndex());
+        }
+
+        @Override
+        public void visit(ExtractValueInstruction extract) {
+            operand(extract.getAggregate());
+        }
+
+        @Override
+        public void visit(GetElementPointerInstruction gep) {
+            operand(gep.getBasePointer());
+            for (Symbol sym : gep.getIndices()) {
+                operand(sym);
+            }
+        }
+
+        @Override
+        public void visit(FenceInstruction fence) {
+        }
+
+        @Override
+        public void visit(IndirectBranchInstruction branch) {
+            operand(branch.getAddress());
+        }
+
+        @Override
+        public void visit(InsertElementInstruction insert) {
+            operand(insert.getVector());
+            operand(insert.getValue());
+            operand(insert.getIndex());
+        }
+
+        @Override
+        public void visit(InsertValueInstruction insert) {
+            operand(insert.getAggregate());
+            operand(insert.getValue());
+        }
+
+        @Override
+        public void visit(LoadInstruction load) {
+            operand(load.getSource());
+        }
+
+        @Override
+        public void visit(PhiInstruction phi) {
+            for (int i = 0; i < phi.getSize(); i++) {
+                operand(phi.getValue(i));
+            }
+        }
+
+        @Override
+        public void visit(ReturnInstruction ret) {
+            operand(ret.getValue());
+        }
+
+        @Override
+        public void visit(SelectInstruction select) {
+            operand(select.getCondition());
+            operand(select.getTrueValue());
+            operand(select.getFalseValue());
+        }
+
+        @Override
+        public void visit(ShuffleVectorInstruction shuffle) {
+            operand(shuffle.getVector1());
+            operand(shuffle.getVector2());
+            operand(shuffle.getMask());
+        }
+
+        @Override
+        public void visit(StoreInstruction store) {
+            operand(store.getDestination());
+            operand(store.getSource());
+        }
+
+        @Override
+        public void visit(SwitchInstruction select) {
+            operand(select.getCondition());
+            for (int i = 0; i < select.getCaseCount(); i++) {
+                operand(select.getCaseValue(i));
+            }
+        }
+
+        @Override
+        public void visit(SwitchOldInstruction select) {
+            operand(select.getCondition());
+        }
+
+        @Override
+        public void visit(UnreachableInstruction unreachable) {
+        }
+
+        @Override
+        public void visit(VoidCallInstruction call) {
+            callOperands(call);
+        }
+
+        @Override
+        public void visit(InvokeInstruction invoke) {
+            invokeOperands(invoke);
+        }
+
+        @Override
+        public void visit(VoidInvokeInstruction invoke) {
+            invokeOperands(invoke);
+        }
+
+        @Override
+        public void visit(LandingpadInstruction landingpad) {
+        }
+
+        @Override
+        public void visit(ResumeInstruction resume) {
+            operand(resume.getValue());
+        }
+
+        @Override
+        public void visit(ReadModifyWriteInstruction rmw) {
+            operand(rmw.getPtr());
+            operand(rmw.getValue());
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Growable array of primitive integers, which is intended to be reused for collecting operand
+ * indexes without creating a new boxed list for every instruction.
+ */
+public final class IntArrayBuilder {
+    private int[] data;
+    private int size = 0;
+
+    public IntArrayBuilder() {
+        this(8);
+    }
+
+    public IntArrayBuilder(int initialCapacity) {
+        this.data = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, data.length * 2);
+        }
+        data[size++] = value;
+    }
+
+    public int get(int idx) {
+        if (idx >= size) {
+            throw new IndexOutOfBoundsException("index " + idx + " is out of range for size " + size);
+        }
+        return data[idx];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove the last value, which allows to use this array as stack.
+     */
+    public int removeLast() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException("array is empty");
+        }
+        return data[--size];
+    }
+
+    /**
+     * Reset the content, but keep the already allocated storage.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    /**
+     * Get a read only list view of the current content, for APIs which only accept lists.
+     *
+     * This has two limits, which need to be considered by the caller:
+     * <ul>
+     * <li>The view is not a copy. It is only safe to pass it to a consumer which reads the content
+     * before this array is modified again, and does not keep a reference to it.</li>
+     * <li>Every call of {@link List#get} boxes the value, so the view only saves the allocation of
+     * the list itself. Consumers should read each element only once.</li>
+     * </ul>
+     * Use {@link #toArray} if the content is needed afterwards.
+     */
+    public List<Integer> asList() {
+        return new ListView();
+    }
+
+    private final class ListView extends AbstractList<Integer> implements RandomAccess {
+        @Override
+        public Integer get(int index) {
+            return IntArrayBuilder.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
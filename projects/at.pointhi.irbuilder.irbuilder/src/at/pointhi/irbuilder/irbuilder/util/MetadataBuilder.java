@@ -0,0 +1,170 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.oracle.truffle.llvm.parser.metadata.MDAttachment;
+import com.oracle.truffle.llvm.parser.metadata.MDBaseNode;
+import com.oracle.truffle.llvm.parser.metadata.MDKind;
+import com.oracle.truffle.llvm.parser.metadata.MDNode;
+import com.oracle.truffle.llvm.parser.metadata.MDString;
+import com.oracle.truffle.llvm.parser.metadata.MDValue;
+import com.oracle.truffle.llvm.parser.metadata.MetadataValueList;
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+import at.pointhi.irbuilder.irbuilder.analysis.ControlFlowGraph;
+
+/**
+ * Create metadata nodes inside the metadata list of a module, and attach them to instructions.
+ */
+public final class MetadataBuilder {
+
+    /**
+     * Metadata kinds which are known to LLVM without being declared in the module, in the order of
+     * their fixed kind ids.
+     */
+    private static final String[] FIXED_KINDS = {"dbg", "tbaa", "prof", "fpmath", "range", "tbaa.struct", "invariant.load", "alias.scope", "noalias", "nontemporal",
+                    "llvm.mem.parallel_loop_access", "nonnull", "dereferenceable", "dereferenceable_or_null", "make.implicit", "unpredictable", "invariant.group", "align",
+                    "llvm.loop"};
+
+    private final MetadataValueList metadata;
+
+    private final Map<String, MDKind> kinds = new HashMap<>();
+    private final Map<MDBaseNode, Integer> nodeIndex = new IdentityHashMap<>();
+    private final Map<String, MDString> strings = new HashMap<>();
+
+    public MetadataBuilder(ModelModule model) {
+        this.metadata = model.getMetadata();
+        for (int i = 0; i < FIXED_KINDS.length; i++) {
+            kinds.put(FIXED_KINDS[i], MDKind.create(i, FIXED_KINDS[i]));
+        }
+    }
+
+    private <T extends MDBaseNode> T add(T node) {
+        nodeIndex.put(node, metadata.size());
+        metadata.add(node);
+        return node;
+    }
+
+    long getReference(MDBaseNode node) {
+        final Integer idx = nodeIndex.get(node);
+        if (idx == null) {
+            throw new AssertionError("metadata node was not created by this builder: " + node);
+        }
+        return idx + 1; // 0 is reserved for null entries
+    }
+
+    public MDString createString(String value) {
+        return add(MDString.create(value));
+    }
+
+    /**
+     * Get a string node which is shared with all other users of the same string, like the names of
+     * loop hints.
+     */
+    public MDString getString(String value) {
+        return strings.computeIfAbsent(value, this::createString);
+    }
+
+    public MDValue createValue(Symbol value) {
+        return add(MDValue.create(value));
+    }
+
+    /**
+     * Create a tuple like <code>!{!"name", i32 4}</code>.
+     */
+    public MDNode createNode(MDBaseNode... elements) {
+        final long[] args = new long[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            args[i] = elements[i] == null ? 0 : getReference(elements[i]);
+        }
+        return add(MDNode.create32(args, metadata));
+    }
+
+    /**
+     * Create a tuple whose first element is the tuple itself, like <code>!0 = !{!0, !1}</code>.
+     * This makes the node distinct, as required for loop ids.
+     */
+    public MDNode createSelfReferencingNode(MDBaseNode... elements) {
+        final long[] args = new long[elements.length + 1];
+        args[0] = metadata.size() + 1; // forward reference to the node we are creating right now
+        for (int i = 0; i < elements.length; i++) {
+            args[i + 1] = elements[i] == null ? 0 : getReference(elements[i]);
+        }
+        return add(MDNode.create32(args, metadata));
+    }
+
+    /**
+     * Create a <code>!{!"branch_weights", i32 ...}</code> node, with one weight for every successor.
+     */
+    public MDNode createBranchWeights(int... weights) {
+        final MDBaseNode[] elements = new MDBaseNode[weights.length + 1];
+        elements[0] = getString("branch_weights");
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0) {
+                throw new AssertionError("branch weights cannot be negative: " + weights[i]);
+            }
+            elements[i + 1] = createValue(ConstantUtil.getI32Const(weights[i]));
+        }
+        return createNode(elements);
+    }
+
+    /**
+     * Attach <code>!prof</code> branch weights to a conditional branch or switch. The weights are
+     * given in the order of the successors, which is the default destination first for a switch.
+     */
+    public MDNode setBranchWeights(Instruction terminator, int... weights) {
+        final int successors = ControlFlowGraph.getSuccessors(terminator).size();
+        if (successors < 2 || weights.length != successors) {
+            throw new AssertionError("expected " + successors + " branch weights, got " + weights.length);
+        }
+        final MDNode node = createBranchWeights(weights);
+        attach(terminator, "prof", node);
+        return node;
+    }
+
+    public MDKind getKind(String name) {
+        return kinds.computeIfAbsent(name, n -> MDKind.create(kinds.size(), n));
+    }
+
+    /**
+     * Attach a metadata node to an instruction, like <code>!llvm.loop !0</code>.
+     */
+    public void attach(Instruction instr, String kind, MDBaseNode node) {
+        instr.attachMetadata(MDAttachment.create(getKind(kind), node));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.Symbols;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ValueInstruction;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+
+/**
+ * The model is designed to be built once by the parser, and does not offer any way to change the
+ * instructions of a block afterwards. Transformations on already built functions need this
+ * however.
+ *
+ * Because the required fields are private, we rely on reflection for now.
+ */
+public final class ModelEditor {
+
+    /**
+     * Prefix of the labels which are given to blocks by the InstructionBuilder.
+     */
+    public static final String GENERATED_BLOCK_PREFIX = "label_";
+
+    // the fields are looked up once, because the editor is called for every changed block
+    private static final Field BLOCK_INSTRUCTIONS = getAccessibleField(InstructionBlock.class, "instructions");
+    private static final Field BLOCK_INDEX = getAccessibleField(InstructionBlock.class, "blockIndex");
+    private static final Field FUNCTION_BLOCKS = getAccessibleField(FunctionDefinition.class, "blocks");
+    private static final Field SYMBOLS_TABLE = getAccessibleField(Symbols.class, "symbols");
+    private static final Field VALUE_NAME = getAccessibleField(ValueInstruction.class, "name");
+
+    private ModelEditor() {
+    }
+
+    /**
+     * Get a private field and make it public.
+     */
+    private static Field getAccessibleField(Class<?> clazz, String name) {
+        try {
+            final Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | SecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get the modifiable list of instructions which is used by the block itself.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<Instruction> getInstructions(InstructionBlock block) {
+        try {
+            return (List<Instruction>) BLOCK_INSTRUCTIONS.get(block);
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void insertInstruction(InstructionBlock block, int idx, Instruction instr) {
+        getInstructions(block).add(idx, instr);
+    }
+
+    /**
+     * Remove a single instruction of a block. This searches the block, so
+     * {@link #removeInstructions} should be used to remove many instructions of the same block.
+     *
+     * @return true if the instruction was found
+     */
+    public static boolean removeInstruction(InstructionBlock block, Instruction instr) {
+        final List<Instruction> instructions = getInstructions(block);
+        // search from the end, because most instructions we remove are near the end of the block
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            if (instructions.get(i) == instr) {
+                instructions.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all instructions of a block which are matching the predicate.
+     *
+     * @return true if any instruction was removed
+     */
+    public static boolean removeInstructions(InstructionBlock block, Predicate<? super Instruction> predicate) {
+        return getInstructions(block).removeIf(predicate);
+    }
+
+    /**
+     * Add a symbol to the symbol table of a function, to reference it from a new instruction.
+     *
+     * @return index of the symbol
+     */
+    public static int addSymbol(FunctionDefinition function, Symbol sym) {
+        final Symbols symbols = function.getSymbols();
+        symbols.addSymbol(sym);
+        return symbols.getSize() - 1;
+    }
+
+    /**
+     * Replace entries of a symbol table, without changing the indexes of the other entries.
+     *
+     * @param replacements map from the old to the new symbol (compared by identity)
+     */
+    public static void replaceSymbols(Symbols symbols, Map<Symbol, Symbol> replacements) {
+        try {
+            final Symbol[] table = (Symbol[]) SYMBOLS_TABLE.get(symbols);
+            for (int i = 0; i < symbols.getSize(); i++) {
+                final Symbol replacement = replacements.get(table[i]);
+                if (replacement != null) {
+                    table[i] = replacement;
+                }
+            }
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Remove all blocks of a function which are matching the predicate, and change the indexes and
+     * the generated labels of the remaining blocks accordingly. The entry block cannot be removed.
+     *
+     * @return number of removed blocks
+     */
+    public static int removeBlocks(FunctionDefinition function, Predicate<? super InstructionBlock> predicate) {
+        try {
+            final InstructionBlock[] oldBlocks = (InstructionBlock[]) FUNCTION_BLOCKS.get(function);
+            final List<InstructionBlock> remaining = new ArrayList<>(oldBlocks.length);
+            for (int i = 0; i < oldBlocks.length; i++) {
+                if (i == 0 || !predicate.test(oldBlocks[i])) {
+                    remaining.add(oldBlocks[i]);
+                }
+            }
+
+            if (remaining.size() == oldBlocks.length) {
+                return 0;
+            }
+
+            final InstructionBlock[] newBlocks = remaining.toArray(new InstructionBlock[remaining.size()]);
+            for (int i = 0; i < newBlocks.length; i++) {
+                BLOCK_INDEX.set(newBlocks[i], i);
+                // the labels given by the InstructionBuilder contain the index of the block
+                if (isGeneratedBlockName(newBlocks[i].getName())) {
+                    newBlocks[i].setName(GENERATED_BLOCK_PREFIX + i);
+                }
+            }
+
+            // write new InstructionBlock[] back into the object
+            FUNCTION_BLOCKS.set(function, newBlocks);
+            return oldBlocks.length - newBlocks.length;
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Instructions with implicit names (which are numbers) need to be numbered sequentially in
+     * LLVM IR. After removing or inserting instructions, this order has to be restored.
+     *
+     * Like the InstructionBuilder, we assume the entry block is the only block with an implicit
+     * name.
+     */
+    public static void renumberValues(FunctionDefinition function) {
+        int counter = 1;
+        for (InstructionBlock block : function.getBlocks()) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                final Instruction instr = block.getInstruction(i);
+                if (instr instanceof ValueInstruction && isImplicitName(((ValueInstruction) instr).getName())) {
+                    ((ValueInstruction) instr).setName(Integer.toString(counter++));
+                }
+            }
+        }
+    }
+
+    private static boolean isImplicitName(String name) {
+        return name.matches("%\\d+");
+    }
+
+    private static boolean isGeneratedBlockName(String name) {
+        return name.matches("%" + GENERATED_BLOCK_PREFIX + "\\d+");
+    }
+
+    /**
+     * Give an instruction the name of another one, which it replaces.
+     *
+     * Setting the name would escape it a second time, so the field is copied directly.
+     */
+    public static void copyName(ValueInstruction source, ValueInstruction target) {
+        try {
+            VALUE_NAME.set(target, VALUE_NAME.get(source));
+        } catch (IllegalArgumentException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
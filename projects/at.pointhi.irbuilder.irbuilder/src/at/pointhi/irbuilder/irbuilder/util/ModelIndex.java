@@ -0,0 +1,266 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDeclaration;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalAlias;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalVariable;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Call;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Invoke;
+import com.oracle.truffle.llvm.parser.model.visitors.ModelVisitor;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.StructureType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.LLVMIdentifier;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+import com.oracle.truffle.llvm.runtime.types.symbols.ValueSymbol;
+
+/**
+ * Lookup tables for the most common queries on a Model.
+ *
+ * In contrast to the {@link ModelExtractor}, which is traversing the whole model for every single
+ * query, this index is built in a single pass and can be kept up to date by adding new symbols as
+ * soon as they are created (which is done by the ModelModuleBuilder).
+ *
+ * Call sites are registered by the InstructionBuilder when a call is created. The model offers no
+ * notification when instructions are removed, so after a function was transformed its call sites
+ * have to be refreshed using {@link #updateCallSites}, which the PassManager does for every function
+ * which was changed by a pass.
+ *
+ * Names are expected without their global identifier prefix, the same way they are passed to the
+ * ModelModuleBuilder.
+ */
+public final class ModelIndex {
+
+    private final Map<String, FunctionDefinition> definitions = new HashMap<>();
+    private final Map<String, FunctionDeclaration> declarations = new HashMap<>();
+    private final Map<FunctionType, List<FunctionDeclaration>> declarationsBySignature = new HashMap<>();
+    private final Map<String, ValueSymbol> globals = new HashMap<>();
+    private final Map<String, StructureType> structureTypes = new HashMap<>();
+    private final Map<Symbol, List<Instruction>> callSites = new IdentityHashMap<>();
+    private final Map<FunctionDefinition, List<CallSite>> callSitesByCaller = new IdentityHashMap<>();
+
+    /**
+     * A call site together with the target it was registered for. Passes can replace the target of
+     * a call, so the current target cannot be used to find the entry again.
+     */
+    private static final class CallSite {
+        private final Symbol target;
+        private final Instruction instr;
+
+        CallSite(Symbol target, Instruction instr) {
+            this.target = target;
+            this.instr = instr;
+        }
+    }
+
+    public ModelIndex() {
+    }
+
+    /**
+     * Create a new index which contains all symbols of the model, by visiting it exactly once.
+     */
+    public static ModelIndex create(ModelModule model) {
+        final ModelIndex index = new ModelIndex();
+
+        model.accept(new ModelVisitor() {
+            @Override
+            public void visit(FunctionDeclaration function) {
+                index.addFunctionDeclaration(function);
+            }
+
+            @Override
+            public void visit(FunctionDefinition function) {
+                index.addFunctionDefinition(function);
+                index.updateCallSites(function);
+            }
+
+            @Override
+            public void visit(GlobalConstant constant) {
+                index.addGlobal(constant);
+            }
+
+            @Override
+            public void visit(GlobalVariable variable) {
+                index.addGlobal(variable);
+            }
+
+            @Override
+            public void visit(GlobalAlias alias) {
+                index.addGlobal(alias);
+            }
+
+            @Override
+            public void visit(Type type) {
+                if (type instanceof StructureType) {
+                    index.addStructureType((StructureType) type);
+                }
+            }
+        });
+
+        return index;
+    }
+
+    public void addFunctionDefinition(FunctionDefinition function) {
+        definitions.put(function.getName(), function);
+    }
+
+    public void addFunctionDeclaration(FunctionDeclaration function) {
+        declarations.put(function.getName(), function);
+        declarationsBySignature.computeIfAbsent(function.getType(), t -> new ArrayList<>()).add(function);
+    }
+
+    public void addGlobal(ValueSymbol global) {
+        globals.put(global.getName(), global);
+    }
+
+    public void removeGlobal(ValueSymbol global) {
+        globals.remove(global.getName(), global);
+    }
+
+    public void addStructureType(StructureType type) {
+        if (!type.getName().equals(LLVMIdentifier.UNKNOWN)) {
+            structureTypes.put(type.getName(), type);
+        }
+    }
+
+    /**
+     * Register a call or invoke instruction, so it can be found by its call target.
+     *
+     * @param caller function which contains the instruction
+     */
+    public synchronized void addCallSite(FunctionDefinition caller, Instruction instr) {
+        final Symbol target = getCallTarget(instr);
+        if (target == null) {
+            return; // not a call site
+        }
+        callSites.computeIfAbsent(target, t -> new ArrayList<>()).add(instr);
+        callSitesByCaller.computeIfAbsent(caller, c -> new ArrayList<>()).add(new CallSite(target, instr));
+    }
+
+    private static Symbol getCallTarget(Instruction instr) {
+        if (instr instanceof Call) {
+            return ((Call) instr).getCallTarget();
+        } else if (instr instanceof Invoke) {
+            return ((Invoke) instr).getCallTarget();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Replace all call sites of a function with the calls it currently contains. This has to be
+     * done after instructions of the function were removed or replaced.
+     */
+    public synchronized void updateCallSites(FunctionDefinition caller) {
+        final List<CallSite> old = callSitesByCaller.remove(caller);
+        if (old != null) {
+            // the entries are filed under the target they had when they were registered
+            final Map<Symbol, Set<Instruction>> removedByTarget = new IdentityHashMap<>();
+            for (CallSite site : old) {
+                removedByTarget.computeIfAbsent(site.target, t -> Collections.newSetFromMap(new IdentityHashMap<>())).add(site.instr);
+            }
+            for (Map.Entry<Symbol, Set<Instruction>> entry : removedByTarget.entrySet()) {
+                final List<Instruction> sites = callSites.get(entry.getKey());
+                if (sites == null) {
+                    continue;
+                }
+                final Set<Instruction> removed = entry.getValue();
+                sites.removeIf(removed::contains);
+                if (sites.isEmpty()) {
+                    callSites.remove(entry.getKey());
+                }
+            }
+        }
+
+        for (InstructionBlock block : caller.getBlocks()) {
+            for (int i = 0; i < block.getInstructionCount(); i++) {
+                addCallSite(caller, block.getInstruction(i));
+            }
+        }
+    }
+
+    public FunctionDefinition getFunctionDefinition(String name) {
+        return definitions.get(LLVMIdentifier.toGlobalIdentifier(name));
+    }
+
+    public FunctionDeclaration getFunctionDeclaration(String name) {
+        return declarations.get(LLVMIdentifier.toGlobalIdentifier(name));
+    }
+
+    /**
+     * Get a function by its name, regardless if it's only declared or also defined.
+     */
+    public ValueSymbol getFunction(String name) {
+        final FunctionDefinition definition = getFunctionDefinition(name);
+        if (definition != null) {
+            return definition;
+        }
+        return getFunctionDeclaration(name);
+    }
+
+    public List<FunctionDeclaration> getFunctionDeclarations(FunctionType signature) {
+        final List<FunctionDeclaration> matches = declarationsBySignature.get(signature);
+        return matches == null ? Collections.emptyList() : Collections.unmodifiableList(matches);
+    }
+
+    public ValueSymbol getGlobal(String name) {
+        return globals.get(LLVMIdentifier.toGlobalIdentifier(name));
+    }
+
+    /**
+     * Get a named structure type.
+     *
+     * @param name name as it's returned by {@link StructureType#getName()}
+     */
+    public StructureType getStructureType(String name) {
+        return structureTypes.get(name);
+    }
+
+    public synchronized List<Instruction> getCallSites(Symbol callee) {
+        final List<Instruction> matches = callSites.get(callee);
+        return matches == null ? Collections.emptyList() : new ArrayList<>(matches);
+    }
+}
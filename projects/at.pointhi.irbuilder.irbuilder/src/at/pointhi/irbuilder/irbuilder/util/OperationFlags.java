@@ -0,0 +1,92 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+
+/**
+ * Optional flags of binary operations, using the same bits as the LLVM bitcode encoding.
+ *
+ * Which flags are valid depends on the operator, so some flags are sharing the same bit.
+ */
+public final class OperationFlags {
+    private OperationFlags() {
+    }
+
+    public static final int NONE = 0;
+
+    // add, sub, mul and shl
+    public static final int NO_UNSIGNED_WRAP = 1 << 0;
+    public static final int NO_SIGNED_WRAP = 1 << 1;
+
+    // udiv, sdiv, lshr and ashr
+    public static final int EXACT = 1 << 0;
+
+    // floating point operations
+    public static final int FP_FAST = 1 << 0;
+    public static final int FP_NO_NANS = 1 << 1;
+    public static final int FP_NO_INFINITIES = 1 << 2;
+    public static final int FP_NO_SIGNED_ZEROS = 1 << 3;
+    public static final int FP_ALLOW_RECIPROCAL = 1 << 4;
+
+    private static final int WRAP_FLAGS = NO_UNSIGNED_WRAP | NO_SIGNED_WRAP;
+    private static final int FAST_MATH_FLAGS = FP_FAST | FP_NO_NANS | FP_NO_INFINITIES | FP_NO_SIGNED_ZEROS | FP_ALLOW_RECIPROCAL;
+
+    /**
+     * Get all flags which are allowed for an operator.
+     */
+    public static int getValidFlags(BinaryOperator op) {
+        if (op.isFloatingPoint()) {
+            return FAST_MATH_FLAGS;
+        }
+        switch (op) {
+            case INT_ADD:
+            case INT_SUBTRACT:
+            case INT_MULTIPLY:
+            case INT_SHIFT_LEFT:
+                return WRAP_FLAGS;
+            case INT_UNSIGNED_DIVIDE:
+            case INT_SIGNED_DIVIDE:
+            case INT_LOGICAL_SHIFT_RIGHT:
+            case INT_ARITHMETIC_SHIFT_RIGHT:
+                return EXACT;
+            default:
+                return NONE;
+        }
+    }
+
+    public static void checkFlags(BinaryOperator op, int flags) {
+        if ((flags & ~getValidFlags(op)) != 0) {
+            throw new AssertionError("invalid flags for " + op + ": " + Integer.toBinaryString(flags));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.irbuilder.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.oracle.truffle.llvm.parser.metadata.MDBaseNode;
+import com.oracle.truffle.llvm.parser.metadata.MDNode;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.LoadInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.StoreInstruction;
+
+/**
+ * Create type based alias analysis metadata, in the struct-path format which is also used by clang:
+ *
+ * <pre>
+ * !0 = !{!"Simple C/C++ TBAA"}             ; root
+ * !1 = !{!"omnipotent char", !0, i64 0}    ; aliases with every other type
+ * !2 = !{!"int", !1, i64 0}                ; scalar type
+ * !3 = !{!"struct.S", !2, i64 0, !2, i64 4} ; struct type with the offsets of its fields
+ * !4 = !{!3, !2, i64 4}                    ; access tag: base type, access type, offset
+ * </pre>
+ *
+ * Type nodes and access tags are created once and shared.
+ */
+public final class TBAABuilder {
+
+    private final MetadataBuilder metadata;
+
+    private final MDNode root;
+    private final MDNode omnipotentChar;
+
+    private final Map<String, MDNode> types = new HashMap<>();
+    private final Map<String, MDNode> parents = new HashMap<>();
+    private final Map<String, MDNode> tags = new HashMap<>();
+
+    public TBAABuilder(MetadataBuilder metadata, String rootName) {
+        this.metadata = metadata;
+        this.root = metadata.createNode(metadata.getString(rootName));
+        this.omnipotentChar = createTypeNode("omnipotent char", root);
+        types.put("omnipotent char", omnipotentChar);
+        parents.put("omnipotent char", root);
+    }
+
+    private MDNode createTypeNode(String name, MDNode parent) {
+        return metadata.createNode(metadata.getString(name), parent, metadata.createValue(ConstantUtil.getI64Const(0)));
+    }
+
+    public MDNode getRoot() {
+        return root;
+    }
+
+    public MDNode getOmnipotentChar() {
+        return omnipotentChar;
+    }
+
+    /**
+     * Get a scalar type like <code>int</code> or <code>any pointer</code>, which only aliases with
+     * itself and the omnipotent char.
+     */
+    public MDNode getScalarType(String name) {
+        return getScalarType(name, omnipotentChar);
+    }
+
+    /**
+     * Get a scalar type which aliases with its parent, like <code>long long</code> with
+     * <code>long</code>.
+     */
+    public MDNode getScalarType(String name, MDNode parent) {
+        if (types.containsKey(name) && !parents.containsKey(name)) {
+            // only scalar types have a parent
+            throw new AssertionError("TBAA type " + name + " is a struct type and cannot be used as scalar type");
+        }
+        final MDNode type = types.computeIfAbsent(name, n -> {
+            parents.put(n, parent);
+            return createTypeNode(n, parent);
+        });
+        if (parents.get(name) != parent) {
+            throw new AssertionError("TBAA type " + name + " was already created with another parent");
+        }
+        return type;
+    }
+
+    /**
+     * Create the type node of a structure, with the types and byte offsets of its fields.
+     */
+    public MDNode createStructType(String name, MDNode[] fieldTypes, long[] fieldOffsets) {
+        if (fieldTypes.length != fieldOffsets.length) {
+            throw new AssertionError("every field needs an offset");
+        }
+        if (types.containsKey(name)) {
+            throw new AssertionError("TBAA type " + name + " does already exist");
+        }
+
+        final MDBaseNode[] elements = new MDBaseNode[fieldTypes.length * 2 + 1];
+        elements[0] = metadata.getString(name);
+        for (int i = 0; i < fieldTypes.length; i++) {
+            elements[i * 2 + 1] = fieldTypes[i];
+            elements[i * 2 + 2] = metadata.createValue(ConstantUtil.getI64Const(fieldOffsets[i]));
+        }
+        final MDNode type = metadata.createNode(elements);
+        types.put(name, type);
+        return type;
+    }
+
+    /**
+     * Get the access tag for a direct access of a scalar type.
+     */
+    public MDNode getAccessTag(MDNode scalarType) {
+        return getAccessTag(scalarType, scalarType, 0);
+    }
+
+    /**
+     * Get the access tag for an access of the field at the given offset of a base type.
+     */
+    public MDNode getAccessTag(MDNode baseType, MDNode accessType, long offset) {
+        final String key = metadata.getReference(baseType) + ":" + metadata.getReference(accessType) + ":" + offset;
+        return tags.computeIfAbsent(key, k -> metadata.createNode(baseType, accessType, metadata.createValue(ConstantUtil.getI64Const(offset))));
+    }
+
+    /**
+     * Attach an access tag to a load or store instruction.
+     */
+    public void attach(Instruction instr, MDNode accessTag) {
+        if (!(instr instanceof LoadInstruction || instr instanceof StoreInstruction)) {
+            throw new AssertionError("TBAA can only be attached to memory accesses: " + instr);
+        }
+        metadata.attach(instr, "tbaa", accessTag);
+    }
+}
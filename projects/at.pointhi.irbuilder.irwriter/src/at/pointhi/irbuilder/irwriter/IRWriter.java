@@ -38,6 +38,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
 
 import at.pointhi.irbuilder.irwriter.visitors.model.IRWriterModelVisitor;
 
@@ -57,6 +58,36 @@ public class IRWriter {
         void println();
     }
 
+    /**
+     * Additional information about symbols of a model, which is not stored in the model itself.
+     */
+    public interface Annotations {
+        Annotations NONE = new Annotations() {
+        };
+
+        /**
+         * @return tail, musttail, notail or null if the call has no marker
+         */
+        default String getTailCallMarker(@SuppressWarnings("unused") Symbol call) {
+            return null;
+        }
+
+        /**
+         * @return calling convention of a function or call site, or null for the C calling
+         *         convention
+         */
+        default String getCallingConvention(@SuppressWarnings("unused") Symbol symbol) {
+            return null;
+        }
+
+        /**
+         * @return true if the address of the global is not significant, only its content
+         */
+        default boolean isUnnamedAddr(@SuppressWarnings("unused") Symbol global) {
+            return false;
+        }
+    }
+
     /**
      * Write the LLVM IR representation of a model into a file.
      *
@@ -76,13 +107,25 @@ public class IRWriter {
      * @param file file where we want to write the generated LLVM IR
      */
     public static void writeIRToFile(ModelModule model, IRWriterVersion version, Path file) {
+        writeIRToFile(model, version, file, Annotations.NONE);
+    }
+
+    /**
+     * Write the LLVM IR representation of a model into a file.
+     *
+     * @param model the model which we want to parse
+     * @param version actual version of the LLVM IR we want to write
+     * @param file file where we want to write the generated LLVM IR
+     * @param annotations information about the model which is not stored in the model itself
+     */
+    public static void writeIRToFile(ModelModule model, IRWriterVersion version, Path file, Annotations annotations) {
         final PrintWriter fileWriter;
         try {
             fileWriter = new PrintWriter(file.toAbsolutePath().toFile());
         } catch (FileNotFoundException e) {
             throw new IllegalArgumentException("Cannot print LLVMIR to this file: " + file.toAbsolutePath(), e);
         }
-        writeIRToStream(model, version, fileWriter); // TODO: Exceptions?
+        writeIRToStream(model, version, fileWriter, annotations); // TODO: Exceptions?
     }
 
     /**
@@ -93,7 +136,19 @@ public class IRWriter {
      * @param targetWriter our stream where the actual data is written to
      */
     public static void writeIRToStream(ModelModule model, IRWriterVersion version, PrintWriter targetWriter) {
-        writeIR(model, version, new PrintTarget() {
+        writeIRToStream(model, version, targetWriter, Annotations.NONE);
+    }
+
+    /**
+     * Write the LLVM IR representation of a model into a custom stream.
+     *
+     * @param model the model which we want to parse
+     * @param version actual version of the LLVM IR we want to write
+     * @param targetWriter our stream where the actual data is written to
+     * @param annotations information about the model which is not stored in the model itself
+     */
+    public static void writeIRToStream(ModelModule model, IRWriterVersion version, PrintWriter targetWriter, Annotations annotations) {
+        writeIR(model, version, annotations, new PrintTarget() {
             @Override
             public void print(String s) {
                 targetWriter.print(s);
@@ -112,10 +167,11 @@ public class IRWriter {
      *
      * @param model the model which we want to parse
      * @param version actual version of the LLVM IR we want to write
+     * @param annotations information about the model which is not stored in the model itself
      * @param printer our PrintTarget where the actual data is written to
      */
-    private static void writeIR(ModelModule model, IRWriterVersion version, PrintTarget printer) {
-        final IRWriterVersion.IRWriterVisitors visitors = version.createIRWriterVisitors(printer);
+    private static void writeIR(ModelModule model, IRWriterVersion version, Annotations annotations, PrintTarget printer) {
+        final IRWriterVersion.IRWriterVisitors visitors = version.createIRWriterVisitors(printer, annotations);
         final IRWriterModelVisitor modelVisitor = visitors.getModelVisitor();
 
         modelVisitor.writePrologue(model);
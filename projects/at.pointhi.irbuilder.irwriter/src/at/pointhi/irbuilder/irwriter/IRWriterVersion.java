@@ -154,8 +154,8 @@ public enum IRWriterVersion {
         return metadataVisitor.instantiate(out, target);
     }
 
-    IRWriterVisitors createIRWriterVisitors(IRWriter.PrintTarget target) {
-        return new IRWriterVisitors(this, target);
+    IRWriterVisitors createIRWriterVisitors(IRWriter.PrintTarget target, IRWriter.Annotations annotations) {
+        return new IRWriterVisitors(this, target, annotations);
     }
 
     public static final class IRWriterVisitors {
@@ -167,7 +167,10 @@ public enum IRWriterVersion {
         private final IRWriterTypeVisitor typeVisitor;
         private final IRWriterMetadataVisitorV38 metadataVisitor;
 
-        private IRWriterVisitors(IRWriterVersion version, IRWriter.PrintTarget target) {
+        private final IRWriter.Annotations annotations;
+
+        private IRWriterVisitors(IRWriterVersion version, IRWriter.PrintTarget target, IRWriter.Annotations annotations) {
+            this.annotations = annotations;
             this.modelVisitor = version.createModelPrintVisitor(this, target);
             this.functionVisitor = version.createFunctionPrintVisitor(this, target);
             this.instructionVisitor = version.createInstructionPrintVisitor(this, target);
@@ -199,5 +202,9 @@ public enum IRWriterVersion {
         public IRWriterMetadataVisitorV38 getMetadataVisitor() {
             return metadataVisitor;
         }
+
+        public IRWriter.Annotations getAnnotations() {
+            return annotations;
+        }
     }
 }
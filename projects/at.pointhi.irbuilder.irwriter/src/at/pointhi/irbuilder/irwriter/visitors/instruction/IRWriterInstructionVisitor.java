@@ -185,9 +185,11 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
         write(call.getName());
         write(" = ");
 
-        // [tail] call
+        // [tail] call [cconv]
+        writeTailCallMarker(call);
         write(LLVMIR_LABEL_CALL);
         write(" ");
+        writeCallingConvention(call);
 
         writeFunctionCall(call);
 
@@ -400,10 +402,8 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
         write(LLVMIR_LABEL_FENCE);
         write(" ");
 
-        if (fence.getSynchronizationScope() != null) {
-            // TODO: output IR string
-            // write(fence.getSynchronizationScope());
-            // write(" ");
+        if (fence.getSynchronizationScope() == SynchronizationScope.SINGLE_THREAD) {
+            write("singlethread ");
         }
 
         write(fence.getAtomicOrdering().getIrString());
@@ -781,9 +781,11 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
     public void visit(VoidCallInstruction call) {
         writeIndent();
 
-        // [tail] call
+        // [tail] call [cconv]
+        writeTailCallMarker(call);
         write(LLVMIR_LABEL_CALL);
         write(" ");
+        writeCallingConvention(call);
 
         writeFunctionCall(call);
 
@@ -876,6 +878,8 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
     public void visit(ReadModifyWriteInstruction rmw) {
         writeIndent();
 
+        write(rmw.getName());
+        write(" = ");
         write(LLVMIR_LABEL_ATOMICRMW);
         write(" ");
 
@@ -896,9 +900,8 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
         writeInnerSymbolValue(rmw.getValue());
         write(" ");
 
-        if (rmw.getSynchronizationScope() != null) {
-            // write(rmw.getSynchronizationScope().getIrString()); // TODO: implement
-            // write(" ");
+        if (rmw.getSynchronizationScope() == SynchronizationScope.SINGLE_THREAD) {
+            write("singlethread ");
         }
 
         write(rmw.getAtomicOrdering().getIrString());
@@ -906,6 +909,22 @@ public class IRWriterInstructionVisitor extends IRWriterBaseVisitor implements I
         writeInstructionTail(rmw);
     }
 
+    protected void writeTailCallMarker(Symbol call) {
+        final String marker = visitors.getAnnotations().getTailCallMarker(call);
+        if (marker != null) {
+            write(marker);
+            write(" ");
+        }
+    }
+
+    protected void writeCallingConvention(Symbol symbol) {
+        final String cc = visitors.getAnnotations().getCallingConvention(symbol);
+        if (cc != null) {
+            write(cc);
+            write(" ");
+        }
+    }
+
     /**
      * @see <a href="http://releases.llvm.org/3.2/docs/LangRef.html#i_call">LangRef</a>
      */
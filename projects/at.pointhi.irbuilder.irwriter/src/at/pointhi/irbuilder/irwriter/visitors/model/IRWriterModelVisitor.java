@@ -92,6 +92,10 @@ public class IRWriterModelVisitor extends IRWriterBaseVisitor implements ModelVi
             write(" ");
         }
 
+        if (visitors.getAnnotations().isUnnamedAddr(global)) {
+            write("unnamed_addr ");
+        }
+
         write(keyword);
         write(" ");
 
@@ -163,6 +167,14 @@ public class IRWriterModelVisitor extends IRWriterBaseVisitor implements ModelVi
         writeGlobal(LLVMIR_LABEL_GLOBAL, variable);
     }
 
+    protected void writeCallingConvention(Symbol function) {
+        final String cc = visitors.getAnnotations().getCallingConvention(function);
+        if (cc != null) {
+            write(" ");
+            write(cc);
+        }
+    }
+
     @Override
     public void visit(FunctionDeclaration function) {
         writeln();
@@ -175,6 +187,7 @@ public class IRWriterModelVisitor extends IRWriterBaseVisitor implements ModelVi
         }
 
         write("declare");
+        writeCallingConvention(function);
         writeAttributesGroupIfPresent(function.getReturnAttributesGroup());
         write(" ");
         writeType(function.getType().getReturnType());
@@ -198,6 +211,7 @@ public class IRWriterModelVisitor extends IRWriterBaseVisitor implements ModelVi
         }
 
         write("define");
+        writeCallingConvention(function);
         writeAttributesGroupIfPresent(function.getReturnAttributesGroup());
         write(" ");
         writeType(function.getType().getReturnType());
@@ -33,7 +33,9 @@
 package at.pointhi.irbuilder.irwriter.visitors.model;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.oracle.truffle.llvm.parser.metadata.MDAttachment;
 import com.oracle.truffle.llvm.parser.metadata.MDBaseNode;
@@ -61,6 +63,7 @@ public class IRWriterModelVisitorV38 extends IRWriterModelVisitor {
     }
 
     private final List<AttributesGroup> attributes = new ArrayList<>();
+    private final Map<AttributesGroup, Integer> attributeIds = new HashMap<>();
     private final List<MDBaseNode> metadata = new ArrayList<>();
 
     @Override
@@ -77,13 +80,12 @@ public class IRWriterModelVisitorV38 extends IRWriterModelVisitor {
     }
 
     public int addAttribute(AttributesGroup a) {
-        for (int i = 0; i < attributes.size(); i++) {
-            final AttributesGroup paramAttr = attributes.get(i);
-            if (paramAttr.equals(a)) {
-                return i;
-            }
+        final Integer id = attributeIds.get(a);
+        if (id != null) {
+            return id;
         }
         attributes.add(a);
+        attributeIds.put(a, attributes.size() - 1);
         return attributes.size() - 1;
     }
 
@@ -188,6 +190,7 @@ public class IRWriterModelVisitorV38 extends IRWriterModelVisitor {
         }
 
         write("declare");
+        writeCallingConvention(function);
         writeAttributesGroupIfPresent(function.getReturnAttributesGroup());
         write(" ");
         writeType(function.getType().getReturnType());
@@ -240,6 +243,7 @@ public class IRWriterModelVisitorV38 extends IRWriterModelVisitor {
             write(" ");
             write(linkage.getIrString());
         }
+        writeCallingConvention(function);
         writeAttributesGroupIfPresent(function.getReturnAttributesGroup());
         write(" ");
         writeType(function.getType().getReturnType());
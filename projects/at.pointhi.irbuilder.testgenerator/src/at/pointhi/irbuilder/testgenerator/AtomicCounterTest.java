@@ -0,0 +1,135 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.AtomicOrdering;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.enums.ReadModifyWriteOperator;
+import com.oracle.truffle.llvm.parser.model.enums.SynchronizationScope;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.InstructionBuilder;
+import at.pointhi.irbuilder.irbuilder.LoopBuilder;
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Execute atomicrmw, cmpxchg and fence instructions on a counter, in both synchronization scopes,
+ * and check the value of the counter after every step.
+ */
+public class AtomicCounterTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/atomic");
+
+    private static final int CAS_ITERATIONS = 10;
+
+    private Instruction error;
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_atomic_counter.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+        InstructionBuilder atomics = instr.getInstructionBuilder();
+        error = null;
+
+        Instruction counter = instr.allocate(PrimitiveType.I32);
+        instr.store(counter, ConstantUtil.getI32Const(0), 4);
+
+        // every atomicrmw returns the value before the update
+        checkEqual(instr, instr.atomicIncrement(counter, 5), 0);
+        checkEqual(instr, instr.atomicRMW(ReadModifyWriteOperator.ADD, counter, ConstantUtil.getI32Const(10)), 5);
+        instr.fence();
+        checkEqual(instr, atomics.createReadModifyWrite(ReadModifyWriteOperator.SUB, counter, ConstantUtil.getI32Const(5), false, AtomicOrdering.ACQUIRE_RELEASE, SynchronizationScope.SINGLE_THREAD),
+                        15);
+        atomics.createFence(AtomicOrdering.ACQUIRE, SynchronizationScope.SINGLE_THREAD);
+
+        // increment by one in a cas loop, which is nested into a counted loop
+        new LoopBuilder(instr, PrimitiveType.I32).setTripCount(CAS_ITERATIONS).build((b, index) -> {
+            b.casLoop(counter, (cas, expected) -> cas.binaryOperator(BinaryOperator.INT_ADD, expected, 1));
+        });
+        checkEqual(instr, instr.load(counter), 10 + CAS_ITERATIONS);
+
+        checkEqual(instr, instr.atomicRMW(ReadModifyWriteOperator.MAX, counter, ConstantUtil.getI32Const(100)), 10 + CAS_ITERATIONS);
+        checkEqual(instr, instr.atomicRMW(ReadModifyWriteOperator.XCHG, counter, ConstantUtil.getI32Const(-1)), 100);
+        checkEqual(instr, instr.atomicRMW(ReadModifyWriteOperator.UMIN, counter, ConstantUtil.getI32Const(7)), -1);
+
+        // only the first exchange expects the current value
+        Instruction success = instr.extractValue(instr.compareExchange(counter, ConstantUtil.getI32Const(7), ConstantUtil.getI32Const(42)), 1);
+        checkEqual(instr, success, 1);
+        Instruction failure = instr.extractValue(instr.compareExchange(counter, ConstantUtil.getI32Const(7), ConstantUtil.getI32Const(0)), 1);
+        checkEqual(instr, failure, 0);
+        checkEqual(instr, instr.load(counter), 42);
+
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        return builder.getModelModule();
+    }
+
+    private void checkEqual(SimpleInstrunctionBuilder instr, Instruction value, long expected) {
+        Instruction isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, value, expected);
+        error = error == null ? isWrong : instr.binaryOperator(BinaryOperator.INT_OR, error, isWrong);
+    }
+}
@@ -61,14 +61,22 @@ public abstract class BaseSuite {
 
         final IRWriterVersion version = IRWriterVersion.fromSystemProperty();
         if (outputIr) {
-            IRWriter.writeIRToStream(model, version, new PrintWriter(System.out));
+            IRWriter.writeIRToStream(model, version, new PrintWriter(System.out), getAnnotations());
         } else {
-            IRWriter.writeIRToFile(model, version, getOutputPath());
+            IRWriter.writeIRToFile(model, version, getOutputPath(), getAnnotations());
         }
     }
 
     public abstract ModelModule constructModelModule() throws Exception;
 
+    /**
+     * Information about the constructed model which is not stored in the model itself, see
+     * {@link at.pointhi.irbuilder.irbuilder.ModelModuleBuilder#getAnnotations()}.
+     */
+    public IRWriter.Annotations getAnnotations() {
+        return IRWriter.Annotations.NONE;
+    }
+
     public abstract Path getSuiteDir();
 
     public abstract Path getFilename();
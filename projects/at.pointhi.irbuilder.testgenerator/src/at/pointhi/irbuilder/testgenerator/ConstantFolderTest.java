@@ -0,0 +1,201 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ConstantFolder;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Compare the results of the {@link ConstantFolder} with the results of the same operations
+ * executed at runtime, for the integer types and operators of
+ * {@link at.pointhi.irbuilder.testgenerator.util.IntegerBinaryOperations}.
+ *
+ * The operands include the limits of the type, so the results wrap around, and shift amounts up to
+ * the bit width. Operations which are undefined or result in a poison value must not be folded, and
+ * are not executed at runtime.
+ */
+@RunWith(Parameterized.class)
+public class ConstantFolderTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/constantFolder");
+
+    private final PrimitiveType type;
+    private final BinaryOperator operator;
+
+    public ConstantFolderTest(PrimitiveType type, BinaryOperator operator) {
+        this.type = type;
+        this.operator = operator;
+    }
+
+    @Parameters(name = "{index}: ConstantFolder[type={0}, operator={1}]")
+    public static Collection<Object[]> data() {
+        List<Object[]> parameters = new LinkedList<>();
+
+        final PrimitiveType[] types = new PrimitiveType[]{PrimitiveType.I1, PrimitiveType.I8, PrimitiveType.I16, PrimitiveType.I32, PrimitiveType.I64};
+
+        for (PrimitiveType type : types) {
+            for (BinaryOperator operator : BinaryOperator.values()) {
+                if (operator.isFloatingPoint()) {
+                    continue;
+                }
+                parameters.add(new Object[]{type, operator});
+            }
+        }
+
+        return parameters;
+    }
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get(String.format("test_fold_i%d_%s.ll", type.getBitSize(), operator.getIrString()));
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        final long[] values = getValues();
+        Instruction error = null;
+        for (long lhs : values) {
+            for (long rhs : values) {
+                final Constant lhsConst = ConstantUtil.getConst(type, lhs);
+                final Constant rhsConst = ConstantUtil.getConst(type, rhs);
+                final Constant folded = ConstantFolder.fold(operator, lhsConst, rhsConst);
+
+                final String operation = String.format("%s %s %d, %d", operator.getIrString(), type, lhs, rhs);
+                Assert.assertEquals("fold of " + operation, isUndefined(lhs, rhs), folded == null);
+                if (folded == null) {
+                    continue;
+                }
+
+                final Instruction result = instr.binaryOperator(operator, lhsConst, rhsConst);
+                final Instruction isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, result, folded);
+                error = error == null ? isWrong : instr.binaryOperator(BinaryOperator.INT_OR, error, isWrong);
+            }
+        }
+
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        return builder.getModelModule();
+    }
+
+    private long getSignedMax() {
+        return Long.MAX_VALUE >> (Long.SIZE - type.getBitSize());
+    }
+
+    private long getSignedMin() {
+        return ~getSignedMax();
+    }
+
+    private long getValue(long value) {
+        // the constants are given sign extended to the width of the type
+        final int shift = Long.SIZE - type.getBitSize();
+        return (value << shift) >> shift;
+    }
+
+    /**
+     * The limits of the type, small values and all shift amounts around the bit width.
+     */
+    private long[] getValues() {
+        final int bits = type.getBitSize();
+        final long[] candidates = new long[]{0, 1, 2, 3, -1, -2, getSignedMax(), getSignedMin(), bits - 1, bits, bits + 1, 0x5555555555555555L};
+
+        final long[] values = new long[candidates.length];
+        int size = 0;
+        for (long candidate : candidates) {
+            final long value = getValue(candidate);
+            boolean isDuplicate = false;
+            for (int i = 0; i < size; i++) {
+                isDuplicate |= values[i] == value;
+            }
+            if (!isDuplicate) {
+                values[size++] = value;
+            }
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Operations which are undefined behavior or result in a poison value.
+     */
+    private boolean isUndefined(long lhs, long rhs) {
+        final int bits = type.getBitSize();
+        final long unsignedRhs = bits == Long.SIZE ? rhs : rhs & ((1L << bits) - 1);
+        switch (operator) {
+            case INT_UNSIGNED_DIVIDE:
+            case INT_UNSIGNED_REMAINDER:
+                return rhs == 0;
+            case INT_SIGNED_DIVIDE:
+            case INT_SIGNED_REMAINDER:
+                return rhs == 0 || (lhs == getSignedMin() && rhs == -1);
+            case INT_SHIFT_LEFT:
+            case INT_LOGICAL_SHIFT_RIGHT:
+            case INT_ARITHMETIC_SHIFT_RIGHT:
+                return Long.compareUnsigned(unsignedRhs, bits) >= 0;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.PhiInstruction;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.ValueInstruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.pass.DeadCodeElimination;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+import at.pointhi.irbuilder.irbuilder.util.ModelEditor;
+
+/**
+ * A function with an unreachable block, which is an incoming block of a phi. The unoptimized module
+ * is written by this suite, the optimized one by {@link PassPipelineTest}.
+ */
+public class DeadCodeEliminationTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/deadCode");
+
+    private static final String PHI_NAME = "result";
+
+    private FunctionDefinition select;
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_dead_code.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    /**
+     * The remaining blocks and the recreated phi have to keep consistent names.
+     */
+    @Test(timeout = 1000)
+    public void testNames() throws Exception {
+        constructModelModule();
+        Assert.assertTrue(DeadCodeElimination.run(select));
+
+        final List<InstructionBlock> blocks = select.getBlocks();
+        Assert.assertEquals(4, blocks.size());
+        for (int i = 1; i < blocks.size(); i++) {
+            Assert.assertEquals("%" + ModelEditor.GENERATED_BLOCK_PREFIX + i, blocks.get(i).getName());
+        }
+
+        final Instruction phi = blocks.get(3).getInstruction(0);
+        Assert.assertTrue(phi instanceof PhiInstruction);
+        Assert.assertEquals("%" + PHI_NAME, ((ValueInstruction) phi).getName());
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        select = createSelect(builder);
+        createMain(builder, select);
+
+        return builder.getModelModule();
+    }
+
+    /**
+     * select(x) = x > 0 ? x + 1 : x + 2, with an additional unreachable incoming block.
+     */
+    private static FunctionDefinition createSelect(ModelModuleBuilder builder) {
+        FunctionDefinition select = builder.createFunctionDefinition("select", 5, new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, select);
+
+        FunctionParameter x = instr.nextParameter();
+        InstructionBlock positive = instr.getBlock(1);
+        InstructionBlock negative = instr.getBlock(2);
+        InstructionBlock unreachable = instr.getBlock(3);
+        InstructionBlock join = instr.getBlock(4);
+
+        Instruction cmp = instr.compare(CompareOperator.INT_SIGNED_GREATER_THAN, x, 0);
+        instr.branch(cmp, positive, negative);
+
+        instr.nextBlock();
+        Instruction plusOne = instr.binaryOperator(BinaryOperator.INT_ADD, x, 1);
+        instr.jump(join);
+
+        instr.nextBlock();
+        Instruction plusTwo = instr.binaryOperator(BinaryOperator.INT_ADD, x, 2);
+        instr.jump(join);
+
+        instr.nextBlock();
+        Instruction plusThree = instr.binaryOperator(BinaryOperator.INT_ADD, x, 3);
+        instr.jump(join);
+
+        instr.nextBlock();
+        Instruction phi = instr.phi(PrimitiveType.I32, new Symbol[]{plusOne, plusTwo, plusThree}, new InstructionBlock[]{positive, negative, unreachable});
+        ((ValueInstruction) phi).setName(PHI_NAME);
+        instr.returnx(phi);
+
+        return select;
+    }
+
+    private static void createMain(ModelModuleBuilder builder, FunctionDefinition select) {
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        Instruction positive = instr.call(select, ConstantUtil.getI32Const(5));
+        Instruction positiveError = instr.compare(CompareOperator.INT_NOT_EQUAL, positive, 6);
+
+        Instruction negative = instr.call(select, ConstantUtil.getI32Const(-5));
+        Instruction negativeError = instr.compare(CompareOperator.INT_NOT_EQUAL, negative, -3);
+
+        Instruction ret = instr.binaryOperator(BinaryOperator.INT_OR, positiveError, negativeError);
+        instr.returnxWithCast(ret); // 0=OK, 1=ERROR
+    }
+}
@@ -51,6 +51,8 @@ import com.oracle.truffle.llvm.test.options.TestOptions;
 
 import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
 import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.util.CallMarkers;
+import at.pointhi.irbuilder.irwriter.IRWriter;
 
 public class FibonacciFunctionCallTest extends BaseSuite {
 
@@ -58,6 +60,8 @@ public class FibonacciFunctionCallTest extends BaseSuite {
 
     @Parameterized.Parameter(value = 0) public Path path;
 
+    private ModelModuleBuilder builder;
+
     @Override
     public Path getSuiteDir() {
         return SUITE_DIR;
@@ -77,14 +81,22 @@ public class FibonacciFunctionCallTest extends BaseSuite {
         super.test();
     }
 
+    @Override
+    public IRWriter.Annotations getAnnotations() {
+        return builder.getAnnotations();
+    }
+
     @Override
     public ModelModule constructModelModule() {
-        ModelModuleBuilder builder = new ModelModuleBuilder();
+        builder = new ModelModuleBuilder();
 
         FunctionDefinition fibonacci = builder.createFunctionDefinition("fibonacci", 3, new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false));
+        builder.setCallingConvention(fibonacci, CallMarkers.CallingConvention.FAST);
         SimpleInstrunctionBuilder fibInstr = new SimpleInstrunctionBuilder(builder, fibonacci);
 
-        createMain(builder, fibonacci);
+        FunctionDefinition fibonacciAcc = createFibonacciAcc(builder);
+
+        createMain(builder, fibonacci, fibonacciAcc);
 
         FunctionParameter param1 = fibInstr.nextParameter();
 
@@ -108,12 +120,46 @@ public class FibonacciFunctionCallTest extends BaseSuite {
         return builder.getModelModule();
     }
 
-    private static void createMain(ModelModuleBuilder builder, FunctionDefinition fibonacci) {
+    /**
+     * Tail recursive variant: fibonacci_acc(n, a, b) = n == 0 ? a : fibonacci_acc(n - 1, b, a + b)
+     */
+    private static FunctionDefinition createFibonacciAcc(ModelModuleBuilder builder) {
+        FunctionDefinition fibonacciAcc = builder.createFunctionDefinition("fibonacci_acc", 3,
+                        new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32, PrimitiveType.I32, PrimitiveType.I32}, false));
+        builder.setCallingConvention(fibonacciAcc, CallMarkers.CallingConvention.FAST);
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, fibonacciAcc);
+
+        FunctionParameter n = instr.nextParameter();
+        FunctionParameter a = instr.nextParameter();
+        FunctionParameter b = instr.nextParameter();
+
+        Instruction cmp = instr.compare(CompareOperator.INT_EQUAL, n, 0);
+        instr.branch(cmp, instr.getBlock(1), instr.getBlock(2));
+
+        instr.nextBlock();
+        instr.returnx(a);
+
+        instr.nextBlock();
+        Instruction nextN = instr.binaryOperator(BinaryOperator.INT_SUBTRACT, n, 1);
+        Instruction sum = instr.binaryOperator(BinaryOperator.INT_ADD, a, b);
+        Instruction res = instr.tailCall(CallMarkers.TailCall.MUSTTAIL, fibonacciAcc, nextN, b, sum);
+        instr.returnx(res);
+
+        return fibonacciAcc;
+    }
+
+    private static void createMain(ModelModuleBuilder builder, FunctionDefinition fibonacci, FunctionDefinition fibonacciAcc) {
         FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
         SimpleInstrunctionBuilder mainInstr = new SimpleInstrunctionBuilder(builder, main);
 
         Instruction fibRes = mainInstr.call(fibonacci, new IntegerConstant(PrimitiveType.I32, 10));
-        Instruction ret = mainInstr.compare(CompareOperator.INT_NOT_EQUAL, fibRes, 55);
+        Instruction fibError = mainInstr.compare(CompareOperator.INT_NOT_EQUAL, fibRes, 55);
+
+        Instruction fibAccRes = mainInstr.call(fibonacciAcc, new IntegerConstant(PrimitiveType.I32, 10), new IntegerConstant(PrimitiveType.I32, 0),
+                        new IntegerConstant(PrimitiveType.I32, 1));
+        Instruction fibAccError = mainInstr.compare(CompareOperator.INT_NOT_EQUAL, fibAccRes, 55);
+
+        Instruction ret = mainInstr.binaryOperator(BinaryOperator.INT_OR, fibError, fibAccError);
         mainInstr.returnxWithCast(ret); // 0=OK, 1=ERROR
     }
 }
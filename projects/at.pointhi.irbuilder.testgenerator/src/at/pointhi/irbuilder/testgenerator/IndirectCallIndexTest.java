@@ -0,0 +1,125 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.pass.PassManager;
+import at.pointhi.irbuilder.irbuilder.pass.PromoteMemoryToRegister;
+import at.pointhi.irbuilder.irbuilder.util.ModelIndex;
+
+/**
+ * Call a function through a function pointer which is stored in an alloca, and promote the alloca
+ * while the index of the module is attached to the pass manager. The call is registered for the
+ * load, but targets the function itself after mem2reg, so the index has to move it over.
+ */
+public class IndirectCallIndexTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/call_index");
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_indirect_call_index.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        final ModelModuleBuilder builder = new ModelModuleBuilder();
+        final ModelIndex index = builder.getModelIndex();
+
+        final FunctionType calleeType = new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false);
+        final FunctionDefinition callee = builder.createFunctionDefinition("add_one", 1, calleeType);
+        final SimpleInstrunctionBuilder calleeInstr = new SimpleInstrunctionBuilder(builder, callee);
+        final FunctionParameter param = calleeInstr.nextParameter();
+        calleeInstr.returnx(calleeInstr.binaryOperator(BinaryOperator.INT_ADD, param, 1));
+
+        final FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        final Instruction slot = instr.allocate(new PointerType(calleeType));
+        instr.store(slot, callee);
+        final Instruction target = instr.load(slot);
+        final Instruction call = instr.call(target, new IntegerConstant(PrimitiveType.I32, 41));
+        final Instruction error = instr.compare(CompareOperator.INT_NOT_EQUAL, call, 42);
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        Assert.assertEquals(1, index.getCallSites(target).size());
+        Assert.assertTrue(index.getCallSites(callee).isEmpty());
+
+        final PassManager passes = new PassManager();
+        passes.add(PromoteMemoryToRegister.PASS);
+        passes.setModelIndex(index);
+        passes.run(builder.getModelModule());
+
+        // the load is gone, the call is filed under the function it calls now
+        Assert.assertTrue(index.getCallSites(target).isEmpty());
+        final List<Instruction> sites = index.getCallSites(callee);
+        Assert.assertEquals(1, sites.size());
+        Assert.assertSame(call, sites.get(0));
+
+        return builder.getModelModule();
+    }
+}
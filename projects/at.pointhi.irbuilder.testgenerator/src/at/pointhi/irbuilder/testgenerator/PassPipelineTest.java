@@ -0,0 +1,106 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.pass.DeadCodeElimination;
+import at.pointhi.irbuilder.irbuilder.pass.PassManager;
+import at.pointhi.irbuilder.irbuilder.pass.PromoteMemoryToRegister;
+import at.pointhi.irbuilder.irbuilder.pass.ValueNumbering;
+import at.pointhi.irbuilder.irwriter.IRWriter;
+
+/**
+ * Run mem2reg, gvn and dce over the modules of other testsuites. The main function of the optimized
+ * module has to return the same result as the original one, which is 0 for all of them.
+ */
+@RunWith(Parameterized.class)
+public class PassPipelineTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/passes");
+
+    private final String name;
+    private final BaseSuite source;
+
+    public PassPipelineTest(String name, BaseSuite source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    @Parameters(name = "{index}: PassPipelineTest[{0}]")
+    public static Collection<Object[]> data() {
+        List<Object[]> parameters = new LinkedList<>();
+
+        parameters.add(new Object[]{"vector_loop", new VectorLoopTest()});
+        parameters.add(new Object[]{"fibonacci", new FibonacciFunctionCallTest()});
+        parameters.add(new Object[]{"dead_code", new DeadCodeEliminationTest()});
+
+        return parameters;
+    }
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_" + name + ".ll");
+    }
+
+    @Override
+    public IRWriter.Annotations getAnnotations() {
+        return source.getAnnotations();
+    }
+
+    @Override
+    public ModelModule constructModelModule() throws Exception {
+        final ModelModule model = source.constructModelModule();
+
+        final PassManager passes = new PassManager();
+        passes.add(PromoteMemoryToRegister.PASS).add(ValueNumbering.PASS).add(DeadCodeElimination.PASS);
+        passes.run(model);
+
+        return model;
+    }
+}
@@ -43,13 +43,17 @@ import org.junit.runners.Parameterized.Parameters;
 
 import com.oracle.truffle.llvm.parser.model.ModelModule;
 import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
 import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
 import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
 import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
 import com.oracle.truffle.llvm.test.options.TestOptions;
+import at.pointhi.irbuilder.irbuilder.InlineCacheBuilder;
 import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
 import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
 import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
@@ -64,7 +68,7 @@ public class PolymorphicFunctionCallTest extends BaseSuite {
     private final PrimitiveType type;
     private final int numberOfCallsites;
 
-    @SuppressWarnings("unused") private final IntegerBinaryOperations binOp;
+    private final IntegerBinaryOperations binOp;
 
     public PolymorphicFunctionCallTest(PrimitiveType type, int numberOfCallsites) {
         this.type = type;
@@ -111,12 +115,34 @@ public class PolymorphicFunctionCallTest extends BaseSuite {
         return builder.getModelModule();
     }
 
-    @SuppressWarnings("static-method")
-    private void createMain(ModelModuleBuilder builder, @SuppressWarnings("unused") FunctionDefinition[] callSites) {
+    private void createMain(ModelModuleBuilder builder, FunctionDefinition[] callSites) throws UndefinedArithmeticResult {
+        final FunctionType callSiteType = new FunctionType(type, new Type[]{type, type}, false);
         FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
         SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
 
-        instr.returnx(ConstantUtil.getI32Const(1)); // 0=OK, 1=ERROR
+        final long lhs = 13;
+        final long rhs = 5;
+
+        // only the first callees are cached, the remaining ones take the indirect call
+        final InlineCacheBuilder cache = new InlineCacheBuilder(instr, callSiteType);
+        for (FunctionDefinition callSite : callSites) {
+            cache.addTarget(callSite);
+        }
+
+        final Instruction slot = instr.allocate(new PointerType(callSiteType));
+        Symbol hasError = ConstantUtil.getI1Const(false);
+        for (int i = 0; i < callSites.length; i++) {
+            instr.store(slot, callSites[i]);
+            final Instruction target = instr.load(slot);
+
+            final Symbol res = cache.build(target, ConstantUtil.getConst(type, lhs), ConstantUtil.getConst(type, rhs));
+            final long expected = binOp.calculateResult(getOperator(i), lhs, rhs);
+
+            final Instruction isError = instr.compare(CompareOperator.INT_NOT_EQUAL, res, ConstantUtil.getConst(type, expected));
+            hasError = instr.binaryOperator(BinaryOperator.INT_OR, hasError, isError);
+        }
+
+        instr.returnxWithCast(hasError); // 0=OK, 1=ERROR
     }
 
     private FunctionDefinition createCallSite(ModelModuleBuilder builder, int idx) {
@@ -0,0 +1,225 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.metadata.MDNode;
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.StructureType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.InlineCacheBuilder;
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.SwitchBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+import at.pointhi.irbuilder.irbuilder.util.TBAABuilder;
+
+/**
+ * Attach <code>!tbaa</code> access tags to loads and stores, and <code>!prof</code> branch weights
+ * to a branch, a switch which is split into a decision tree, and an inline cache. The metadata must
+ * not change the result of the program.
+ */
+public class ProfileMetadataTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/metadata");
+
+    private static final FunctionType UNARY_TYPE = new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false);
+
+    // {value, target, weight}, the sparse case forces a decision tree with weighted branches
+    private static final int[][] CASES = new int[][]{{0, 1, 10}, {1, 2, 500}, {2, 3, 20}, {3, 1, 0}, {1000, 2, 5}};
+    private static final int DEFAULT_WEIGHT = 1;
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_profile_metadata.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        final ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        final FunctionDefinition abs = createAbs(builder);
+        final FunctionDefinition classify = createClassify(builder);
+        final FunctionDefinition addOne = createUnary(builder, "add_one", BinaryOperator.INT_ADD, 1);
+        final FunctionDefinition timesTwo = createUnary(builder, "times_two", BinaryOperator.INT_MULTIPLY, 2);
+
+        final FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        Instruction error = checkAliasing(builder, instr);
+        error = check(instr, error, instr.call(abs, ConstantUtil.getI32Const(-7)), 7);
+        error = check(instr, error, instr.call(abs, ConstantUtil.getI32Const(7)), 7);
+        for (int[] c : CASES) {
+            error = check(instr, error, instr.call(classify, ConstantUtil.getI32Const(c[0])), c[1]);
+        }
+        error = check(instr, error, instr.call(classify, ConstantUtil.getI32Const(4)), 0);
+        error = check(instr, error, instr.call(classify, ConstantUtil.getI32Const(-1)), 0);
+
+        // only the heavier callee is cached, the other one is called indirectly
+        final InlineCacheBuilder cache = new InlineCacheBuilder(instr, UNARY_TYPE);
+        cache.addTarget(addOne, 90).addTarget(timesTwo, 10).setMissWeight(1).setMaxEntries(1);
+        final Instruction slot = instr.allocate(new PointerType(UNARY_TYPE));
+        for (FunctionDefinition callee : new FunctionDefinition[]{addOne, timesTwo}) {
+            instr.store(slot, callee);
+            final Symbol result = cache.build(instr.load(slot), ConstantUtil.getI32Const(21));
+            error = check(instr, error, result, callee == addOne ? 22 : 42);
+        }
+
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        return builder.getModelModule();
+    }
+
+    /**
+     * Store and load the fields of a struct and a scalar with struct-path access tags.
+     */
+    private static Instruction checkAliasing(ModelModuleBuilder builder, SimpleInstrunctionBuilder instr) {
+        final TBAABuilder tbaa = builder.getTBAABuilder();
+        final MDNode intType = tbaa.getScalarType("int");
+        final MDNode structType = tbaa.createStructType("struct.S", new MDNode[]{intType, intType}, new long[]{0, 4});
+
+        boolean rejected = false;
+        try {
+            tbaa.getScalarType("struct.S");
+        } catch (AssertionError e) {
+            rejected = true;
+        }
+        Assert.assertTrue("struct types cannot be used as scalar types", rejected);
+
+        final StructureType struct = new StructureType("struct.S", false, new Type[]{PrimitiveType.I32, PrimitiveType.I32});
+        builder.createType(struct);
+
+        final Instruction value = instr.allocate(struct);
+        final Instruction first = instr.getElementPointerInbounds(value, 0, 0);
+        final Instruction second = instr.getElementPointerInbounds(value, 0, 1);
+        final Instruction scalar = instr.allocate(PrimitiveType.I32);
+
+        tbaa.attach(instr.store(first, ConstantUtil.getI32Const(1)), tbaa.getAccessTag(structType, intType, 0));
+        tbaa.attach(instr.store(second, ConstantUtil.getI32Const(2)), tbaa.getAccessTag(structType, intType, 4));
+        tbaa.attach(instr.store(scalar, ConstantUtil.getI32Const(40)), tbaa.getAccessTag(intType));
+
+        final Instruction firstValue = instr.load(first);
+        tbaa.attach(firstValue, tbaa.getAccessTag(structType, intType, 0));
+        final Instruction secondValue = instr.load(second);
+        tbaa.attach(secondValue, tbaa.getAccessTag(structType, intType, 4));
+        final Instruction scalarValue = instr.load(scalar);
+        tbaa.attach(scalarValue, tbaa.getAccessTag(intType));
+
+        final Instruction sum = instr.binaryOperator(BinaryOperator.INT_ADD, instr.binaryOperator(BinaryOperator.INT_ADD, firstValue, secondValue), scalarValue);
+        return instr.compare(CompareOperator.INT_NOT_EQUAL, sum, 43);
+    }
+
+    private static Instruction check(SimpleInstrunctionBuilder instr, Instruction error, Symbol value, int expected) {
+        final Instruction isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, value, expected);
+        return instr.binaryOperator(BinaryOperator.INT_OR, error, isWrong);
+    }
+
+    /**
+     * Negative arguments are expected to be rare.
+     */
+    private static FunctionDefinition createAbs(ModelModuleBuilder builder) {
+        final FunctionDefinition abs = builder.createFunctionDefinition("abs", 3, UNARY_TYPE);
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, abs);
+
+        final FunctionParameter value = instr.nextParameter();
+        final Instruction isNegative = instr.compare(CompareOperator.INT_SIGNED_LESS_THAN, value, 0);
+        instr.branch(isNegative, instr.getBlock(1), instr.getBlock(2), 1, 99);
+
+        instr.nextBlock();
+        instr.returnx(instr.binaryOperator(BinaryOperator.INT_SUBTRACT, 0, value));
+
+        instr.nextBlock();
+        instr.returnx(value);
+
+        return abs;
+    }
+
+    private static FunctionDefinition createClassify(ModelModuleBuilder builder) {
+        final FunctionDefinition classify = builder.createFunctionDefinition("classify", 5, UNARY_TYPE);
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, classify);
+
+        final FunctionParameter value = instr.nextParameter();
+
+        final SwitchBuilder switchBuilder = new SwitchBuilder(instr, value).setDefault(instr.getBlock(1), DEFAULT_WEIGHT);
+        for (int[] c : CASES) {
+            switchBuilder.addCase(c[0], instr.getBlock(c[1] + 1), c[2]);
+        }
+        switchBuilder.build();
+
+        for (int target = 0; target <= 3; target++) {
+            instr.nextBlock();
+            instr.returnx(ConstantUtil.getI32Const(target));
+        }
+
+        return classify;
+    }
+
+    private static FunctionDefinition createUnary(ModelModuleBuilder builder, String name, BinaryOperator op, long rhs) {
+        final FunctionDefinition function = builder.createFunctionDefinition(name, 1, UNARY_TYPE);
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, function);
+
+        final FunctionParameter value = instr.nextParameter();
+        instr.returnx(instr.binaryOperator(op, value, rhs));
+
+        return function;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.attributes.Attribute;
+import com.oracle.truffle.llvm.parser.model.attributes.AttributesCodeEntry;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.integer.IntegerConstant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.util.AttributesBuilder;
+import at.pointhi.irbuilder.irwriter.IRWriter;
+import at.pointhi.irbuilder.irwriter.IRWriterVersion;
+
+/**
+ * Define and call functions which have the same function, return value and parameter attributes.
+ * The attributes are built separately for every function and call site, but have to end up in the
+ * same groups, so only a single attribute group is written.
+ */
+public class SharedAttributesTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/attributes");
+
+    private static final FunctionType FUNCTION_TYPE = new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false);
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_shared_attributes.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+
+        // only LLVM 3.8 writes the function attributes as references to attribute groups
+        final StringWriter ir = new StringWriter();
+        final PrintWriter writer = new PrintWriter(ir);
+        IRWriter.writeIRToStream(constructModelModule(), IRWriterVersion.LLVM_IR_3_8, writer);
+        writer.flush();
+
+        int groups = 0;
+        for (String line : ir.toString().split("\n")) {
+            if (line.startsWith("attributes #")) {
+                groups++;
+            }
+        }
+        Assert.assertEquals(1, groups);
+    }
+
+    private static AttributesCodeEntry createAttributes(ModelModuleBuilder builder) {
+        final AttributesBuilder attributes = builder.createAttributes();
+        attributes.addFunctionAttribute(Attribute.Kind.NOUNWIND).addFunctionAttribute(Attribute.Kind.NOINLINE);
+        attributes.addReturnAttribute(Attribute.Kind.SIGNEXT);
+        attributes.addParameterAttribute(0, Attribute.Kind.SIGNEXT);
+        return attributes.build();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        final ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        final FunctionDefinition addOne = createFunction(builder, "add_one", BinaryOperator.INT_ADD, 1);
+        final FunctionDefinition timesTwo = createFunction(builder, "times_two", BinaryOperator.INT_MULTIPLY, 2);
+
+        Assert.assertSame(addOne.getFunctionAttributesGroup(), timesTwo.getFunctionAttributesGroup());
+        Assert.assertSame(addOne.getReturnAttributesGroup(), timesTwo.getReturnAttributesGroup());
+        Assert.assertSame(addOne.getParameterAttributesGroup(0), timesTwo.getParameterAttributesGroup(0));
+
+        final FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        final Instruction one = instr.call(createAttributes(builder), addOne, new IntegerConstant(PrimitiveType.I32, 20));
+        final Instruction two = instr.call(createAttributes(builder), timesTwo, one);
+
+        final Instruction error = instr.compare(CompareOperator.INT_NOT_EQUAL, two, 42);
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        return builder.getModelModule();
+    }
+
+    private static FunctionDefinition createFunction(ModelModuleBuilder builder, String name, BinaryOperator op, long rhs) {
+        final FunctionDefinition function = builder.createFunctionDefinition(name, 1, FUNCTION_TYPE, createAttributes(builder));
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, function);
+
+        final FunctionParameter param = instr.nextParameter();
+        instr.returnx(instr.binaryOperator(op, param, rhs));
+
+        return function;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.globals.GlobalValueSymbol;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.symbols.ValueSymbol;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irwriter.IRWriter;
+
+/**
+ * Merge duplicated string constants after main was built, and check that the instructions and the
+ * global initializers which were referencing a duplicate are using the remaining constant.
+ */
+public class StringConstantMergeTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/stringMerge");
+
+    private ModelModuleBuilder builder;
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_string_merge.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public IRWriter.Annotations getAnnotations() {
+        return builder.getAnnotations();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        builder = new ModelModuleBuilder();
+
+        ValueSymbol first = builder.createGlobalStringConstant("str.first", "merge", true);
+        builder.setUnnamedAddr((GlobalValueSymbol) first);
+
+        ValueSymbol duplicate = builder.createGlobalStringConstant("str.duplicate", "merge", true);
+        builder.setUnnamedAddr((GlobalValueSymbol) duplicate);
+        final int duplicateIdx = builder.getModelModule().getSymbols().getSize();
+
+        // the address of this constant is significant, so it has to stay distinct
+        ValueSymbol named = builder.createGlobalStringConstant("str.named", "merge", true);
+
+        // initialized with the address of the duplicate, which has to be rewritten as well
+        ValueSymbol reference = builder.createGlobalConstant("str.reference", new PointerType(duplicate.getType()), duplicateIdx);
+
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        Instruction isMerged = instr.compare(CompareOperator.INT_EQUAL, first, duplicate);
+        Instruction isDistinct = instr.compare(CompareOperator.INT_NOT_EQUAL, first, named);
+
+        Instruction referenced = instr.load(instr.getElementPointer(reference, 0));
+        Instruction isReferenceMerged = instr.compare(CompareOperator.INT_EQUAL, first, referenced);
+
+        Instruction firstChar = instr.load(instr.getElementPointer(duplicate, 0, 0));
+        Instruction isCharValid = instr.compare(CompareOperator.INT_EQUAL, firstChar, 'm');
+
+        Instruction ok = instr.binaryOperator(BinaryOperator.INT_AND, isMerged, isDistinct);
+        ok = instr.binaryOperator(BinaryOperator.INT_AND, ok, isReferenceMerged);
+        ok = instr.binaryOperator(BinaryOperator.INT_AND, ok, isCharValid);
+        Instruction error = instr.binaryOperator(BinaryOperator.INT_XOR, ok, true);
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        Assert.assertEquals("only the unnamed_addr duplicate should be merged", 1, builder.mergeDuplicateStringConstants());
+        Assert.assertEquals("merging again should not find any duplicates", 0, builder.mergeDuplicateStringConstants());
+
+        return builder.getModelModule();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionParameter;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.SwitchBuilder;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Build a switch with a dense range of cases and some sparse ones, which is split into multiple
+ * clusters, and check which target every value reaches.
+ */
+public class SwitchBuilderTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/switch");
+
+    private static final int DEFAULT_TARGET = 0;
+    private static final int TARGET_COUNT = 4;
+
+    // {value, target}, some values are given unsigned and some of them twice
+    private static final long[][] CASES = new long[][]{
+                    {0, 1}, {1, 2}, {2, 3}, {3, 1}, {4, 2}, {5, 3}, {6, 1}, {7, 2}, {8, 3}, {9, 4},
+                    {1000, 4},
+                    {-5000, 4},
+                    {0xFFFFFFFFL, 1},
+                    {0xFFFFFFFEL, 2},
+                    {-2, 2},
+                    {100000, 2},
+                    {Integer.MAX_VALUE, 3},
+                    {0x80000000L, 4},
+    };
+
+    private static final int[] NO_CASES = new int[]{10, -3, 999, 1001, -4999, 99999, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1};
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_switch.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        FunctionDefinition classify = createClassify(builder);
+        createMain(builder, classify);
+
+        return builder.getModelModule();
+    }
+
+    private static FunctionDefinition createClassify(ModelModuleBuilder builder) {
+        FunctionDefinition classify = builder.createFunctionDefinition("classify", TARGET_COUNT + 2, new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, classify);
+
+        FunctionParameter value = instr.nextParameter();
+
+        SwitchBuilder switchBuilder = new SwitchBuilder(instr, value).setDefault(instr.getBlock(DEFAULT_TARGET + 1));
+        for (long[] c : CASES) {
+            switchBuilder.addCase(c[0], instr.getBlock((int) c[1] + 1));
+        }
+        switchBuilder.build();
+
+        for (int target = 0; target <= TARGET_COUNT; target++) {
+            instr.nextBlock();
+            instr.returnx(ConstantUtil.getI32Const(target));
+        }
+
+        return classify;
+    }
+
+    private static void createMain(ModelModuleBuilder builder, FunctionDefinition classify) {
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        Instruction error = null;
+        for (long[] c : CASES) {
+            error = checkTarget(instr, classify, (int) c[0], (int) c[1], error);
+        }
+        for (int value : NO_CASES) {
+            error = checkTarget(instr, classify, value, DEFAULT_TARGET, error);
+        }
+
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+    }
+
+    private static Instruction checkTarget(SimpleInstrunctionBuilder instr, FunctionDefinition classify, int value, int expected, Instruction error) {
+        Instruction target = instr.call(classify, ConstantUtil.getI32Const(value));
+        Instruction isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, target, expected);
+        return error == null ? isWrong : instr.binaryOperator(BinaryOperator.INT_OR, error, isWrong);
+    }
+}
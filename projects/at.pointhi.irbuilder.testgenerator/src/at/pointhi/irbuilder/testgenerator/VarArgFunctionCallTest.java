@@ -52,6 +52,7 @@ import com.oracle.truffle.llvm.test.options.TestOptions;
 
 import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
 import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.VaArgReaderAMD64;
 import at.pointhi.irbuilder.irbuilder.helper.LLVMIntrinsics;
 import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
 import at.pointhi.irbuilder.irwriter.IRWriter;
@@ -118,15 +119,16 @@ public class VarArgFunctionCallTest extends BaseSuite {
         Instruction vaArray = instr.allocate(new ArrayType(vaListTag, 1));
 
         instr.vaStartAMD64(vaArray);
+        VaArgReaderAMD64 varArgs = new VaArgReaderAMD64(instr, vaArray);
 
-        Instruction loadRes = instr.vaArgAMD64(vaArray, PrimitiveType.I32);
+        Instruction loadRes = varArgs.read(PrimitiveType.I32);
         Instruction cmpRes = instr.compare(CompareOperator.INT_EQUAL, loadRes, 32);
 
         instr.insertBlocks(1);
         instr.branch(cmpRes, instr.getNextBlock(), returnFailBlock);
         instr.nextBlock();
 
-        Instruction loadRes2 = instr.vaArgAMD64(vaArray, PrimitiveType.DOUBLE);
+        Instruction loadRes2 = varArgs.read(PrimitiveType.DOUBLE);
         Instruction cmpRes2 = instr.compare(CompareOperator.FP_ORDERED_EQUAL, loadRes2, 1.2);
 
         instr.insertBlocks(1);
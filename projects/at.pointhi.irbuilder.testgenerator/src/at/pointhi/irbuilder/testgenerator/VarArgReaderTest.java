@@ -0,0 +1,311 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.constants.Constant;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.ArrayType;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.StructureType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
+import com.oracle.truffle.llvm.runtime.types.symbols.Symbol;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+import at.pointhi.irbuilder.irbuilder.VaArgReaderAMD64;
+import at.pointhi.irbuilder.irbuilder.helper.LLVMIntrinsics;
+import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
+
+/**
+ * Pass more varargs than there are registers, so {@link VaArgReaderAMD64#readAll} is executed
+ * once with all arguments in the register save area, once when the registers run out in the middle
+ * of the arguments and once with all arguments in the overflow area. Aggregates are read from the
+ * registers, from the stack and from memory.
+ *
+ * A second function reads aggregates which are passed in SSE registers, or in a mix of general
+ * purpose and SSE registers, and a long double which is always passed on the stack. The caller
+ * passes them like clang does for C.
+ */
+public class VarArgReaderTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/varargReader");
+
+    private static final int DOUBLE_COUNT = 10;
+
+    private static final StructureType DOUBLE_LONG = new StructureType("struct.double_long", false, new Type[]{PrimitiveType.DOUBLE, PrimitiveType.I64});
+    private static final StructureType DOUBLE_PAIR = new StructureType("struct.double_pair", false, new Type[]{PrimitiveType.DOUBLE, PrimitiveType.DOUBLE});
+    private static final StructureType FLOAT_PAIR = new StructureType("struct.float_pair", false, new Type[]{PrimitiveType.FLOAT, PrimitiveType.FLOAT});
+    private static final StructureType FLOAT_INT = new StructureType("struct.float_int", false, new Type[]{PrimitiveType.FLOAT, PrimitiveType.I32});
+
+    private static final double LONG_DOUBLE_VALUE = 7.5;
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get("test_vararg_reader.ll");
+    }
+
+    /*
+     * This is a workaround, to allow mx unittest to execute this testsuite.
+     */
+    @Override
+    @Test(timeout = 1000)
+    public void test() throws Exception {
+        super.test();
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        StructureType pair = new StructureType("struct.pair", false, new Type[]{PrimitiveType.I64, PrimitiveType.I64});
+        StructureType triple = new StructureType("struct.triple", false, new Type[]{PrimitiveType.I64, PrimitiveType.I64, PrimitiveType.I64});
+        builder.createType(pair);
+        builder.createType(triple);
+
+        FunctionDefinition foo = createFoo(builder, pair, triple);
+        FunctionDefinition bar = createBar(builder);
+        createMain(builder, foo, bar, pair, triple);
+
+        return builder.getModelModule();
+    }
+
+    private static void check(SimpleInstrunctionBuilder instr, Instruction cmp, InstructionBlock failBlock) {
+        instr.insertBlocks(1);
+        instr.branch(cmp, instr.getNextBlock(), failBlock);
+        instr.nextBlock();
+    }
+
+    private static void checkStruct(SimpleInstrunctionBuilder instr, Instruction struct, long first, int count, InstructionBlock failBlock) {
+        for (int i = 0; i < count; i++) {
+            Instruction element = instr.load(instr.getElementPointer(struct, 0, i));
+            check(instr, instr.compare(CompareOperator.INT_EQUAL, element, first + i), failBlock);
+        }
+    }
+
+    private static FunctionDefinition createFoo(ModelModuleBuilder builder, StructureType pair, StructureType triple) {
+        FunctionDefinition foo = builder.createFunctionDefinition("foo", 3, new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, true));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, foo);
+
+        InstructionBlock returnOkBlock = instr.getBlock(1);
+        InstructionBlock returnFailBlock = instr.getBlock(2);
+
+        StructureType vaListTag = LLVMIntrinsics.registerVaListTagType(builder);
+        Instruction vaArray = instr.allocate(new ArrayType(vaListTag, 1));
+
+        instr.vaStartAMD64(vaArray);
+        VaArgReaderAMD64 varArgs = new VaArgReaderAMD64(instr, vaArray);
+
+        // the fixed argument uses the first register, the pair uses the next two
+        checkStruct(instr, varArgs.readAggregate(pair), 1, 2, returnFailBlock);
+
+        // fits into the remaining three registers
+        Instruction[] registerInts = varArgs.readAll(PrimitiveType.I64, PrimitiveType.I64, PrimitiveType.I64);
+        // no registers left
+        Instruction[] stackInts = varArgs.readAll(PrimitiveType.I64, PrimitiveType.I64, PrimitiveType.I64);
+        for (int i = 0; i < 3; i++) {
+            check(instr, instr.compare(CompareOperator.INT_EQUAL, registerInts[i], 3 + i), returnFailBlock);
+            check(instr, instr.compare(CompareOperator.INT_EQUAL, stackInts[i], 6 + i), returnFailBlock);
+        }
+
+        // both are passed on the stack now, but the triple is too large for the registers anyway
+        checkStruct(instr, varArgs.readAggregate(pair), 9, 2, returnFailBlock);
+        checkStruct(instr, varArgs.readAggregate(triple), 11, 3, returnFailBlock);
+
+        // the first five fit into the registers, three of the next five are still in registers
+        final Type[] doubles = new Type[DOUBLE_COUNT / 2];
+        Arrays.fill(doubles, PrimitiveType.DOUBLE);
+        List<Instruction> doubleValues = new ArrayList<>();
+        for (Instruction value : varArgs.readAll(doubles)) {
+            doubleValues.add(value);
+        }
+        for (Instruction value : varArgs.readAll(doubles)) {
+            doubleValues.add(value);
+        }
+        for (int i = 0; i < DOUBLE_COUNT; i++) {
+            check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, doubleValues.get(i), getDouble(i)), returnFailBlock);
+        }
+
+        instr.jump(returnOkBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == returnOkBlock;
+
+        instr.vaEndAMD64(vaArray);
+
+        instr.returnx(ConstantUtil.getI32Const(0));
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == returnFailBlock;
+
+        instr.vaEndAMD64(vaArray);
+
+        instr.returnx(ConstantUtil.getI32Const(1));
+
+        return foo;
+    }
+
+    private static FunctionDefinition createBar(ModelModuleBuilder builder) {
+        for (StructureType type : new StructureType[]{DOUBLE_LONG, DOUBLE_PAIR, FLOAT_PAIR, FLOAT_INT}) {
+            builder.createType(type);
+        }
+
+        FunctionDefinition bar = builder.createFunctionDefinition("bar", 3, new FunctionType(PrimitiveType.I32, new Type[]{PrimitiveType.I32}, true));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, bar);
+
+        InstructionBlock returnOkBlock = instr.getBlock(1);
+        InstructionBlock returnFailBlock = instr.getBlock(2);
+
+        StructureType vaListTag = LLVMIntrinsics.registerVaListTagType(builder);
+        Instruction vaArray = instr.allocate(new ArrayType(vaListTag, 1));
+
+        instr.vaStartAMD64(vaArray);
+        VaArgReaderAMD64 varArgs = new VaArgReaderAMD64(instr, vaArray);
+
+        // one SSE and one general purpose register
+        Instruction doubleLong = varArgs.readAggregate(DOUBLE_LONG);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(doubleLong, 0, 0)), 1.5), returnFailBlock);
+        check(instr, instr.compare(CompareOperator.INT_EQUAL, instr.load(instr.getElementPointer(doubleLong, 0, 1)), 2), returnFailBlock);
+
+        // two SSE registers, which are not next to each other in the register save area
+        Instruction doublePair = varArgs.readAggregate(DOUBLE_PAIR);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(doublePair, 0, 0)), 3.5), returnFailBlock);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(doublePair, 0, 1)), 4.5), returnFailBlock);
+
+        // both floats share a single SSE register
+        Instruction floatPair = varArgs.readAggregate(FLOAT_PAIR);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(floatPair, 0, 0)), 5.5), returnFailBlock);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(floatPair, 0, 1)), 6.5), returnFailBlock);
+
+        // passed on the stack, although there are registers left
+        Instruction longDouble = varArgs.read(PrimitiveType.X86_FP80);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, longDouble, ConstantUtil.getFP80Const(LONG_DOUBLE_VALUE)), returnFailBlock);
+
+        // a float and an integer in the same eightbyte are passed in a general purpose register
+        Instruction floatInt = varArgs.readAggregate(FLOAT_INT);
+        check(instr, instr.compare(CompareOperator.FP_ORDERED_EQUAL, instr.load(instr.getElementPointer(floatInt, 0, 0)), 8.5), returnFailBlock);
+        check(instr, instr.compare(CompareOperator.INT_EQUAL, instr.load(instr.getElementPointer(floatInt, 0, 1)), 9), returnFailBlock);
+
+        instr.jump(returnOkBlock);
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == returnOkBlock;
+
+        instr.vaEndAMD64(vaArray);
+
+        instr.returnx(ConstantUtil.getI32Const(0));
+
+        instr.nextBlock();
+        assert instr.getCurrentBlock() == returnFailBlock;
+
+        instr.vaEndAMD64(vaArray);
+
+        instr.returnx(ConstantUtil.getI32Const(1));
+
+        return bar;
+    }
+
+    private static Instruction storeStruct(SimpleInstrunctionBuilder instr, StructureType type, Constant... fields) {
+        Instruction struct = instr.allocate(type);
+        for (int i = 0; i < fields.length; i++) {
+            instr.store(instr.getElementPointer(struct, 0, i), fields[i]);
+        }
+        return struct;
+    }
+
+    private static double getDouble(int i) {
+        return i + 0.5;
+    }
+
+    private static Instruction createStruct(SimpleInstrunctionBuilder instr, StructureType type, long first) {
+        Instruction struct = instr.allocate(type);
+        for (int i = 0; i < type.getNumberOfElements(); i++) {
+            instr.store(instr.getElementPointer(struct, 0, i), ConstantUtil.getI64Const(first + i));
+        }
+        return instr.load(struct);
+    }
+
+    private static FunctionDefinition createMain(ModelModuleBuilder builder, FunctionDefinition foo, FunctionDefinition bar, StructureType pair, StructureType triple) {
+        FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        List<Symbol> args = new ArrayList<>();
+        args.add(ConstantUtil.getI32Const(0));
+        args.add(createStruct(instr, pair, 1));
+        for (int i = 3; i <= 8; i++) {
+            args.add(ConstantUtil.getI64Const(i));
+        }
+        args.add(createStruct(instr, pair, 9));
+        args.add(createStruct(instr, triple, 11));
+        for (int i = 0; i < DOUBLE_COUNT; i++) {
+            args.add(ConstantUtil.getDoubleConst(getDouble(i)));
+        }
+
+        Instruction fooRes = instr.call(foo, args.toArray(new Symbol[args.size()]));
+
+        // clang splits structs of two eightbytes into their fields, and passes smaller ones as a single value
+        Instruction doubleLong = instr.load(storeStruct(instr, DOUBLE_LONG, ConstantUtil.getDoubleConst(1.5), ConstantUtil.getI64Const(2)));
+        Instruction doublePair = instr.load(storeStruct(instr, DOUBLE_PAIR, ConstantUtil.getDoubleConst(3.5), ConstantUtil.getDoubleConst(4.5)));
+        Instruction floatPair = instr.fillVector(instr.allocate(new VectorType(PrimitiveType.FLOAT, 2)), 5.5, 6.5);
+        Instruction floatIntStruct = storeStruct(instr, FLOAT_INT, ConstantUtil.getFloatConst(8.5f), ConstantUtil.getI32Const(9));
+        Instruction floatInt = instr.load(instr.cast(CastOperator.BITCAST, new PointerType(PrimitiveType.I64), floatIntStruct));
+
+        Instruction barRes = instr.call(bar, ConstantUtil.getI32Const(0), doubleLong, doublePair, floatPair, ConstantUtil.getFP80Const(LONG_DOUBLE_VALUE), floatInt);
+
+        Instruction res = instr.binaryOperator(BinaryOperator.INT_OR, fooRes, barRes);
+        instr.returnx(res); // 0=OK, 1=ERROR
+
+        return main;
+    }
+}
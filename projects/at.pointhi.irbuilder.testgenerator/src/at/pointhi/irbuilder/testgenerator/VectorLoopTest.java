@@ -38,17 +38,20 @@ import org.junit.Test;
 import org.junit.runners.Parameterized;
 
 import com.oracle.truffle.llvm.parser.model.ModelModule;
-import com.oracle.truffle.llvm.parser.model.blocks.InstructionBlock;
 import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CastOperator;
 import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
 import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
 import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.ArrayType;
 import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PointerType;
 import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
 import com.oracle.truffle.llvm.runtime.types.Type;
 import com.oracle.truffle.llvm.runtime.types.VectorType;
 import com.oracle.truffle.llvm.test.options.TestOptions;
 
+import at.pointhi.irbuilder.irbuilder.LoopBuilder;
 import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
 import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
 import at.pointhi.irbuilder.irbuilder.util.ConstantUtil;
@@ -59,7 +62,12 @@ public class VectorLoopTest extends BaseSuite {
 
     @Parameterized.Parameter(value = 0) public Path path;
 
-    private final Type type = new VectorType(PrimitiveType.I32, 4);
+    private static final long ITERATIONS = 10000000;
+    // not a multiple of the vector width, so the remainder loop is executed as well
+    private static final int ARRAY_LENGTH = 1003;
+    private static final int VECTOR_WIDTH = 4;
+
+    private final Type type = new VectorType(PrimitiveType.I32, VECTOR_WIDTH);
 
     @Override
     public Path getSuiteDir() {
@@ -95,34 +103,47 @@ public class VectorLoopTest extends BaseSuite {
 
         final Instruction calcReg = instr.allocate(type);
         final Instruction incReg = instr.allocate(type);
-        final Instruction counterReg = instr.allocate(PrimitiveType.I64);
-        instr.store(counterReg, ConstantUtil.getI32Const(0), 4);
+        final Instruction limitReg = instr.allocate(PrimitiveType.I64);
+        instr.store(limitReg, ConstantUtil.getI64Const(ITERATIONS), 8);
 
         instr.fillVector(calcReg, 0, 0, 0, 0);
         final Instruction increment = instr.fillVector(incReg, 1, 2, 3, 4);
 
-        final InstructionBlock loopBlock = instr.getNextBlock();
-        instr.jump(loopBlock);
-        instr.nextBlock();
-
-        final Instruction calcLoad = instr.load(calcReg);
-        Instruction addRes = instr.binaryOperator(BinaryOperator.INT_ADD, calcLoad, increment);
-        // for (int i = 0; i < 100; i++) {
-        // addRes = instr.binaryOperator(BinaryOperator.INT_ADD, addRes, increment);
-        // }
-        instr.store(calcReg, addRes, 4);
-
-        final Instruction index = instr.load(counterReg);
-        final Instruction indexAdd = instr.binaryOperator(BinaryOperator.INT_ADD, index, 1);
-        instr.store(counterReg, indexAdd, 4);
-        final Instruction cmpRes = instr.compare(CompareOperator.INT_UNSIGNED_LESS_THAN, indexAdd, 10000000);
-
-        final InstructionBlock returnBlock = instr.getNextBlock();
-        instr.branch(cmpRes, loopBlock, returnBlock);
-        instr.nextBlock();
-
-        final Instruction ret = instr.extractElement(instr.load(calcReg), 0);
-
-        instr.returnxWithCast(ret); // 0=OK, 1=ERROR
+        // the end is not known at compile time, so the loop gets a guard
+        final Instruction limit = instr.load(limitReg);
+        new LoopBuilder(instr, PrimitiveType.I64).setEnd(limit).setUnsigned(true).build((b, index) -> {
+            final Instruction calcLoad = b.load(calcReg);
+            final Instruction addRes = b.binaryOperator(BinaryOperator.INT_ADD, calcLoad, increment);
+            b.store(calcReg, addRes, 4);
+        });
+
+        final Instruction sum = instr.extractElement(instr.load(calcReg), 0);
+        Instruction error = instr.compare(CompareOperator.INT_NOT_EQUAL, sum, ITERATIONS);
+
+        // array[i] = i, four elements at once and the remaining ones one by one
+        final Instruction array = instr.allocate(new ArrayType(PrimitiveType.I32, ARRAY_LENGTH));
+        new LoopBuilder(instr, PrimitiveType.I64).setTripCount(ARRAY_LENGTH).setVectorizeWidth(VECTOR_WIDTH).buildVectorized(VECTOR_WIDTH, (b, firstIndex, width) -> {
+            final Instruction address = b.getElementPointer(array, ConstantUtil.getI64Const(0), firstIndex);
+            final Instruction value = b.cast(CastOperator.TRUNCATE, PrimitiveType.I32, firstIndex);
+            if (width == 1) {
+                b.store(address, value, 4);
+            } else {
+                final VectorType vectorType = new VectorType(PrimitiveType.I32, width);
+                final long[] offsets = new long[width];
+                for (int i = 0; i < width; i++) {
+                    offsets[i] = i;
+                }
+                final Instruction values = b.binaryOperator(BinaryOperator.INT_ADD, b.splat(vectorType, value), b.vectorConstant(vectorType, offsets));
+                b.store(b.cast(CastOperator.BITCAST, new PointerType(vectorType), address), values, 4);
+            }
+        });
+
+        for (int i : new int[]{0, ARRAY_LENGTH - VECTOR_WIDTH, ARRAY_LENGTH - 1}) {
+            final Instruction element = instr.load(instr.getElementPointer(array, 0, i));
+            final Instruction isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, element, i);
+            error = instr.binaryOperator(BinaryOperator.INT_OR, error, isWrong);
+        }
+
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
     }
 }
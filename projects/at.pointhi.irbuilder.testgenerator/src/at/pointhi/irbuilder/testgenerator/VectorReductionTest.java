@@ -0,0 +1,187 @@
+/*
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2017, Thomas Pointhuber
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ *  list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ *  this list of conditions and the following disclaimer in the documentation
+ *  and/or other materials provided with the distribution.
+ *
+ * Neither the name of the copyright holder nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package at.pointhi.irbuilder.testgenerator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.oracle.truffle.llvm.parser.model.ModelModule;
+import com.oracle.truffle.llvm.parser.model.enums.BinaryOperator;
+import com.oracle.truffle.llvm.parser.model.enums.CompareOperator;
+import com.oracle.truffle.llvm.parser.model.functions.FunctionDefinition;
+import com.oracle.truffle.llvm.parser.model.symbols.instructions.Instruction;
+import com.oracle.truffle.llvm.runtime.types.FunctionType;
+import com.oracle.truffle.llvm.runtime.types.PrimitiveType;
+import com.oracle.truffle.llvm.runtime.types.Type;
+import com.oracle.truffle.llvm.runtime.types.VectorType;
+import com.oracle.truffle.llvm.test.options.TestOptions;
+
+import at.pointhi.irbuilder.irbuilder.ModelModuleBuilder;
+import at.pointhi.irbuilder.irbuilder.SimpleInstrunctionBuilder;
+
+/**
+ * Reduce a vector with {@link SimpleInstrunctionBuilder#reduceVector}, which uses shufflevectors
+ * for a power of two number of lanes, and compare the result with a lane by lane reduction and the
+ * value calculated in Java.
+ *
+ * The floating point lanes are small integers, so their sum does not depend on the order of
+ * evaluation.
+ */
+@RunWith(Parameterized.class)
+public class VectorReductionTest extends BaseSuite {
+
+    private static final Path SUITE_DIR = Paths.get(TestOptions.PROJECT_ROOT + "/../cache/tests/irbuilder/vector_reduction");
+
+    private static final int[] LANES = new int[]{3, 4, 8};
+    private static final BinaryOperator[] OPERATORS = new BinaryOperator[]{
+                    BinaryOperator.INT_ADD, BinaryOperator.INT_MULTIPLY, BinaryOperator.INT_AND, BinaryOperator.INT_OR, BinaryOperator.INT_XOR, BinaryOperator.FP_ADD};
+
+    private final BinaryOperator operator;
+    private final int lanes;
+
+    public VectorReductionTest(BinaryOperator operator, int lanes) {
+        this.operator = operator;
+        this.lanes = lanes;
+    }
+
+    @Parameters(name = "{index}: VectorReductionTest[operator={0}, lanes={1}]")
+    public static Collection<Object[]> data() {
+        List<Object[]> parameters = new LinkedList<>();
+
+        for (BinaryOperator operator : OPERATORS) {
+            for (int lanes : LANES) {
+                parameters.add(new Object[]{operator, lanes});
+            }
+        }
+
+        return parameters;
+    }
+
+    @Override
+    public Path getSuiteDir() {
+        return SUITE_DIR;
+    }
+
+    @Override
+    public Path getFilename() {
+        return Paths.get(String.format("test_reduce_%s_%d.ll", operator.getIrString(), lanes));
+    }
+
+    private static long getLane(int idx) {
+        // every lane sets some bits which are not set in the other ones
+        return 0x1F0 | (3L << idx);
+    }
+
+    private long getExpected() {
+        long result = getLane(0);
+        for (int i = 1; i < lanes; i++) {
+            final long lane = getLane(i);
+            switch (operator) {
+                case INT_ADD:
+                case FP_ADD:
+                    result += lane;
+                    break;
+                case INT_MULTIPLY:
+                    result = (int) (result * lane);
+                    break;
+                case INT_AND:
+                    result &= lane;
+                    break;
+                case INT_OR:
+                    result |= lane;
+                    break;
+                case INT_XOR:
+                    result ^= lane;
+                    break;
+                default:
+                    throw new AssertionError("unexpected operator: " + operator);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public ModelModule constructModelModule() {
+        final ModelModuleBuilder builder = new ModelModuleBuilder();
+
+        final FunctionDefinition main = builder.createFunctionDefinition("main", 1, new FunctionType(PrimitiveType.I32, new Type[]{}, false));
+        final SimpleInstrunctionBuilder instr = new SimpleInstrunctionBuilder(builder, main);
+
+        final boolean isFloatingPoint = operator.isFloatingPoint();
+        final VectorType type = new VectorType(isFloatingPoint ? PrimitiveType.DOUBLE : PrimitiveType.I32, lanes);
+
+        final long[] values = new long[lanes];
+        for (int i = 0; i < lanes; i++) {
+            values[i] = getLane(i);
+        }
+        // the vector is loaded from memory, so the reduction is executed instead of folded
+        final Instruction vector;
+        if (isFloatingPoint) {
+            final double[] doubles = new double[lanes];
+            for (int i = 0; i < lanes; i++) {
+                doubles[i] = values[i];
+            }
+            vector = instr.fillVector(instr.allocate(type), doubles);
+        } else {
+            vector = instr.fillVector(instr.allocate(type), values);
+        }
+
+        final Instruction reduced = instr.reduceVector(operator, vector); // Instruction under test
+
+        Instruction laneByLane = instr.extractElement(vector, 0);
+        for (int i = 1; i < lanes; i++) {
+            laneByLane = instr.binaryOperator(operator, laneByLane, instr.extractElement(vector, i));
+        }
+
+        final Instruction differs;
+        final Instruction isWrong;
+        if (isFloatingPoint) {
+            differs = instr.compare(CompareOperator.FP_UNORDERED_NOT_EQUAL, reduced, laneByLane);
+            isWrong = instr.compare(CompareOperator.FP_UNORDERED_NOT_EQUAL, reduced, (double) getExpected());
+        } else {
+            differs = instr.compare(CompareOperator.INT_NOT_EQUAL, reduced, laneByLane);
+            isWrong = instr.compare(CompareOperator.INT_NOT_EQUAL, reduced, getExpected());
+        }
+
+        final Instruction error = instr.binaryOperator(BinaryOperator.INT_OR, differs, isWrong);
+        instr.returnxWithCast(error); // 0=OK, 1=ERROR
+
+        return builder.getModelModule();
+    }
+}